@@ -0,0 +1,51 @@
+package com.thebuzzmedia.hpjxp.util;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API backend of {@link ScannerUtil}, comparing
+ * {@link ByteVector#SPECIES_PREFERRED} bytes (32 on AVX2, 64 on AVX-512) per
+ * step. Any tail shorter than a vector is scanned one byte at a time.
+ * <p/>
+ * This class is compiled with <code>--add-modules jdk.incubator.vector</code>
+ * and only loaded by {@link ScannerUtil} when that module is present.
+ */
+class VectorScanner implements ScannerUtil.Backend {
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+	public int indexOf(byte value, int index, int length, byte[] data) {
+		int end = index + length;
+		int step = SPECIES.length();
+
+		for (int last = end - step; index <= last; index += step) {
+			VectorMask<Byte> matches = ByteVector.fromArray(SPECIES, data,
+					index).eq(value);
+
+			if (matches.anyTrue())
+				return index + matches.firstTrue();
+		}
+
+		return ScannerUtil.indexOfScalar(value, index, end - index, data);
+	}
+
+	public int indexOfAny(byte[] values, int index, int length, byte[] data) {
+		int end = index + length;
+		int step = SPECIES.length();
+		int valuesLength = values.length;
+
+		for (int last = end - step; index <= last; index += step) {
+			ByteVector vector = ByteVector.fromArray(SPECIES, data, index);
+			VectorMask<Byte> matches = vector.eq(values[0]);
+
+			for (int j = 1; j < valuesLength; j++)
+				matches = matches.or(vector.eq(values[j]));
+
+			if (matches.anyTrue())
+				return index + matches.firstTrue();
+		}
+
+		return ScannerUtil.indexOfAnyScalar(values, index, end - index, data);
+	}
+}
@@ -11,6 +11,13 @@ public class Constants {
 	public static final byte GT = 62; // >, greater than
 	public static final byte LB = 91; // [, left bracket
 	public static final byte RB = 93; // ], right bracket
+	public static final byte EQ = 61; // =, equals
+	public static final byte QT = 34; // ", double quote
+	public static final byte AP = 39; // ', apostrophe (single quote)
+	public static final byte AM = 38; // &, ampersand
+	public static final byte SC = 59; // ;, semicolon
+	public static final byte HS = 35; // #, hash
+	public static final byte CL = 58; // :, colon
 
 	public static final byte[] A_LT = { LT }; // array, used for scan(byte[])
 	public static final byte[] A_GT = { GT }; // array, used for scan(byte[])
@@ -28,6 +35,12 @@ public class Constants {
 	// ?>, processing instruction end
 	public static final byte[] PI_SFX = { QM, GT };
 
+	// <?xml, XML declaration start
+	public static final byte[] XML_DECL_PFX = { LT, QM, 120, 109, 108 };
+	// encoding, XML declaration pseudo-attribute
+	public static final byte[] ENCODING = { 101, 110, 99, 111, 100, 105, 110,
+			103 };
+
 	// TODO: we might not need these anymore, need to evaluate.
 	public static final byte SP = 32; // SPACE
 	public static final byte TB = 9; // TAB
@@ -1,31 +1,76 @@
 package com.thebuzzmedia.hpjxp;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadFactory;
 
 import com.thebuzzmedia.hpjxp.buffer.DefaultByteSource;
+import com.thebuzzmedia.hpjxp.buffer.FlyweightByteSource;
 import com.thebuzzmedia.hpjxp.buffer.IByteSource;
+import com.thebuzzmedia.hpjxp.io.ChannelInputSource;
+import com.thebuzzmedia.hpjxp.io.IInputSource;
+import com.thebuzzmedia.hpjxp.io.InflaterInputSource;
+import com.thebuzzmedia.hpjxp.io.InflaterInputSource.Format;
+import com.thebuzzmedia.hpjxp.io.InputStreamSource;
+import com.thebuzzmedia.hpjxp.io.MappedFileSource;
+import com.thebuzzmedia.hpjxp.io.ReadAheadInputSource;
+import com.thebuzzmedia.hpjxp.io.UTF16InputSource;
 import com.thebuzzmedia.hpjxp.util.ArrayUtil;
+import com.thebuzzmedia.hpjxp.util.CharDecoder;
+import com.thebuzzmedia.hpjxp.util.CodingUtil;
 import com.thebuzzmedia.hpjxp.util.ScannerUtil;
+import com.thebuzzmedia.hpjxp.util.SymbolTable;
+import com.thebuzzmedia.hpjxp.util.UTF16Transcoder;
 
-// TODO: Add support for namespace awareness
-
-/*
- * TODO: Need to add support for setting encoding. Make the UTIL class take a 
- * hashset approach where the key is the encoding and.
- * 
- * Alternatively, an instance of this parser class could create it's own 
- * encoder/decoder and pass them to the ByteSource to use internally when created.
- */
-
-public class HPXMLParser {
+public class HPXMLParser implements Closeable {
 	// TODO: reset back to Boolean.getBoolean("hpjxp.debug");
 	public static final Boolean DEBUG = false;
 	public static final Integer BUFFER_SIZE = Integer.getInteger(
 			"hpjxp.bufferSize", 131072); // 1024*128 = 131072 (128k)
+	public static final Integer MAX_BUFFER_SIZE = Integer.getInteger(
+			"hpjxp.maxBufferSize", 16777216); // 1024*1024*16 (16MB)
+	public static final Integer BUFFER_SHRINK_REFILLS = Integer.getInteger(
+			"hpjxp.bufferShrinkRefills", 16);
 
 	public static final String LOG_PREFIX = "[hpjxp] ";
 
+	/**
+	 * Namespace the <code>xml</code> prefix is always bound to, its ID is
+	 * {@link #XML_NAMESPACE_ID}.
+	 */
+	public static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+	public static final int XML_NAMESPACE_ID = 0;
+
+	/**
+	 * Namespace of <code>xmlns</code> and <code>xmlns:p</code> namespace
+	 * declaration attributes, its ID is {@link #XMLNS_NAMESPACE_ID}.
+	 */
+	public static final String XMLNS_NAMESPACE = "http://www.w3.org/2000/xmlns/";
+	public static final int XMLNS_NAMESPACE_ID = 1;
+
+	/*
+	 * Most bytes read looking for the end of an XML declaration to find the
+	 * encoding it declares.
+	 */
+	private static final int XML_DECL_LIMIT = 1024;
+
+	// Kinds of constructs found on a tape, see nextTapeConstruct.
+	private static final int TAPE_NONE = 0;
+	private static final int TAPE_SKIPPED = 1;
+	private static final int TAPE_TEXT = 2;
+	private static final int TAPE_CDATA = 3;
+	private static final int TAPE_START = 4;
+	private static final int TAPE_EMPTY = 5;
+	private static final int TAPE_END = 6;
+
 	public static enum State {
 		/**
 		 * Used to describe the state the parser is in once it has found and
@@ -34,7 +79,11 @@ public class HPXMLParser {
 		 * <p/>
 		 * <h3>Valid Operations</h3> When the parser is in this state, the
 		 * following data-retrieval operations are valid:
-		 * {@link HPXMLParser#getTagName()}.
+		 * {@link HPXMLParser#getTagName()}, {@link HPXMLParser#getTagId()},
+		 * {@link HPXMLParser#getAttributeCount()},
+		 * {@link HPXMLParser#getAttributeName(int)},
+		 * {@link HPXMLParser#getAttributeValue(int)} and
+		 * {@link HPXMLParser#getAttributeValue(byte[])}.
 		 * <p/>
 		 * <h3>Empty Elements</h3> When an empty element (e.g. &lt;hello/&gt;)
 		 * is encountered, the first call to {@link HPXMLParser#nextState()}
@@ -62,7 +111,7 @@ public class HPXMLParser {
 		 * <p/>
 		 * <h3>Valid Operations</h3> When the parser is in this state, the
 		 * following data-retrieval operations are valid:
-		 * {@link HPXMLParser#getTagName()}.
+		 * {@link HPXMLParser#getTagName()} and {@link HPXMLParser#getTagId()}.
 		 * <p/>
 		 * <h3>Empty Elements</h3> When an empty element (e.g. &lt;hello/&gt;)
 		 * is encountered, the first call to {@link HPXMLParser#nextState()}
@@ -72,6 +121,21 @@ public class HPXMLParser {
 		 * code START/END handlers and the parser will do the right thing.
 		 */
 		END_TAG,
+		/**
+		 * Used to describe the state the parser is in when it was given its
+		 * input through {@link HPXMLParser#feed(byte[], int, int)} and has run
+		 * out of fed bytes in the middle of a construct (or before finding the
+		 * end of a run of character data).
+		 * <p/>
+		 * Nothing is consumed; once more bytes are fed (or
+		 * {@link HPXMLParser#endOfInput()} is called), calling
+		 * {@link HPXMLParser#nextState()} again picks up parsing from the
+		 * beginning of the unfinished construct.
+		 * <p/>
+		 * <h3>Valid Operations</h3> When the parser is in this state, the
+		 * following data-retrieval operations are valid: <em>none</em>.
+		 */
+		NEED_MORE_INPUT,
 		/**
 		 * Used to describe the state the parser is in once it has scanned all
 		 * characters in its internal <code>byte[]</code> buffer and the given
@@ -86,21 +150,191 @@ public class HPXMLParser {
 
 	private boolean isCDATA = false;
 	private boolean isEmptyElement = false;
+	private boolean isAttributesMarked = false;
+
+	/*
+	 * Attribute marks for the current START_TAG, 4 values per attribute: name
+	 * index, name length, value index and value length.
+	 */
+	private int attributeCount = 0;
+	private int[] attributes = new int[32];
+
+	// ID of the current tag name, looked up at most once per tag.
+	private int tagId = Constants.INVALID;
+	private SymbolTable tagSymbols;
+
+	/*
+	 * Namespace-aware mode (setNamespaceAware). Prefixes and namespace URIs
+	 * are interned the same way tag names are, so declarations outlive the
+	 * buffer they were read from. nsBindings is the scope stack of in-scope
+	 * (prefix ID, namespace ID) pairs, innermost last; nsScopes holds how
+	 * many pairs each open element declared. The scope of an element is
+	 * popped on the call to nextState() following its END_TAG.
+	 */
+	private boolean namespaceAware = false;
+	private SymbolTable prefixSymbols;
+	private SymbolTable namespaceSymbols;
+	private int[] nsBindings = new int[32];
+	private int nsBindingCount = 0;
+	private int[] nsScopes = new int[16];
+	private int nsDepth = 0;
+	private boolean isScopeEnded = false;
+	private int namespaceId = Constants.INVALID;
+	private boolean isNamespaceResolved = false;
+
+	// Prefix IDs of the default (empty) prefix and the "xml" prefix.
+	private static final int DEFAULT_PREFIX_ID = 0;
+	private static final int XML_PREFIX_ID = 1;
 
 	private int idx = 0;
-	private int gIdx = 0;
+	// Document offset of buffer[0], 64-bit so multi-GB inputs don't overflow.
+	private long gIdx = 0;
 	private int sIdx = Constants.INVALID;
 	private int eIdx = Constants.INVALID;
 
+	/*
+	 * Line tracking (setLineTracking). Newlines are only counted when bytes
+	 * are discarded by a refill or a position is asked for, never per byte
+	 * scanned: lineNumber is the line of buffer[lineIdx] and lineOffset the
+	 * document offset its line starts at.
+	 */
+	private boolean lineTracking = false;
+	private boolean isTrackingLines = false;
+	private long lineNumber = 1;
+	private long lineOffset = 0;
+	private int lineIdx = 0;
+
 	private State state;
 
 	private int bufferLength;
 	private byte[] buffer;
 
-	private InputStream input;
+	private int initialBufferSize;
+	private int maxBufferSize;
+	private int bufferShrinkRefills = BUFFER_SHRINK_REFILLS;
+	private int bufferHighWaterMark;
+	private int normalRefillCount;
+
+	private IInputSource input;
+
+	/*
+	 * Push mode (setFeedInput). The feed source never produces bytes itself,
+	 * feed() copies them straight into the buffer; it only reports EOF once
+	 * endOfInput() was called. markIdx is where the construct currently being
+	 * parsed began, nextState rolls back to it when it runs out of fed bytes.
+	 * skipDepth is non-zero while a skipElement() is waiting for more input.
+	 */
+	private boolean isInputEnded = false;
+	private boolean isStarved = false;
+	private int markIdx = 0;
+	private int skipDepth = 0;
+
+	private final IInputSource feedSource = new IInputSource() {
+		public int read(byte[] buffer, int index, int length) {
+			return (isInputEnded ? -1 : 0);
+		}
+
+		public void close() {
+			// no-op
+		}
+	};
+
+	/*
+	 * Tape mode (setInput(StructuralTape)). The buffer is the document array
+	 * of the tape and is never refilled; tapeIdx is the next entry of the
+	 * tape to look at. The parser's own buffer is kept in ownBuffer until the
+	 * next input is set.
+	 */
+	private StructuralTape tape;
+	private int[] tapePositions;
+	private int tapeSize;
+	private int tapeIdx;
+	private byte[] ownBuffer;
+
+	private boolean readAhead = false;
+	private ThreadFactory readAheadThreadFactory;
+
+	private boolean reuseByteSources = false;
+
+	// Shared by every byte source this parser hands out.
+	private CharDecoder decoder = new CharDecoder(CodingUtil.UTF8_CHARSET);
+
+	/*
+	 * Encoding of the current document, see detectEncoding. UTF-16 documents
+	 * are transcoded to UTF-8 on their way into the buffer. In push mode the
+	 * first bytes fed are held back in prolog until the encoding is known.
+	 */
+	private Charset encoding = CodingUtil.UTF8_CHARSET;
+	private boolean isEncodingDetected = false;
+	private byte[] prolog;
+	private int prologLength = 0;
+	private UTF16Transcoder feedTranscoder;
+	private byte[] feedScratch;
+
+	// Views handed out when reuseByteSources is enabled, one per value type.
+	private FlyweightByteSource tagNameSource = new FlyweightByteSource(
+			decoder);
+	private FlyweightByteSource textSource = new FlyweightByteSource(decoder);
+	private FlyweightByteSource attributeNameSource = new FlyweightByteSource(
+			decoder);
+	private FlyweightByteSource attributeValueSource = new FlyweightByteSource(
+			decoder);
+
+	// Set when this parser is borrowed from an HPXMLParserPool.
+	HPXMLParserPool pool;
+	int poolSizeClass;
+	boolean leased;
 
 	public HPXMLParser() {
-		buffer = new byte[BUFFER_SIZE];
+		this(BUFFER_SIZE);
+	}
+
+	/**
+	 * Create a parser with an internal buffer of the given size instead of
+	 * {@link #BUFFER_SIZE}. Smaller buffers suit small payloads; the buffer
+	 * must still be able to hold the largest single tag or comment, CDATA or
+	 * PI block of the documents parsed.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>bufferSize</code> is &lt; 64.
+	 */
+	public HPXMLParser(int bufferSize) throws IllegalArgumentException {
+		if (bufferSize < 64)
+			throw new IllegalArgumentException("bufferSize [" + bufferSize
+					+ "] must be >= 64");
+
+		buffer = new byte[bufferSize];
+		initialBufferSize = bufferSize;
+
+		resetSymbols();
+		bufferHighWaterMark = bufferSize;
+		maxBufferSize = (MAX_BUFFER_SIZE > bufferSize ? MAX_BUFFER_SIZE
+				: bufferSize);
+	}
+
+	/**
+	 * Used to drop every interned tag name, prefix and namespace URI, leaving
+	 * only the built-in ones at their fixed IDs. Called by
+	 * {@link HPXMLParserPool} so tag IDs registered by one borrower aren't
+	 * seen by the next and the tables of a pooled parser don't grow with
+	 * every distinct name it has ever parsed.
+	 */
+	void resetSymbols() {
+		if (tagSymbols == null) {
+			tagSymbols = new SymbolTable();
+			prefixSymbols = new SymbolTable();
+			namespaceSymbols = new SymbolTable();
+		} else {
+			tagSymbols.clear();
+			prefixSymbols.clear();
+			namespaceSymbols.clear();
+		}
+
+		// DEFAULT_PREFIX_ID and XML_PREFIX_ID.
+		prefixSymbols.add(new byte[0], 0, 0);
+		prefixSymbols.add(Constants.NS, 0, 3);
+		registerNamespace(XML_NAMESPACE);
+		registerNamespace(XMLNS_NAMESPACE);
 	}
 
 	@Override
@@ -110,8 +344,199 @@ public class HPXMLParser {
 				+ ", state=" + state + "]";
 	}
 
-	public void setInput(InputStream input) throws IOException {
+	public void setInput(InputStream input) throws IOException,
+			IllegalArgumentException {
+		setInput(new InputStreamSource(input));
+	}
+
+	/**
+	 * Used to set the given compressed stream as the input source for this
+	 * parser. The stream is inflated directly into the parser's buffer, see
+	 * {@link InflaterInputSource}; use this in place of wrapping the stream in
+	 * a {@link java.util.zip.GZIPInputStream}.
+	 * <p/>
+	 * The stream is left open, closing it remains the responsibility of the
+	 * caller.
+	 */
+	public void setInput(InputStream input, Format format) throws IOException,
+			IllegalArgumentException {
+		setInput(new InflaterInputSource(new InputStreamSource(input), format));
+	}
+
+	/**
+	 * Used to set the given compressed file (e.g. a <code>.gz</code> file) as
+	 * the input source for this parser. The file is memory-mapped and inflated
+	 * directly into the parser's buffer, see {@link InflaterInputSource}.
+	 * <p/>
+	 * The file is opened by the parser and closed again when a new input is
+	 * set or {@link #close()} is called.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be opened or mapped.
+	 */
+	public void setInput(Path file, Format format) throws IOException,
+			IllegalArgumentException {
+		if (file == null)
+			throw new IllegalArgumentException("file cannot be null");
+		if (format == null)
+			throw new IllegalArgumentException("format cannot be null");
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+			setInput(new InflaterInputSource(new MappedFileSource(channel, 0,
+					channel.size(), true), format));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Used to set the given file as the input source for this parser. The
+	 * file is memory-mapped and refills are copied into the parser's buffer
+	 * straight from the OS page cache instead of being streamed through an
+	 * {@link InputStream}; see {@link MappedFileSource}.
+	 * <p/>
+	 * The file is opened by the parser and closed again when a new input is
+	 * set or {@link #close()} is called.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be opened or mapped.
+	 */
+	public void setInput(Path file) throws IOException,
+			IllegalArgumentException {
+		if (file == null)
+			throw new IllegalArgumentException("file cannot be null");
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+			setInput(new MappedFileSource(channel, 0, channel.size(), true));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Used to set the given channel as the input source for this parser. The
+	 * channel is memory-mapped from its current position to the end of the
+	 * file; offsets reported by the parser are offsets in the file, so a
+	 * position saved from {@link #getStartOffset()} can be seeked back to and
+	 * parsed from later.
+	 * <p/>
+	 * The channel is left open, closing it remains the responsibility of the
+	 * caller.
+	 * 
+	 * @throws IOException
+	 *             if the channel cannot be mapped.
+	 */
+	public void setInput(FileChannel channel) throws IOException,
+			IllegalArgumentException {
+		if (channel == null)
+			throw new IllegalArgumentException("channel cannot be null");
+
+		long position = channel.position();
+
+		setInput(new MappedFileSource(channel, position, channel.size(),
+				false), position);
+	}
+
+	/**
+	 * Used to set the given channel (e.g. a socket channel) as the input
+	 * source for this parser. Bytes are read through a bounded, off-heap
+	 * staging buffer; see {@link ChannelInputSource}.
+	 * <p/>
+	 * {@link FileChannel}s are memory-mapped instead, see
+	 * {@link #setInput(FileChannel)}. The channel is left open, closing it
+	 * remains the responsibility of the caller.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if <code>channel</code> is <code>null</code> or is a
+	 *             non-blocking channel; use {@link #setFeedInput()} for
+	 *             those.
+	 */
+	public void setInput(ReadableByteChannel channel) throws IOException,
+			IllegalArgumentException {
+		if (channel instanceof FileChannel)
+			setInput((FileChannel) channel);
+		else
+			setInput(new ChannelInputSource(channel));
+	}
+
+	public void setInput(IInputSource input) throws IOException,
+			IllegalArgumentException {
+		setInput(input, 0);
+	}
+
+	/**
+	 * Used to set the given input source for this parser, where the first
+	 * byte it reads is at <code>offset</code> in the document (e.g. because
+	 * the source starts part way into a file). Offsets reported by
+	 * {@link #getStartOffset()}, {@link #getEndOffset()} and in parse errors
+	 * are then relative to the start of the document rather than the source.
+	 * <p/>
+	 * Line numbers always count from the first byte of the source.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>input</code> is <code>null</code> or
+	 *             <code>offset</code> is negative.
+	 */
+	public void setInput(IInputSource input, long offset) throws IOException,
+			IllegalArgumentException {
+		setInput(input, offset, null);
+	}
+
+	/**
+	 * Used to set the given input source, starting at <code>offset</code> in
+	 * the document like {@link #setInput(IInputSource, long)}, for a document
+	 * whose encoding is already known. Use this when resuming part way into a
+	 * document, past the XML declaration the encoding would otherwise be
+	 * detected from.
+	 * 
+	 * @param encoding
+	 *            the encoding of the document or <code>null</code> to detect
+	 *            it from the first bytes read.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>input</code> is <code>null</code>,
+	 *             <code>offset</code> is negative or <code>encoding</code> is
+	 *             neither UTF-8 nor a single-byte charset such as ISO-8859-1.
+	 */
+	public void setInput(IInputSource input, long offset, Charset encoding)
+			throws IOException, IllegalArgumentException {
+		if (input == null)
+			throw new IllegalArgumentException("input cannot be null");
+		if (offset < 0)
+			throw new IllegalArgumentException("offset [" + offset
+					+ "] must be >= 0");
+
+		if (encoding != null && !encoding.equals(CodingUtil.UTF8_CHARSET)) {
+			CharDecoder check = new CharDecoder(encoding);
+
+			if (!check.isAsciiCompatible() || !check.isSingleByte())
+				throw new IllegalArgumentException("encoding ["
+						+ encoding.name()
+						+ "] must be UTF-8 or a single-byte charset");
+		}
+
 		reset();
+
+		gIdx = offset;
+		lineOffset = offset;
+
+		// Memory-mapped input never blocks on a read worth overlapping.
+		if (readAhead && !(input instanceof MappedFileSource))
+			input = new ReadAheadInputSource(input, initialBufferSize,
+					readAheadThreadFactory);
+
 		this.input = input;
 
 		/*
@@ -123,6 +548,380 @@ public class HPXMLParser {
 		 * run faster.
 		 */
 		fillBuffer();
+
+		if (encoding == null)
+			initEncoding();
+		else {
+			isEncodingDetected = true;
+			setEncoding(encoding, 0);
+		}
+	}
+
+	/**
+	 * Used to set the in-memory document of the given tape as the input of
+	 * this parser, parsing it in tape mode: instead of scanning the document
+	 * for the end of each construct as it goes, {@link #nextState()} and
+	 * {@link #skipElement()} walk the positions already on the tape. See
+	 * {@link StructuralTape}.
+	 * <p/>
+	 * The events are the same as those of the document parsed from a stream
+	 * and every other method works as usual on them. Declarations other than
+	 * comments and CDATA blocks (e.g. <code>&lt;!DOCTYPE ...&gt;</code>) are
+	 * skipped whole, as {@link #skipElement()} skips them. The same tape can
+	 * be set again to parse the document again.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>tape</code> is <code>null</code> or its document
+	 *             is UTF-16 encoded; positions on the tape wouldn't be
+	 *             positions in the bytes the parser sees once transcoded.
+	 * @throws XMLParseException
+	 *             if the document declares an unsupported encoding.
+	 */
+	public void setInput(StructuralTape tape) throws IOException,
+			IllegalArgumentException, XMLParseException {
+		if (tape == null)
+			throw new IllegalArgumentException("tape cannot be null");
+
+		reset();
+
+		byte[] data = tape.getData();
+		int length = tape.getLength();
+		int skip = detectEncoding(data, length, true);
+
+		if (isUTF16()) {
+			encoding = CodingUtil.UTF8_CHARSET;
+			throw new IllegalArgumentException(
+					"tape cannot hold a UTF-16 encoded document");
+		}
+
+		isEncodingDetected = true;
+
+		this.tape = tape;
+		tapePositions = tape.getPositions();
+		tapeSize = tape.size();
+		ownBuffer = buffer;
+		buffer = data;
+		bufferLength = length;
+
+		trackAscii(0, length);
+
+		// Positions on the tape count the byte order mark, if any.
+		eIdx = skip - 1;
+		lineIdx = skip;
+		lineOffset = skip;
+	}
+
+	/**
+	 * Used to put this parser in non-blocking push mode. Instead of pulling
+	 * from an input source, the parser is handed bytes as they arrive (e.g.
+	 * from a selector loop) through {@link #feed(byte[], int, int)} or
+	 * {@link #feed(ByteBuffer)}, and {@link #endOfInput()} once the document
+	 * is complete.
+	 * <p/>
+	 * Whenever {@link #nextState()} runs out of fed bytes before it can
+	 * complete the next event, it returns {@link State#NEED_MORE_INPUT}
+	 * instead of blocking. Events are reported exactly as they would be had
+	 * the whole document been parsed from a stream.
+	 *
+	 * @throws IOException
+	 *             if an error occurs closing the previous input source.
+	 */
+	public void setFeedInput() throws IOException {
+		reset();
+		input = feedSource;
+	}
+
+	/**
+	 * Convenience method for {@link #feed(byte[], int, int)} that feeds all
+	 * the remaining bytes of the given buffer, advancing its position.
+	 */
+	public void feed(ByteBuffer data) throws IllegalArgumentException,
+			IllegalStateException, IOException, XMLParseException {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+
+		checkFeedInput();
+
+		int length = data.remaining();
+
+		// Bytes that can't go straight into the buffer go through an array.
+		if (!isEncodingDetected || feedTranscoder != null) {
+			if (data.hasArray()) {
+				feedBytes(data.array(), data.arrayOffset() + data.position(),
+						length);
+				data.position(data.limit());
+			} else {
+				if (feedScratch == null)
+					feedScratch = new byte[UTF16Transcoder.INPUT_SIZE];
+
+				while (data.hasRemaining()) {
+					int count = Math.min(data.remaining(), feedScratch.length);
+					data.get(feedScratch, 0, count);
+					feedBytes(feedScratch, 0, count);
+				}
+			}
+
+			return;
+		}
+
+		ensureFeedCapacity(length);
+		data.get(buffer, bufferLength, length);
+		trackAscii(bufferLength, length);
+		bufferLength += length;
+	}
+
+	/**
+	 * Used to hand the next chunk of the document to a parser in push mode
+	 * (see {@link #setFeedInput()}). The bytes are copied into the internal
+	 * buffer right away, so the caller is free to reuse <code>data</code> once
+	 * this method returns.
+	 * <p/>
+	 * Feeding may move the contents of the internal buffer; any
+	 * {@link IByteSource} handed out before the call must not be used after
+	 * it.
+	 *
+	 * @throws IllegalStateException
+	 *             if the parser is not in push mode or {@link #endOfInput()}
+	 *             has already been called.
+	 * @throws XMLParseException
+	 *             if the unparsed bytes would no longer fit in a buffer of
+	 *             {@link #getMaxBufferSize()} bytes.
+	 */
+	public void feed(byte[] data, int index, int length)
+			throws IllegalArgumentException, IllegalStateException,
+			IOException, XMLParseException {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+		if (index < 0 || length < 0 || (index + length) > data.length)
+			throw new IllegalArgumentException("index [" + index
+					+ "] and length [" + length
+					+ "] must be >= 0 and (index + length) must be <= data.length ["
+					+ data.length + "]");
+
+		checkFeedInput();
+		feedBytes(data, index, length);
+	}
+
+	/**
+	 * Used to tell a parser in push mode that no more bytes will be fed.
+	 * Anything still buffered is parsed by following calls to
+	 * {@link #nextState()}, which then returns {@link State#END_DOCUMENT}.
+	 *
+	 * @throws IllegalStateException
+	 *             if the parser is not in push mode.
+	 * @throws XMLParseException
+	 *             if the document declares an encoding that isn't supported.
+	 */
+	public void endOfInput() throws IllegalStateException, IOException,
+			XMLParseException {
+		if (input != feedSource)
+			throw new IllegalStateException(
+					"endOfInput() can only be called after setFeedInput()");
+		if (isInputEnded)
+			return;
+
+		// Whatever was held back is all there is to detect the encoding from.
+		if (!isEncodingDetected)
+			flushProlog(detectEncoding(prolog, prologLength, true));
+
+		// feedBytes always leaves room for the transcoder's last bytes.
+		if (feedTranscoder != null) {
+			int count = feedTranscoder.transcode(buffer, bufferLength,
+					buffer.length - bufferLength, true);
+			trackAscii(bufferLength, count);
+			bufferLength += count;
+		}
+
+		isInputEnded = true;
+	}
+
+	/**
+	 * Used to release the current input source. Any file the parser opened
+	 * itself (e.g. {@link #setInput(Path)}) is closed; caller-supplied streams
+	 * and channels are left open.
+	 * <p/>
+	 * If this parser was borrowed from an {@link HPXMLParserPool}, it is
+	 * returned to the pool and must not be used again by the caller; closing
+	 * it again does nothing.
+	 * 
+	 * @throws IOException
+	 *             if an error occurs closing the input source.
+	 */
+	public void close() throws IOException {
+		// Already returned, it may be leased to another borrower by now.
+		if (pool != null && !leased)
+			return;
+
+		reset();
+
+		if (leased) {
+			leased = false;
+			pool.release(this);
+		}
+	}
+
+	/**
+	 * Used to get the current size of the internal buffer used by this parser.
+	 * This is the size given at construction unless the buffer has grown to
+	 * hold an oversized construct; see {@link #setMaxBufferSize(int)}.
+	 */
+	public int getBufferSize() {
+		return buffer.length;
+	}
+
+	/**
+	 * Used to get the largest size the internal buffer of this parser has ever
+	 * grown to. Useful for picking a better initial buffer size or
+	 * {@link #setMaxBufferSize(int)} for the documents being parsed.
+	 */
+	public int getBufferHighWaterMark() {
+		return bufferHighWaterMark;
+	}
+
+	public int getMaxBufferSize() {
+		return maxBufferSize;
+	}
+
+	/**
+	 * Used to set the largest size the internal buffer can grow to.
+	 * <p/>
+	 * When a single tag, comment, CDATA or PI block does not fit in the
+	 * buffer, the buffer is doubled (up to this size) instead of failing. Once
+	 * {@link #getBufferShrinkRefills()} normal refills have gone by, the buffer
+	 * is shrunk back to its initial size. Setting this to the initial buffer
+	 * size disables growth.
+	 * <p/>
+	 * Default is {@link #MAX_BUFFER_SIZE} (<code>hpjxp.maxBufferSize</code>).
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>maxBufferSize</code> is smaller than the initial
+	 *             buffer size of this parser.
+	 */
+	public void setMaxBufferSize(int maxBufferSize)
+			throws IllegalArgumentException {
+		if (maxBufferSize < initialBufferSize)
+			throw new IllegalArgumentException("maxBufferSize ["
+					+ maxBufferSize + "] must be >= the initial buffer size ["
+					+ initialBufferSize + "]");
+
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	public int getBufferShrinkRefills() {
+		return bufferShrinkRefills;
+	}
+
+	/**
+	 * Used to set how many normal refills must go by after the buffer has
+	 * grown before it is shrunk back to its initial size.
+	 * <p/>
+	 * Default is {@link #BUFFER_SHRINK_REFILLS}
+	 * (<code>hpjxp.bufferShrinkRefills</code>).
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>bufferShrinkRefills</code> is &lt; 1.
+	 */
+	public void setBufferShrinkRefills(int bufferShrinkRefills)
+			throws IllegalArgumentException {
+		if (bufferShrinkRefills < 1)
+			throw new IllegalArgumentException("bufferShrinkRefills ["
+					+ bufferShrinkRefills + "] must be >= 1");
+
+		this.bufferShrinkRefills = bufferShrinkRefills;
+	}
+
+	/**
+	 * Used to determine if this parser hands back reusable {@link IByteSource}
+	 * instances. See {@link #setReuseByteSources(boolean)}.
+	 */
+	public boolean isReuseByteSources() {
+		return reuseByteSources;
+	}
+
+	/**
+	 * Used to have this parser hand back a single, reusable
+	 * {@link IByteSource} per kind of value (tag name, text, attribute name and
+	 * attribute value) that is re-pointed on every call, instead of allocating
+	 * a new instance each time. This removes all per-event allocation from the
+	 * parser, which matters on documents with tens of millions of elements.
+	 * <p/>
+	 * When enabled, a returned {@link IByteSource} is only valid until the
+	 * next call to {@link #nextState()}, exactly like the buffer it wraps, and
+	 * until the next call to the same <code>getXXX</code> method (e.g. two
+	 * calls to {@link #getAttributeValue(int)} return the same instance).
+	 * <p/>
+	 * Default is <code>false</code>.
+	 */
+	public void setReuseByteSources(boolean reuseByteSources) {
+		this.reuseByteSources = reuseByteSources;
+	}
+
+	/**
+	 * Used to get the encoding of the current document, as detected from its
+	 * byte order mark or XML declaration when the input was set (see
+	 * {@link #setInput(IInputSource)}).
+	 * <p/>
+	 * Supported are UTF-8 (the default when neither is present), UTF-16 in
+	 * either byte order, and every single-byte charset that encodes ASCII as
+	 * itself, such as ISO-8859-1 or windows-1252. UTF-16 documents are
+	 * transcoded to UTF-8 as they are read (see {@link UTF16InputSource}),
+	 * values of single-byte documents are decoded through a lookup table.
+	 * <p/>
+	 * In push mode the encoding is only known once enough bytes to detect it
+	 * have been fed; until then this returns UTF-8.
+	 */
+	public Charset getEncoding() {
+		return encoding;
+	}
+
+	public boolean isLineTracking() {
+		return lineTracking;
+	}
+
+	/**
+	 * Used to enable or disable line tracking, which makes
+	 * {@link #getLineNumber()} and {@link #getColumnNumber()} available.
+	 * <p/>
+	 * Lines are counted in bulk, a word at a time, as bytes are discarded from
+	 * the buffer and when a position is asked for, so the cost is a second
+	 * scan over the document looking for '\n' rather than a check per byte
+	 * parsed.
+	 * <p/>
+	 * The setting takes effect with the next input set on the parser.
+	 * <p/>
+	 * Default is <code>false</code>.
+	 */
+	public void setLineTracking(boolean lineTracking) {
+		this.lineTracking = lineTracking;
+	}
+
+	public boolean isReadAhead() {
+		return readAhead;
+	}
+
+	/**
+	 * Convenience method for {@link #setReadAhead(boolean, ThreadFactory)}
+	 * using a daemon thread.
+	 */
+	public void setReadAhead(boolean readAhead) {
+		setReadAhead(readAhead, null);
+	}
+
+	/**
+	 * Used to set if inputs set on this parser from now on are read on a
+	 * background thread (see {@link ReadAheadInputSource}) so that blocking
+	 * reads overlap with scanning. This pays off for slow sources like network
+	 * mounts or compressed streams; memory-mapped files are never read ahead.
+	 * <p/>
+	 * Each input gets its own thread, created by the given factory (e.g. one
+	 * creating virtual threads), which is stopped again when the input is
+	 * replaced or {@link #close()} is called.
+	 * <p/>
+	 * Default is <code>false</code>.
+	 */
+	public void setReadAhead(boolean readAhead, ThreadFactory threadFactory) {
+		this.readAhead = readAhead;
+		this.readAheadThreadFactory = threadFactory;
 	}
 
 	/**
@@ -138,6 +937,71 @@ public class HPXMLParser {
 		return state;
 	}
 
+	/**
+	 * Used to get the offset, in bytes from the start of the document, of the
+	 * first byte of the current event: the '&lt;' of a tag or CDATA block or
+	 * the first byte of a run of character data. For an empty element both
+	 * its {@link State#START_TAG} and {@link State#END_TAG} report the
+	 * offsets of the whole tag.
+	 * <p/>
+	 * Offsets count the byte order mark, if any, and are offsets into the
+	 * transcoded UTF-8 bytes for UTF-16 documents.
+	 * 
+	 * @throws IllegalStateException
+	 *             if current parser state is not {@link State#START_TAG},
+	 *             {@link State#TEXT} or {@link State#END_TAG}.
+	 */
+	public long getStartOffset() throws IllegalStateException {
+		checkEventState("getStartOffset()");
+		return gIdx + sIdx;
+	}
+
+	/**
+	 * Used to get the offset, in bytes from the start of the document, one
+	 * past the last byte of the current event (e.g. right after the '&gt;'
+	 * of a tag).
+	 * 
+	 * @throws IllegalStateException
+	 *             if current parser state is not {@link State#START_TAG},
+	 *             {@link State#TEXT} or {@link State#END_TAG}.
+	 */
+	public long getEndOffset() throws IllegalStateException {
+		checkEventState("getEndOffset()");
+		return gIdx + eIdx + 1;
+	}
+
+	/**
+	 * Used to get the line (starting at 1) the current event starts on.
+	 * 
+	 * @throws IllegalStateException
+	 *             if line tracking is not enabled (see
+	 *             {@link #setLineTracking(boolean)}) or current parser state
+	 *             is not {@link State#START_TAG}, {@link State#TEXT} or
+	 *             {@link State#END_TAG}.
+	 */
+	public long getLineNumber() throws IllegalStateException {
+		checkLineTracking("getLineNumber()");
+		countLines(sIdx);
+		return lineNumber;
+	}
+
+	/**
+	 * Used to get the column (starting at 1) the current event starts at on
+	 * its line. Columns are counted in bytes, not chars, in keeping with
+	 * offsets.
+	 * 
+	 * @throws IllegalStateException
+	 *             if line tracking is not enabled (see
+	 *             {@link #setLineTracking(boolean)}) or current parser state
+	 *             is not {@link State#START_TAG}, {@link State#TEXT} or
+	 *             {@link State#END_TAG}.
+	 */
+	public long getColumnNumber() throws IllegalStateException {
+		checkLineTracking("getColumnNumber()");
+		countLines(sIdx);
+		return gIdx + sIdx - lineOffset + 1;
+	}
+
 	/**
 	 * Used to advance the parser forward through the underlying data stream
 	 * until the next {@link State} of interest is encountered.
@@ -173,13 +1037,20 @@ public class HPXMLParser {
 	 *             parser cannot make heads or tales of it OR if the XML file
 	 *             contains TEXT or TAG constructs so large, that a single TAG
 	 *             or TEXT construct does not fit inside of the internal buffer
-	 *             at one time. In this case, increasing the value of
-	 *             {@link #BUFFER_SIZE} is required. This should only occur with
-	 *             oddly enormous files though.
+	 *             at one time, even after growing it to its maximum size. In
+	 *             this case, increasing the value of
+	 *             {@link #setMaxBufferSize(int)} is required. This should only
+	 *             occur with oddly enormous files though.
 	 */
 	public State nextState() throws IOException, XMLParseException {
 		// Mandatory resets
 		isCDATA = false;
+		isAttributesMarked = false;
+		isNamespaceResolved = false;
+
+		// The element whose END_TAG was just reported goes out of scope.
+		if (isScopeEnded)
+			popScope();
 
 		/*
 		 * Before we do anything, if we were processing an empty element (e.g.
@@ -195,24 +1066,55 @@ public class HPXMLParser {
 		 */
 		if (isEmptyElement) {
 			isEmptyElement = false;
+			isScopeEnded = namespaceAware;
 			return (state = State.END_TAG);
 		}
 
+		// The END_TAG of an empty element above keeps the START_TAG's ID.
+		tagId = Constants.INVALID;
+
+		// A skipElement() that ran out of fed bytes picks up where it stopped.
+		if (skipDepth > 0)
+			return skipRemaining();
+
+		// Every position is already on the tape, nothing to scan for.
+		if (tape != null)
+			return nextTapeState();
+
 		/*
 		 * First, move the buffer index to point at the byte right after
 		 * whatever the end of the last thing we marked was. Even on the first
 		 * run when eIdx is -1, this puts us comfortably at index 0 to begin.
 		 */
 		idx = eIdx + 1;
+		markIdx = idx;
 
 		// Find the next '<', scan will refill the buffer as-needed.
 		sIdx = scan(Constants.A_LT);
 
+		// Fed input ended before the end of this run of character data.
+		if (isStarved)
+			return starve();
+
 		// Check for EOF
 		if (bufferLength == -1) {
 			return (state = State.END_DOCUMENT);
 		}
 
+		/*
+		 * If no '<' could be found at all, then everything from idx to the end
+		 * of the buffer is a run of character data that isn't terminated by
+		 * another tag (e.g. trailing whitespace after the root element). We
+		 * treat the end of the buffer as the terminator so it is marked as
+		 * TEXT, the following call will then hit EOF.
+		 */
+		if (sIdx == Constants.INVALID) {
+			if (idx >= bufferLength)
+				return (state = State.END_DOCUMENT);
+
+			sIdx = bufferLength;
+		}
+
 		/*
 		 * Check if we are processing a TAG (enclosed in <>) or TEXT (everything
 		 * between >< chars). If idx == sIdx (where we found '<') then we are
@@ -224,6 +1126,12 @@ public class HPXMLParser {
 		 * character data and slammed into the next tag that terminates it).
 		 */
 		if (idx == sIdx) {
+			// Make sure the bytes identifying the kind of tag are loaded.
+			ensureTagLookahead();
+
+			if (isStarved)
+				return starve();
+
 			// Ok we are inside a tag, figure out what kind (maybe CDATA)
 			switch (buffer[sIdx + 1]) {
 			// <?, processing instruction
@@ -255,6 +1163,12 @@ public class HPXMLParser {
 				handleTag();
 				break;
 			}
+
+			// handleTag and handleCDATA leave the rollback to us.
+			if (isStarved)
+				return starve();
+
+			trackScope();
 		} else
 			handleCharData();
 
@@ -266,6 +1180,54 @@ public class HPXMLParser {
 		return state;
 	}
 
+	/**
+	 * Used to skip the entire element whose {@link State#START_TAG} the parser
+	 * is currently in, fast-forwarding to its matching {@link State#END_TAG}.
+	 * <p/>
+	 * Everything in between is skipped by tracking element depth only: each
+	 * '&lt;' found is checked for a following '/' (end tag) or a preceding
+	 * '/' on its '&gt;' (empty element). No events are produced, no
+	 * {@link IByteSource}s are created and no state transitions happen for the
+	 * skipped content. Comments, CDATA blocks, processing instructions and
+	 * other <code>&lt;!</code> declarations inside the element are skipped
+	 * whole, so any tags inside of them are ignored.
+	 * <p/>
+	 * When this method returns, the parser is in the {@link State#END_TAG}
+	 * state of the skipped element (e.g. {@link #getTagName()} is valid) and
+	 * the next call to {@link #nextState()} continues right after it.
+	 * 
+	 * @return {@link State#END_TAG}
+	 * 
+	 * @throws IllegalStateException
+	 *             if current parser state is not {@link State#START_TAG}.
+	 * @throws IOException
+	 *             if any error occurs reading data from the underlying input
+	 *             source.
+	 * @throws XMLParseException
+	 *             if the end of the document is reached before the matching
+	 *             end tag or a construct inside the element does not fit in
+	 *             the buffer.
+	 */
+	public State skipElement() throws IllegalStateException, IOException,
+			XMLParseException {
+		if (state != State.START_TAG)
+			throw new IllegalStateException(
+					"skipElement() can only be called when the parser is in a START_TAG state, but this parser is currently in state: "
+							+ state);
+
+		// An empty element has nothing inside it, just report its END_TAG.
+		if (isEmptyElement)
+			return nextState();
+
+		isCDATA = false;
+		isAttributesMarked = false;
+		isNamespaceResolved = false;
+		tagId = Constants.INVALID;
+		skipDepth = 1;
+
+		return skipRemaining();
+	}
+
 	/**
 	 * Used to get the name of the tag currently marked by the parser before
 	 * returning a {@link State#START_TAG} or {@link State#END_TAG} event from
@@ -307,32 +1269,264 @@ public class HPXMLParser {
 					"getTagName() can only be called when the parser is in a START_TAG or END_TAG state, but this parser is currently in state: "
 							+ state);
 
-		int nameStartIdx = sIdx;
+		int nameStartIdx = getTagNameIndex();
 
-		/*
-		 * sIdx points at the opening '<' char. For a START_TAG event, sIdx+1 is
-		 * always the beginning of the tag name. For an END_TAG event, in the
-		 * case of an empty element (<hello/>), sIdx+1 is the start of the tag
-		 * name and in the case of a normal closing tag (</hello>), sIdx+2 is
-		 * the start of the tag name.
-		 */
-		if (state == State.START_TAG || buffer[sIdx + 1] != Constants.FS)
-			nameStartIdx = sIdx + 1;
-		else
-			nameStartIdx = sIdx + 2;
+		// Return a wrapper around the tag name bits of the buffer.
+		return toByteSource(tagNameSource, nameStartIdx,
+				getTagNameEndIndex(nameStartIdx) - nameStartIdx);
+	}
 
-		/*
-		 * Attempt to find the end of the tag name by searching for whitespace
-		 * (e.g. <hello attr="bob"> or tag-terminating constructs (e.g. '>' or
-		 * '/') after the calculated start index to the end of our marked
-		 * bounds.
-		 */
-		int nameEndIdx = ScannerUtil.indexOfAny(Constants.TAG_NAME_DELIM,
-				nameStartIdx, (eIdx - nameStartIdx + 1), buffer);
+	/**
+	 * Used to get a small, stable <code>int</code> ID for the name of the tag
+	 * currently marked by the parser. Every distinct tag name maps to its own
+	 * ID, the same name always maps to the same ID for the life of this parser
+	 * (across documents) and IDs are handed out densely starting at
+	 * <code>0</code>.
+	 * <p/>
+	 * This allows handlers to <code>switch</code> on the tag name without ever
+	 * decoding it. Names known up-front can be registered with
+	 * {@link #registerTag(String)} to get their IDs before parsing starts.
+	 * <p/>
+	 * The tag name bytes are hashed in the same pass that finds the end of the
+	 * name and looked up in a per-parser {@link SymbolTable}; names not seen
+	 * before are added to it.
+	 * 
+	 * @return the ID of the current tag name.
+	 * 
+	 * @throws IllegalStateException
+	 *             if current parser state is not {@link State#START_TAG} or
+	 *             {@link State#END_TAG}.
+	 */
+	public int getTagId() throws IllegalStateException {
+		if (state != State.START_TAG && state != State.END_TAG)
+			throw new IllegalStateException(
+					"getTagId() can only be called when the parser is in a START_TAG or END_TAG state, but this parser is currently in state: "
+							+ state);
 
-		// Return a wrapper around the tag name bits of the buffer.
-		return new DefaultByteSource(nameStartIdx, nameEndIdx - nameStartIdx,
+		if (tagId == Constants.INVALID) {
+			int hash = 0;
+			int nameStartIdx = getTagNameIndex();
+			int i = nameStartIdx;
+
+			// Hash the name while looking for its end, see getTagName()
+			for (byte value; i <= eIdx; i++) {
+				value = buffer[i];
+
+				if (value == Constants.GT || value == Constants.FS
+						|| isAttributeDelim(value))
+					break;
+
+				hash = 31 * hash + value;
+			}
+
+			tagId = tagSymbols.add(hash, buffer, nameStartIdx, i
+					- nameStartIdx);
+		}
+
+		return tagId;
+	}
+
+	/**
+	 * Used to register the given tag name with this parser, returning the ID
+	 * that {@link #getTagId()} will report for tags with that name.
+	 * Registering the same name more than once returns the same ID.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>name</code> is <code>null</code>.
+	 */
+	public int registerTag(String name) throws IllegalArgumentException {
+		if (name == null)
+			throw new IllegalArgumentException("name cannot be null");
+
+		return registerTag(name.getBytes(CodingUtil.UTF8_CHARSET));
+	}
+
+	/**
+	 * Used to register the given tag name bytes with this parser, returning the
+	 * ID that {@link #getTagId()} will report for tags with that name.
+	 * Registering the same name more than once returns the same ID.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>name</code> is <code>null</code>.
+	 */
+	public int registerTag(byte[] name) throws IllegalArgumentException {
+		if (name == null)
+			throw new IllegalArgumentException("name cannot be null");
+
+		return tagSymbols.add(name, 0, name.length);
+	}
+
+	public boolean isNamespaceAware() {
+		return namespaceAware;
+	}
+
+	/**
+	 * Used to set if this parser tracks namespace declarations so
+	 * {@link #getNamespaceId()} and {@link #getAttributeNamespaceId(int)} can
+	 * resolve prefixes. Takes effect for the next input set.
+	 * <p/>
+	 * Declarations (<code>xmlns</code> and <code>xmlns:p</code> attributes)
+	 * are found with a quick scan of each start tag for <code>xmlns</code>;
+	 * only tags that contain it have their attributes tokenized up-front.
+	 * Prefixes and namespace URIs are interned as raw bytes, nothing is
+	 * decoded, and namespace URIs are compared exactly as written (character
+	 * references in them are not resolved).
+	 * <p/>
+	 * {@link #getPrefix()} and {@link #getLocalName()} work either way.
+	 * <p/>
+	 * Default is <code>false</code>.
+	 */
+	public void setNamespaceAware(boolean namespaceAware) {
+		this.namespaceAware = namespaceAware;
+	}
+
+	/**
+	 * Used to get the prefix of the name of the tag currently marked by the
+	 * parser (e.g. <code>soap</code> for <code>&lt;soap:Envelope&gt;</code>).
+	 * <p/>
+	 * The same validity rules described by {@link #getTagName()} apply to the
+	 * returned {@link IByteSource}.
+	 * 
+	 * @return the prefix or <code>null</code> if the name has none.
+	 * 
+	 * @throws IllegalStateException
+	 *             if current parser state is not {@link State#START_TAG} or
+	 *             {@link State#END_TAG}.
+	 */
+	public IByteSource getPrefix() throws IllegalStateException {
+		checkTagState("getPrefix()");
+
+		int index = getTagNameIndex();
+		int colon = ScannerUtil.indexOf(Constants.CL, index,
+				getTagNameEndIndex(index) - index, buffer);
+
+		return (colon == Constants.INVALID ? null : toByteSource(
+				tagNameSource, index, colon - index));
+	}
+
+	/**
+	 * Used to get the name of the tag currently marked by the parser without
+	 * its prefix (e.g. <code>Envelope</code> for
+	 * <code>&lt;soap:Envelope&gt;</code>); this is the whole name if it has
+	 * no prefix.
+	 * <p/>
+	 * The same validity rules described by {@link #getTagName()} apply to the
+	 * returned {@link IByteSource}.
+	 * 
+	 * @throws IllegalStateException
+	 *             if current parser state is not {@link State#START_TAG} or
+	 *             {@link State#END_TAG}.
+	 */
+	public IByteSource getLocalName() throws IllegalStateException {
+		checkTagState("getLocalName()");
+
+		int index = getTagNameIndex();
+		int end = getTagNameEndIndex(index);
+		int colon = ScannerUtil.indexOf(Constants.CL, index, end - index,
 				buffer);
+
+		if (colon != Constants.INVALID)
+			index = colon + 1;
+
+		return toByteSource(tagNameSource, index, end - index);
+	}
+
+	/**
+	 * Used to get the ID of the namespace the tag currently marked by the
+	 * parser is in, resolved from its prefix (or the default namespace if it
+	 * has none) against the declarations in scope. Like tag IDs, every
+	 * distinct namespace URI maps to its own stable ID for the life of this
+	 * parser; URIs known up-front can be registered with
+	 * {@link #registerNamespace(String)}.
+	 * 
+	 * @return the namespace ID or {@link Constants#INVALID} if the tag is in
+	 *         no namespace or its prefix is not bound.
+	 * 
+	 * @throws IllegalStateException
+	 *             if this parser is not namespace aware or the current parser
+	 *             state is not {@link State#START_TAG} or
+	 *             {@link State#END_TAG}.
+	 */
+	public int getNamespaceId() throws IllegalStateException {
+		if (!namespaceAware)
+			throw new IllegalStateException(
+					"getNamespaceId() can only be called on a namespace aware parser, see setNamespaceAware(boolean)");
+
+		checkTagState("getNamespaceId()");
+
+		if (!isNamespaceResolved) {
+			int index = getTagNameIndex();
+			namespaceId = resolveNamespace(index, getTagNameEndIndex(index)
+					- index, true);
+			isNamespaceResolved = true;
+		}
+
+		return namespaceId;
+	}
+
+	/**
+	 * Used to get the ID of the namespace the attribute at the given index on
+	 * the start tag currently marked by the parser is in, see
+	 * {@link #getNamespaceId()}. Attributes without a prefix are in no
+	 * namespace, namespace declarations are in {@link #XMLNS_NAMESPACE_ID}.
+	 * 
+	 * @return the namespace ID or {@link Constants#INVALID} if the attribute
+	 *         is in no namespace or its prefix is not bound.
+	 * 
+	 * @throws IllegalStateException
+	 *             if this parser is not namespace aware or the current parser
+	 *             state is not {@link State#START_TAG}.
+	 * @throws IndexOutOfBoundsException
+	 *             if <code>index</code> is &lt; 0 or &gt;=
+	 *             {@link #getAttributeCount()}.
+	 */
+	public int getAttributeNamespaceId(int index)
+			throws IllegalStateException, IndexOutOfBoundsException {
+		if (!namespaceAware)
+			throw new IllegalStateException(
+					"getAttributeNamespaceId(int) can only be called on a namespace aware parser, see setNamespaceAware(boolean)");
+
+		markAttributes();
+		checkAttributeIndex(index);
+
+		int nameIdx = attributes[index * 4];
+		int nameLength = attributes[index * 4 + 1];
+
+		if (getDeclaredPrefixId(nameIdx, nameLength) != Constants.INVALID)
+			return XMLNS_NAMESPACE_ID;
+
+		return resolveNamespace(nameIdx, nameLength, false);
+	}
+
+	/**
+	 * Used to register the given namespace URI with this parser, returning
+	 * the ID that {@link #getNamespaceId()} will report for tags in that
+	 * namespace. Registering the same URI more than once returns the same ID.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>uri</code> is <code>null</code>.
+	 */
+	public int registerNamespace(String uri) throws IllegalArgumentException {
+		if (uri == null)
+			throw new IllegalArgumentException("uri cannot be null");
+
+		return registerNamespace(uri.getBytes(CodingUtil.UTF8_CHARSET));
+	}
+
+	/**
+	 * Used to register the given namespace URI bytes with this parser,
+	 * returning the ID that {@link #getNamespaceId()} will report for tags in
+	 * that namespace. Registering the same URI more than once returns the same
+	 * ID.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>uri</code> is <code>null</code>.
+	 */
+	public int registerNamespace(byte[] uri) throws IllegalArgumentException {
+		if (uri == null)
+			throw new IllegalArgumentException("uri cannot be null");
+
+		return namespaceSymbols.add(uri, 0, uri.length);
 	}
 
 	public IByteSource getText() throws IllegalStateException {
@@ -344,25 +1538,273 @@ public class HPXMLParser {
 		IByteSource text = null;
 
 		if (isCDATA)
-			text = new DefaultByteSource(sIdx + Constants.CDATA_PFX.length,
+			text = toByteSource(textSource, sIdx + Constants.CDATA_PFX.length,
 					eIdx - sIdx - Constants.CDATA_PFX.length
-							- Constants.CDATA_SFX.length + 1, buffer);
+							- Constants.CDATA_SFX.length + 1);
 		else
-			text = new DefaultByteSource(sIdx, (eIdx - sIdx + 1), buffer);
+			text = toByteSource(textSource, sIdx, (eIdx - sIdx + 1));
 
 		return text;
 	}
 
-	private void reset() {
+	/**
+	 * Used to get the number of attributes declared on the start tag currently
+	 * marked by the parser.
+	 * <p/>
+	 * Attributes are only tokenized the first time any of the
+	 * <code>getAttributeXXX</code> methods is called for a given
+	 * {@link State#START_TAG}, callers that never ask for attributes never pay
+	 * for them.
+	 * 
+	 * @return the number of attributes on the current start tag.
+	 * 
+	 * @throws IllegalStateException
+	 *             if current parser state is not {@link State#START_TAG}.
+	 */
+	public int getAttributeCount() throws IllegalStateException {
+		markAttributes();
+		return attributeCount;
+	}
+
+	/**
+	 * Used to get the name of the attribute at the given index on the start
+	 * tag currently marked by the parser.
+	 * <p/>
+	 * The same validity rules described by {@link #getTagName()} apply to the
+	 * returned {@link IByteSource}.
+	 * 
+	 * @throws IllegalStateException
+	 *             if current parser state is not {@link State#START_TAG}.
+	 * @throws IndexOutOfBoundsException
+	 *             if <code>index</code> is &lt; 0 or &gt;=
+	 *             {@link #getAttributeCount()}.
+	 */
+	public IByteSource getAttributeName(int index)
+			throws IllegalStateException, IndexOutOfBoundsException {
+		markAttributes();
+		checkAttributeIndex(index);
+
+		return toByteSource(attributeNameSource, attributes[index * 4],
+				attributes[index * 4 + 1]);
+	}
+
+	/**
+	 * Used to get the value of the attribute at the given index on the start
+	 * tag currently marked by the parser. The surrounding quotes are not part
+	 * of the value.
+	 * <p/>
+	 * The same validity rules described by {@link #getTagName()} apply to the
+	 * returned {@link IByteSource}.
+	 * 
+	 * @throws IllegalStateException
+	 *             if current parser state is not {@link State#START_TAG}.
+	 * @throws IndexOutOfBoundsException
+	 *             if <code>index</code> is &lt; 0 or &gt;=
+	 *             {@link #getAttributeCount()}.
+	 */
+	public IByteSource getAttributeValue(int index)
+			throws IllegalStateException, IndexOutOfBoundsException {
+		markAttributes();
+		checkAttributeIndex(index);
+
+		return toByteSource(attributeValueSource, attributes[index * 4 + 2],
+				attributes[index * 4 + 3]);
+	}
+
+	/**
+	 * Used to get the value of the attribute with the given name (compared
+	 * byte-for-byte, no decoding is done) on the start tag currently marked by
+	 * the parser.
+	 * 
+	 * @return the value of the attribute or <code>null</code> if the start tag
+	 *         has no attribute with the given name.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>name</code> is <code>null</code>.
+	 * @throws IllegalStateException
+	 *             if current parser state is not {@link State#START_TAG}.
+	 */
+	public IByteSource getAttributeValue(byte[] name)
+			throws IllegalArgumentException, IllegalStateException {
+		if (name == null)
+			throw new IllegalArgumentException("name cannot be null");
+
+		markAttributes();
+
+		for (int i = 0; i < attributeCount; i++) {
+			int j = i * 4;
+
+			if (attributes[j + 1] == name.length
+					&& ArrayUtil.equals(name, attributes[j], buffer))
+				return toByteSource(attributeValueSource, attributes[j + 2],
+						attributes[j + 3]);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Used to get the index in <code>buffer</code> of the first char of the
+	 * name of the tag currently marked by the parser.
+	 */
+	private int getTagNameIndex() {
+		/*
+		 * sIdx points at the opening '<' char. For a START_TAG event, sIdx+1 is
+		 * always the beginning of the tag name. For an END_TAG event, in the
+		 * case of an empty element (<hello/>), sIdx+1 is the start of the tag
+		 * name and in the case of a normal closing tag (</hello>), sIdx+2 is
+		 * the start of the tag name.
+		 */
+		if (state == State.START_TAG || buffer[sIdx + 1] != Constants.FS)
+			return sIdx + 1;
+		else
+			return sIdx + 2;
+	}
+
+	/**
+	 * Used to find the end (exclusive) of the tag name starting at the given
+	 * index by searching for whitespace (e.g. &lt;hello attr="bob"&gt;) or
+	 * tag-terminating constructs (e.g. '&gt;' or '/') up to the end of the
+	 * marked bounds.
+	 */
+	private int getTagNameEndIndex(int nameStartIdx) {
+		return ScannerUtil.indexOfAny(Constants.TAG_NAME_DELIM, nameStartIdx,
+				(eIdx - nameStartIdx + 1), buffer);
+	}
+
+	private void checkTagState(String method) throws IllegalStateException {
+		if (state != State.START_TAG && state != State.END_TAG)
+			throw new IllegalStateException(
+					method
+							+ " can only be called when the parser is in a START_TAG or END_TAG state, but this parser is currently in state: "
+							+ state);
+	}
+
+	private void checkEventState(String method) throws IllegalStateException {
+		if (state != State.START_TAG && state != State.TEXT
+				&& state != State.END_TAG)
+			throw new IllegalStateException(
+					method
+							+ " can only be called when the parser is in a START_TAG, TEXT or END_TAG state, but this parser is currently in state: "
+							+ state);
+	}
+
+	private void checkLineTracking(String method)
+			throws IllegalStateException {
+		if (!isTrackingLines)
+			throw new IllegalStateException(method
+					+ " requires line tracking to be enabled with setLineTracking(true) before the input is set");
+
+		checkEventState(method);
+	}
+
+	/**
+	 * Used to advance the line count from <code>lineIdx</code> up to (not
+	 * including) <code>index</code> in <code>buffer</code>. Positions behind
+	 * <code>lineIdx</code> were already counted and are left alone.
+	 */
+	private void countLines(int index) {
+		while (lineIdx < index) {
+			int lf = ScannerUtil.indexOf(Constants.LF, lineIdx, index
+					- lineIdx, buffer);
+
+			if (lf == Constants.INVALID) {
+				lineIdx = index;
+				break;
+			}
+
+			lineNumber++;
+			lineOffset = gIdx + lf + 1;
+			lineIdx = lf + 1;
+		}
+	}
+
+	/**
+	 * Used to describe the position of <code>index</code> in
+	 * <code>buffer</code> for error messages, including its line and column if
+	 * lines are being tracked.
+	 */
+	private String describePosition(int index) {
+		if (!isTrackingLines || index < lineIdx)
+			return "position " + (gIdx + index);
+
+		countLines(index);
+		return "position " + (gIdx + index) + " (line " + lineNumber
+				+ ", column " + (gIdx + index - lineOffset + 1) + ")";
+	}
+
+	/**
+	 * Used to wrap the given bounds of <code>buffer</code> in an
+	 * {@link IByteSource}, re-pointing the given flyweight instead of
+	 * allocating a new instance if {@link #isReuseByteSources()}.
+	 */
+	private IByteSource toByteSource(FlyweightByteSource flyweight,
+			int index, int length) {
+		if (reuseByteSources)
+			return flyweight.set(index, length, buffer);
+		else
+			return new DefaultByteSource(index, length, buffer, decoder);
+	}
+
+	private void reset() throws IOException {
+		if (input != null)
+			input.close();
+
 		isCDATA = false;
 		isEmptyElement = false;
+		isAttributesMarked = false;
+		attributeCount = 0;
+		tagId = Constants.INVALID;
+
+		// Only the binding of the "xml" prefix is in scope at the start.
+		nsBindings[0] = XML_PREFIX_ID;
+		nsBindings[1] = XML_NAMESPACE_ID;
+		nsBindingCount = 1;
+		nsDepth = 0;
+		isScopeEnded = false;
+		isNamespaceResolved = false;
 
 		idx = 0;
 		gIdx = 0;
 		sIdx = Constants.INVALID;
 		eIdx = Constants.INVALID;
 
+		isTrackingLines = lineTracking;
+		lineNumber = 1;
+		lineOffset = 0;
+		lineIdx = 0;
+
 		bufferLength = 0;
+		normalRefillCount = 0;
+
+		isInputEnded = false;
+		isStarved = false;
+		markIdx = 0;
+		skipDepth = 0;
+
+		encoding = CodingUtil.UTF8_CHARSET;
+		isEncodingDetected = false;
+		prologLength = 0;
+		feedTranscoder = null;
+		decoder.setCharset(encoding);
+
+		// Every document is ASCII until a byte read from it says otherwise.
+		decoder.setAsciiInput(true);
+
+		// The tape's document was never ours to read into.
+		if (tape != null) {
+			buffer = ownBuffer;
+			ownBuffer = null;
+			tape = null;
+			tapePositions = null;
+		}
+
+		tapeSize = 0;
+		tapeIdx = 0;
+
+		// Every new input starts out with the initial buffer size.
+		if (buffer.length > initialBufferSize)
+			buffer = new byte[initialBufferSize];
 
 		state = null;
 		input = null;
@@ -389,32 +1831,59 @@ public class HPXMLParser {
 	 * 
 	 * @throws IOException
 	 *             if any error occurs reading content from the underlying
-	 *             {@link InputStream} provided as the input source for this
+	 *             {@link IInputSource} provided as the input source for this
 	 *             parser.
 	 */
 	private int fillBuffer() throws IOException {
+		return fillBuffer(0);
+	}
+
+	/**
+	 * Used to refill the buffer like {@link #fillBuffer()}, reading as many
+	 * times as it takes to have at least <code>minLength</code> bytes in the
+	 * buffer (counting the kept ones), unless the input is exhausted first.
+	 * {@link IInputSource#read(byte[], int, int)} may return fewer bytes than
+	 * asked for (sockets, pipes, slow streams), but the callers that need to
+	 * look ahead can't do anything with less.
+	 */
+	private int fillBuffer(int minLength) throws IOException {
 		// Calculate how many bytes to keep
 		int bytesKept = bufferLength - idx;
 		// Keep track of how far these bytes indices are shifted.
 		int shiftCount = bufferLength - bytesKept;
 
+		byte[] target = buffer;
+
+		// Account for the lines in the bytes about to be discarded.
+		if (isTrackingLines)
+			countLines(idx);
+
+		/*
+		 * If the buffer had grown to hold an oversized construct, shrink it
+		 * back to its initial size once enough normal refills (ones that would
+		 * fit comfortably in the initial size) have gone by.
+		 */
+		if (buffer.length > initialBufferSize
+				&& bytesKept <= initialBufferSize / 2
+				&& ++normalRefillCount >= bufferShrinkRefills)
+			target = new byte[initialBufferSize];
+
 		// Nothing to keep? Refill the whole buffer!
 		if (bytesKept == 0) {
-			bufferLength = input.read(buffer);
+			buffer = target;
+			bufferLength = input.read(buffer, 0, buffer.length);
 		} else {
-			/*
-			 * TODO: By the time this gets called, idx is in the middle of a tag
-			 * and the comment bounds in simple.xml are not correctly being
-			 * marked. Not sure why. Some error *previous* to this is causing
-			 * the screw up.
-			 */
-			System.out.println("idx: " + idx + ", sIdx: " + sIdx + ", eIdx: "
-					+ eIdx + ", bufferLength: " + bufferLength
-					+ ", bytesKept: " + bytesKept + ", shiftCount: "
-					+ shiftCount);
+			if (DEBUG)
+				System.out.println(LOG_PREFIX + "idx: " + idx + ", sIdx: "
+						+ sIdx + ", eIdx: " + eIdx + ", bufferLength: "
+						+ bufferLength + ", bytesKept: " + bytesKept
+						+ ", shiftCount: " + shiftCount);
 
 			// Move all kept bytes to the beginning of the buffer.
-			System.arraycopy(buffer, idx, buffer, 0, bytesKept);
+			if (idx > 0 || target != buffer)
+				System.arraycopy(buffer, idx, target, 0, bytesKept);
+
+			buffer = target;
 
 			// Fill up-to the remainder of the buffer with new content
 			int bytesRead = input.read(buffer, bytesKept, buffer.length
@@ -428,6 +1897,20 @@ public class HPXMLParser {
 			bufferLength = bytesKept + bytesRead;
 		}
 
+		// Fed bytes only arrive through feed(), never by reading here.
+		while (bufferLength != -1 && bufferLength < minLength
+				&& bufferLength < buffer.length && input != feedSource) {
+			int bytesRead = input.read(buffer, bufferLength, buffer.length
+					- bufferLength);
+
+			if (bytesRead == -1)
+				break;
+
+			bufferLength += bytesRead;
+		}
+
+		trackAscii(bytesKept, bufferLength - bytesKept);
+
 		// Update the global position index counter
 		gIdx += idx;
 
@@ -437,6 +1920,8 @@ public class HPXMLParser {
 		// Update the existing start/end indices by the shifted position amount.
 		sIdx -= shiftCount;
 		eIdx -= shiftCount;
+		markIdx -= shiftCount;
+		lineIdx -= shiftCount;
 
 		// Make sure the shifts stay in valid ranges.
 		if (sIdx < Constants.INVALID)
@@ -454,9 +1939,11 @@ public class HPXMLParser {
 	 * as-needed (by calling {@link #fillBuffer()}) in order to try and find the
 	 * values.
 	 * <p/>
-	 * In the name of performance this method duplicates its search code and
-	 * avoids calling out into helper libraries so it can complete as fast as
-	 * possible.
+	 * The search itself is done by
+	 * {@link ScannerUtil#indexOf(byte[], int, int, byte[])} which compares 8
+	 * bytes at a time, falling back to a byte-by-byte loop for the tail of the
+	 * buffer. Long runs of character data between tags are where nearly all of
+	 * the scanning time goes, and those are skipped a word at a time.
 	 * 
 	 * @param value
 	 *            The <code>byte</code> value to find the index of.
@@ -485,8 +1972,10 @@ public class HPXMLParser {
 		 * can check without doing a fill itself; it keeps the logic up there
 		 * simpler.
 		 */
-		if (idx + (9 > values.length ? 9 : values.length) >= bufferLength) {
-			fillBuffer();
+		int lookahead = (9 > values.length ? 9 : values.length);
+
+		if (idx + lookahead >= bufferLength) {
+			fillBuffer(lookahead + 1);
 
 			/*
 			 * If we hit EOF as a result of trying to refill the buffer, then we
@@ -500,94 +1989,943 @@ public class HPXMLParser {
 				return Constants.INVALID;
 		}
 
-		int index = Constants.INVALID;
-		int valuesLength = values.length;
+		// Scan the buffer for the values given.
+		int index = ScannerUtil.indexOf(values, idx, bufferLength - idx,
+				buffer);
 
 		/*
-		 * Begin scanning the buffer for the values given. Stop scanning as soon
-		 * as a valid index is found (or we hit the end of our buffer).
-		 */
-		for (int i = idx; index == Constants.INVALID && i < bufferLength; i++) {
-			int j = 0;
-
-			// Increment j every time we match a value to the buffer
-			for (; j < valuesLength && values[j] == buffer[i + j]; j++) {
-				// no-op, the for-loop header does all the work.
+		 * We couldn't find the values anywhere in the buffer and we need more
+		 * bytes to scan. If our idx is > 0, that means there are old byte
+		 * values we have already processed that we can replace with new values
+		 * from the underlying stream in order to continue our search for the
+		 * given value. If idx == 0 and the buffer is full, there is no old data
+		 * that can be expunged and replaced; the construct we are scanning
+		 * fills the entire buffer, so we grow it (up to maxBufferSize) to make
+		 * room for more.
+		 * 
+		 * We keep going until the values are found, the input is exhausted or
+		 * the buffer cannot grow any further.
+		 */
+		while (index == Constants.INVALID) {
+			// Fed bytes only arrive through feed(), never by reading here.
+			if (input == feedSource) {
+				isStarved = !isInputEnded;
+				break;
 			}
 
+			if (idx == 0 && bufferLength == buffer.length && !growBuffer())
+				break;
+
+			// Replace all old data with at least 1 new byte (if available)
+			int bytesKept = fillBuffer(bufferLength - idx + 1);
+
+			// Nothing new was read, the input is exhausted.
+			if (bufferLength <= bytesKept)
+				break;
+
 			/*
-			 * If j was incremented by the for-loop to valuesLength, that means
-			 * we matched every value to the buffer and we have found our
-			 * starting index.
-			 * 
-			 * If j is less than valuesLength though, it means we matched j
-			 * number of values and can skip ahead (j+1) indices and try to
-			 * match again. We add j down here and the for-loop adds +1 for us
-			 * on the next iteration.
+			 * Try again to find the given value, skipping all the stuff we
+			 * already scanned. We back up values.length-1 bytes so a match
+			 * straddling the old end of the buffer is found.
 			 */
-			if (j == valuesLength)
-				index = i;
-			else
-				i += j;
+			int from = bytesKept - (values.length - 1);
+
+			if (from < 0)
+				from = 0;
+
+			index = ScannerUtil.indexOf(values, from, bufferLength - from,
+					buffer);
 		}
 
+		return index;
+	}
+
+	/**
+	 * Used to mark the bounds of every attribute name and value inside of the
+	 * start tag currently marked by <code>sIdx</code> and <code>eIdx</code>.
+	 * This is done at most once per {@link State#START_TAG}.
+	 * <p/>
+	 * The tokenizing is lenient in the same spirit as the rest of the parser:
+	 * attributes without a value (e.g. &lt;option selected&gt;) are given an
+	 * empty value and unquoted values run to the next whitespace.
+	 */
+	private void markAttributes() throws IllegalStateException {
 		/*
-		 * We couldn't find the values anywhere in the buffer and we need more
-		 * bytes to scan. If our idx is > 0, that means there are old byte
-		 * values we have already processed that we can replace with new values
-		 * from the underlying stream in order to continue our search for the
-		 * given value. If idx == 0, that means the entire buffer is already
-		 * full and there is no old data that can be expunged and replaced; we
-		 * would just have to report to the caller that we couldn't find the
-		 * value.
+		 * The END_TAG of an empty element shares its marks with the START_TAG,
+		 * but attributes are only reported for START_TAG events.
 		 */
-		if (index == Constants.INVALID && idx > 0) {
-			// Replace all old data with new data from input (if available)
-			int bytesKept = fillBuffer();
+		if (state != State.START_TAG)
+			throw new IllegalStateException(
+					"Attributes can only be retrieved when the parser is in a START_TAG state, but this parser is currently in state: "
+							+ state);
 
-			/*
-			 * Try 1 more time to find the given value, starting the scan at the
-			 * beginning of the new content we just read in and skipping all the
-			 * stuff we already scanned the first time.
-			 */
-			for (int i = bytesKept; index == Constants.INVALID
-					&& i < bufferLength; i++) {
-				int j = 0;
+		if (isAttributesMarked)
+			return;
+
+		isAttributesMarked = true;
+		attributeCount = 0;
+
+		// Attributes end at the '>' or the '/' of an empty element '/>'
+		int end = (buffer[eIdx - 1] == Constants.FS ? eIdx - 1 : eIdx);
+
+		// Start looking for attributes right after the tag name.
+		int i = ScannerUtil.indexOfAny(Constants.TAG_NAME_DELIM, sIdx + 1, end
+				- sIdx - 1, buffer);
+
+		if (i == Constants.INVALID)
+			return;
+
+		while (true) {
+			// Skip whitespace (and any stray '/') preceding the name.
+			while (i < end
+					&& (isAttributeDelim(buffer[i]) || buffer[i] == Constants.FS))
+				i++;
+
+			if (i >= end)
+				break;
+
+			int nameIdx = i;
+
+			// The name runs until whitespace, '=' or the end of the tag.
+			while (i < end && buffer[i] != Constants.EQ
+					&& !isAttributeDelim(buffer[i]))
+				i++;
+
+			int nameLength = i - nameIdx;
+
+			// Skip any whitespace between the name and '='
+			while (i < end && isAttributeDelim(buffer[i]))
+				i++;
 
-				// Increment j every time we match a value to the buffer
-				for (; j < valuesLength && values[j] == buffer[i + j]; j++) {
-					// no-op, the for-loop header does all the work.
+			int valueIdx = nameIdx + nameLength;
+			int valueLength = 0;
+
+			if (i < end && buffer[i] == Constants.EQ) {
+				i++;
+
+				// Skip any whitespace between the '=' and value.
+				while (i < end && isAttributeDelim(buffer[i]))
+					i++;
+
+				if (i < end
+						&& (buffer[i] == Constants.QT || buffer[i] == Constants.AP)) {
+					byte quote = buffer[i++];
+					valueIdx = i;
+
+					while (i < end && buffer[i] != quote)
+						i++;
+
+					valueLength = i - valueIdx;
+
+					// Step past the closing quote.
+					i++;
+				} else {
+					valueIdx = i;
+
+					while (i < end && !isAttributeDelim(buffer[i]))
+						i++;
+
+					valueLength = i - valueIdx;
 				}
+			}
+
+			int j = attributeCount * 4;
+			attributes = ArrayUtil.ensureCapacity(j + 4, attributes);
+
+			attributes[j] = nameIdx;
+			attributes[j + 1] = nameLength;
+			attributes[j + 2] = valueIdx;
+			attributes[j + 3] = valueLength;
+			attributeCount++;
+		}
+	}
+
+	/**
+	 * Used when a namespace aware parser reports a {@link State#START_TAG} to
+	 * open the scope of the element, binding every namespace it declares.
+	 */
+	private void pushScope() {
+		int count = 0;
+
+		// Most tags declare nothing, only tokenize the ones that might.
+		if (ScannerUtil.indexOf(Constants.NS, sIdx, eIdx - sIdx, buffer) != Constants.INVALID) {
+			markAttributes();
+
+			for (int i = 0; i < attributeCount; i++) {
+				int j = i * 4;
+				int prefixId = getDeclaredPrefixId(attributes[j],
+						attributes[j + 1]);
+
+				if (prefixId == Constants.INVALID)
+					continue;
+
+				// xmlns="" undeclares the default namespace.
+				int uriLength = attributes[j + 3];
+				int uriId = (uriLength == 0 ? Constants.INVALID
+						: namespaceSymbols.add(buffer, attributes[j + 2],
+								uriLength));
+
+				int k = nsBindingCount * 2;
+				nsBindings = ArrayUtil.ensureCapacity(k + 2, nsBindings);
+				nsBindings[k] = prefixId;
+				nsBindings[k + 1] = uriId;
+				nsBindingCount++;
+				count++;
+			}
+		}
+
+		nsScopes = ArrayUtil.ensureCapacity(nsDepth + 1, nsScopes);
+		nsScopes[nsDepth++] = count;
+	}
+
+	/**
+	 * Used to close the scope of the element whose {@link State#END_TAG} was
+	 * reported last, unbinding what it declared.
+	 */
+	private void popScope() {
+		isScopeEnded = false;
+
+		if (nsDepth > 0)
+			nsBindingCount -= nsScopes[--nsDepth];
+	}
+
+	/**
+	 * Used to get the (interned) ID of the prefix the attribute with the
+	 * given name declares, e.g. <code>p</code> for <code>xmlns:p</code> and
+	 * the default prefix for <code>xmlns</code>.
+	 * 
+	 * @return the prefix ID or {@link Constants#INVALID} if the attribute is
+	 *         not a namespace declaration.
+	 */
+	private int getDeclaredPrefixId(int nameIdx, int nameLength) {
+		int length = Constants.NS.length;
+
+		if (nameLength < length || !ArrayUtil.equals(Constants.NS, nameIdx, buffer))
+			return Constants.INVALID;
+		if (nameLength == length)
+			return DEFAULT_PREFIX_ID;
+		if (buffer[nameIdx + length] != Constants.CL || nameLength == length + 1)
+			return Constants.INVALID;
+
+		return prefixSymbols.add(buffer, nameIdx + length + 1, nameLength
+				- length - 1);
+	}
+
+	/**
+	 * Used to resolve the prefix of the given (tag or attribute) name against
+	 * the namespace declarations in scope.
+	 * 
+	 * @param useDefault
+	 *            <code>true</code> if a name without a prefix is in the
+	 *            default namespace (tags), <code>false</code> if it is in no
+	 *            namespace (attributes).
+	 * 
+	 * @return the namespace ID or {@link Constants#INVALID}.
+	 */
+	private int resolveNamespace(int nameIdx, int nameLength,
+			boolean useDefault) {
+		int colon = ScannerUtil.indexOf(Constants.CL, nameIdx, nameLength,
+				buffer);
+		int prefixId;
+
+		if (colon == Constants.INVALID) {
+			if (!useDefault)
+				return Constants.INVALID;
+
+			prefixId = DEFAULT_PREFIX_ID;
+		} else {
+			// A prefix never declared can't be bound.
+			prefixId = prefixSymbols.get(buffer, nameIdx, colon - nameIdx);
 
-				/*
-				 * If j was incremented by the for-loop to valuesLength, that
-				 * means we matched every value to the buffer and we have found
-				 * our starting index.
-				 * 
-				 * If j is less than valuesLength though, it means we matched j
-				 * number of values and can skip ahead (j+1) indices and try to
-				 * match again. We add j down here and the for-loop adds +1 for
-				 * us on the next iteration.
-				 */
-				if (j == valuesLength)
-					index = i;
+			if (prefixId == Constants.INVALID)
+				return Constants.INVALID;
+		}
+
+		// Innermost declaration wins.
+		for (int k = (nsBindingCount - 1) * 2; k >= 0; k -= 2) {
+			if (nsBindings[k] == prefixId)
+				return nsBindings[k + 1];
+		}
+
+		return Constants.INVALID;
+	}
+
+	private void checkAttributeIndex(int index)
+			throws IndexOutOfBoundsException {
+		if (index < 0 || index >= attributeCount)
+			throw new IndexOutOfBoundsException("index [" + index
+					+ "] must be >= 0 and < getAttributeCount() ["
+					+ attributeCount + "]");
+	}
+
+	private static boolean isAttributeDelim(byte value) {
+		return (value == Constants.SP || value == Constants.TB
+				|| value == Constants.LF || value == Constants.CR);
+	}
+
+	/**
+	 * Used to check if the given newly read bytes keep the document pure
+	 * ASCII. As long as it is, values are decoded without checking them for
+	 * non-ASCII bytes one by one; once it isn't, no more checks are done.
+	 */
+	private void trackAscii(int index, int length) {
+		if (length > 0 && decoder.isAsciiInput()
+				&& !ScannerUtil.isAscii(index, length, buffer))
+			decoder.setAsciiInput(false);
+	}
+
+	/**
+	 * Used to make sure the bytes following the '&lt;' at <code>sIdx</code>
+	 * that identify the kind of tag (at most the length of the CDATA prefix)
+	 * are in the buffer. If the '&lt;' was found too close to the end of the
+	 * buffer, the buffer is topped off starting at <code>sIdx</code>.
+	 * <p/>
+	 * This method assumes <code>idx == sIdx</code>.
+	 */
+	private void ensureTagLookahead() throws IOException {
+		if (sIdx + Constants.CDATA_PFX.length > bufferLength) {
+			fillBuffer(Constants.CDATA_PFX.length);
+
+			// Fed input may simply not have caught up yet.
+			if (sIdx + Constants.CDATA_PFX.length > bufferLength
+					&& input == feedSource && !isInputEnded)
+				isStarved = true;
+		}
+	}
+
+	/**
+	 * Used by {@link #skipElement()} to find the given suffix closing the
+	 * construct starting at <code>sIdx</code>.
+	 * 
+	 * @return the index of the last byte of the suffix.
+	 */
+	private int scanSkipped(byte[] suffix, String description)
+			throws IOException, XMLParseException {
+		int index = scan(suffix);
+
+		if (index == Constants.INVALID) {
+			if (isStarved)
+				return Constants.INVALID;
+
+			throw new XMLParseException("Unable to find closing "
+					+ description + " for the construct starting at "
+					+ describePosition(sIdx) + " in the XML document while skipping an element. Either the XML is malformed or contains individual TAG/TEXT constructs so long that the buffer would need to grow beyond its maximum size (hpjxp.maxBufferSize) to hold it in memory at one time.");
+		}
+
+		return index + suffix.length - 1;
+	}
+
+	/**
+	 * Used by {@link #skipElement()} to skip everything up to and including
+	 * the end tag that brings <code>skipDepth</code> back to 0. When fed input
+	 * runs out part way, <code>skipDepth</code> is kept so the next call to
+	 * {@link #nextState()} resumes the skip.
+	 */
+	private State skipRemaining() throws IOException, XMLParseException {
+		if (tape != null)
+			return skipTapeRemaining();
+
+		while (skipDepth > 0) {
+			idx = eIdx + 1;
+			markIdx = idx;
+			sIdx = scan(Constants.A_LT);
+
+			// Skipped character data never needs to be looked at again.
+			if (isStarved) {
+				markIdx = bufferLength;
+				return starve();
+			}
+
+			if (bufferLength == -1)
+				throw new XMLParseException(
+						"Reached the end of the XML document while skipping an element; the document is missing one or more end tags.");
+
+			// No '<' in the whole buffer, skip all of it and keep looking.
+			if (sIdx == Constants.INVALID) {
+				eIdx = bufferLength - 1;
+				continue;
+			}
+
+			idx = sIdx;
+			markIdx = idx;
+			ensureTagLookahead();
+
+			if (isStarved)
+				return starve();
+
+			int delta = 0;
+
+			switch (buffer[sIdx + 1]) {
+			// <?, processing instruction
+			case Constants.QM:
+				eIdx = scanSkipped(Constants.PI_SFX, "'?>'");
+				break;
+
+			// <!, comment, CDATA block or other declaration (e.g. DOCTYPE)
+			case Constants.EP:
+				if (ArrayUtil.equals(Constants.CMT_PFX, sIdx, buffer))
+					eIdx = scanSkipped(Constants.CMT_SFX, "'-->'");
+				else if (ArrayUtil.equals(Constants.CDATA_PFX, sIdx, buffer))
+					eIdx = scanSkipped(Constants.CDATA_SFX, "']]>'");
 				else
-					i += j;
+					eIdx = scanSkipped(Constants.A_GT, "'>'");
+				break;
+
+			// </, end tag
+			case Constants.FS:
+				eIdx = scanSkipped(Constants.A_GT, "'>'");
+				delta = -1;
+				break;
+
+			// Start tag, only opens a new level if it isn't empty (<bob/>)
+			default:
+				eIdx = scanSkipped(Constants.A_GT, "'>'");
+				delta = 1;
+				break;
 			}
+
+			// The depth only changes once the whole construct was found.
+			if (isStarved)
+				return starve();
+
+			if (delta == 1 && buffer[eIdx - 1] == Constants.FS)
+				delta = 0;
+
+			skipDepth += delta;
 		}
 
-		return index;
+		// sIdx and eIdx now mark the matching end tag.
+		isScopeEnded = namespaceAware;
+		return (state = State.END_TAG);
+	}
+
+	/**
+	 * Used by {@link #nextState()} in namespace-aware mode to open the scope
+	 * of a START_TAG or close that of an END_TAG.
+	 */
+	private void trackScope() {
+		if (namespaceAware) {
+			if (state == State.START_TAG)
+				pushScope();
+			else if (state == State.END_TAG)
+				isScopeEnded = true;
+		}
+	}
+
+	/**
+	 * Tape mode counterpart of the scanning done by {@link #nextState()}.
+	 */
+	private State nextTapeState() throws XMLParseException {
+		int kind;
+
+		// Comments, PIs and declarations don't produce events.
+		while ((kind = nextTapeConstruct()) == TAPE_SKIPPED)
+			;
+
+		switch (kind) {
+		case TAPE_NONE:
+			return (state = State.END_DOCUMENT);
+		case TAPE_TEXT:
+			state = State.TEXT;
+			break;
+		case TAPE_CDATA:
+			isCDATA = true;
+			state = State.TEXT;
+			break;
+		case TAPE_EMPTY:
+			isEmptyElement = true;
+			state = State.START_TAG;
+			break;
+		case TAPE_START:
+			state = State.START_TAG;
+			break;
+		default:
+			state = State.END_TAG;
+			break;
+		}
+
+		trackScope();
+		return state;
+	}
+
+	/**
+	 * Tape mode counterpart of {@link #skipRemaining()}.
+	 */
+	private State skipTapeRemaining() throws XMLParseException {
+		while (skipDepth > 0) {
+			switch (nextTapeConstruct()) {
+			case TAPE_NONE:
+				throw new XMLParseException(
+						"Reached the end of the XML document while skipping an element; the document is missing one or more end tags.");
+			case TAPE_START:
+				skipDepth++;
+				break;
+			case TAPE_END:
+				skipDepth--;
+				break;
+			}
+		}
+
+		// sIdx and eIdx now mark the matching end tag.
+		isScopeEnded = namespaceAware;
+		return (state = State.END_TAG);
+	}
+
+	/**
+	 * Used in tape mode to mark the bounds of the construct following the
+	 * last one marked with <code>sIdx</code> and <code>eIdx</code>, the way
+	 * the handleXXX methods do, taking positions from the tape instead of
+	 * scanning for them.
+	 * 
+	 * @return the kind of construct, one of the <code>TAPE_XXX</code>
+	 *         constants.
+	 * 
+	 * @throws XMLParseException
+	 *             if the end of the construct isn't on the tape.
+	 */
+	private int nextTapeConstruct() throws XMLParseException {
+		idx = eIdx + 1;
+
+		// A '>' outside of any construct is just character data.
+		while (tapeIdx < tapeSize
+				&& (tapePositions[tapeIdx] < idx || buffer[tapePositions[tapeIdx]] != Constants.LT))
+			tapeIdx++;
+
+		if (tapeIdx == tapeSize) {
+			if (idx >= bufferLength)
+				return TAPE_NONE;
+
+			// Trailing character data, see nextState().
+			sIdx = bufferLength;
+		} else
+			sIdx = tapePositions[tapeIdx];
+
+		if (sIdx > idx) {
+			eIdx = sIdx - 1;
+			sIdx = idx;
+			return TAPE_TEXT;
+		}
+
+		switch (sIdx + 1 < bufferLength ? buffer[sIdx + 1] : 0) {
+		// <?, processing instruction
+		case Constants.QM:
+			eIdx = findTapeEnd(Constants.PI_SFX, "'?>'",
+					"processing-instruction block");
+			return TAPE_SKIPPED;
+
+		// <!, comment, CDATA block or other declaration (e.g. DOCTYPE)
+		case Constants.EP:
+			if (isTapePrefix(Constants.CMT_PFX)) {
+				eIdx = findTapeEnd(Constants.CMT_SFX, "'-->'", "comment");
+				return TAPE_SKIPPED;
+			}
+
+			if (isTapePrefix(Constants.CDATA_PFX)) {
+				eIdx = findTapeEnd(Constants.CDATA_SFX, "']]>'",
+						"CDATA block");
+				return TAPE_CDATA;
+			}
+
+			eIdx = findTapeEnd(Constants.A_GT, "'>'", "declaration");
+			return TAPE_SKIPPED;
+
+		// A normal tag, see handleTag().
+		default:
+			eIdx = findTapeEnd(Constants.A_GT, "'>'", "tag");
+
+			if (buffer[eIdx - 1] == Constants.FS)
+				return TAPE_EMPTY;
+
+			return (buffer[sIdx + 1] == Constants.FS ? TAPE_END : TAPE_START);
+		}
+	}
+
+	private boolean isTapePrefix(byte[] prefix) {
+		return (sIdx + prefix.length <= bufferLength && ArrayUtil.equals(
+				prefix, sIdx, buffer));
+	}
+
+	/**
+	 * Used in tape mode to find the first '&gt;' on the tape after the
+	 * '&lt;' at <code>tapeIdx</code> that ends the given suffix, moving
+	 * <code>tapeIdx</code> past it.
+	 * 
+	 * @return the index of the '&gt;'.
+	 */
+	private int findTapeEnd(byte[] suffix, String description,
+			String construct) throws XMLParseException {
+		// The suffix can't start before the construct does.
+		int from = sIdx + suffix.length - 1;
+
+		for (int i = tapeIdx + 1; i < tapeSize; i++) {
+			int position = tapePositions[i];
+
+			if (position >= from
+					&& buffer[position] == Constants.GT
+					&& ArrayUtil.equals(suffix, position - suffix.length + 1,
+							buffer)) {
+				tapeIdx = i + 1;
+				return position;
+			}
+		}
+
+		throw new XMLParseException("Unable to find closing " + description
+				+ " for the " + construct + " starting at "
+				+ describePosition(sIdx) + " in the XML document.");
+	}
+
+	/**
+	 * Used to grow the buffer geometrically (doubling it), up to
+	 * <code>maxBufferSize</code>, when a single construct doesn't fit in it.
+	 * 
+	 * @return <code>true</code> if the buffer was grown, <code>false</code> if
+	 *         it is already at its maximum size.
+	 */
+	private boolean growBuffer() {
+		if (buffer.length >= maxBufferSize)
+			return false;
+
+		long capacity = buffer.length * 2L;
+
+		if (capacity > maxBufferSize)
+			capacity = maxBufferSize;
+
+		buffer = ArrayUtil.ensureCapacity((int) capacity, 0f, buffer);
+		normalRefillCount = 0;
+
+		if (buffer.length > bufferHighWaterMark)
+			bufferHighWaterMark = buffer.length;
+
+		return true;
+	}
+
+	/**
+	 * Used to roll the parser back to <code>markIdx</code>, the beginning of
+	 * the construct it ran out of fed bytes in, so the next call to
+	 * {@link #nextState()} parses it again from the start once more bytes
+	 * have been fed.
+	 */
+	private State starve() {
+		isStarved = false;
+
+		idx = markIdx;
+		sIdx = Constants.INVALID;
+		eIdx = markIdx - 1;
+
+		return (state = State.NEED_MORE_INPUT);
+	}
+
+	private void checkFeedInput() throws IllegalStateException {
+		if (input != feedSource)
+			throw new IllegalStateException(
+					"feed(...) can only be called after setFeedInput()");
+		if (isInputEnded)
+			throw new IllegalStateException(
+					"feed(...) cannot be called after endOfInput()");
+	}
+
+	/**
+	 * Used to append fed bytes to the buffer; they are held back until the
+	 * encoding is known and transcoded first for UTF-16 documents.
+	 */
+	private void feedBytes(byte[] data, int index, int length)
+			throws IOException, XMLParseException {
+		if (!isEncodingDetected) {
+			if (prolog == null)
+				prolog = new byte[64];
+
+			prolog = ArrayUtil.ensureCapacity(prologLength + length, prolog);
+			System.arraycopy(data, index, prolog, prologLength, length);
+			prologLength += length;
+
+			int skip = detectEncoding(prolog, prologLength, false);
+
+			if (skip != Constants.INVALID)
+				flushProlog(skip);
+
+			return;
+		}
+
+		if (feedTranscoder != null) {
+			feedTranscoder.append(data, index, length);
+
+			// Also leaves room for the last bytes written by endOfInput().
+			ensureFeedCapacity(UTF16Transcoder.maxOutput(feedTranscoder
+					.getRemaining()));
+
+			int count = feedTranscoder.transcode(buffer, bufferLength,
+					buffer.length - bufferLength, false);
+			trackAscii(bufferLength, count);
+			bufferLength += count;
+			return;
+		}
+
+		ensureFeedCapacity(length);
+		System.arraycopy(data, index, buffer, bufferLength, length);
+		trackAscii(bufferLength, length);
+		bufferLength += length;
+	}
+
+	/**
+	 * Used in push mode, once the encoding is known, to feed the bytes held
+	 * back in <code>prolog</code> minus the byte order mark of
+	 * <code>skip</code> bytes.
+	 */
+	private void flushProlog(int skip) throws IOException, XMLParseException {
+		isEncodingDetected = true;
+
+		// Positions count the byte order mark, except in transcoded bytes.
+		if (isUTF16())
+			feedTranscoder = new UTF16Transcoder(
+					encoding == StandardCharsets.UTF_16BE);
+		else
+			gIdx += skip;
+
+		lineOffset = gIdx;
+
+		if (prologLength > skip)
+			feedBytes(prolog, skip, prologLength - skip);
+
+		prologLength = 0;
+	}
+
+	/**
+	 * Used by {@link #setInput(IInputSource)}, right after the initial fill,
+	 * to detect the encoding of the document from the first bytes read
+	 * (reading more if needed), skip its byte order mark and set up
+	 * transcoding for UTF-16.
+	 */
+	private void initEncoding() throws IOException, XMLParseException {
+		int length = (bufferLength < 0 ? 0 : bufferLength);
+		int skip;
+
+		while ((skip = detectEncoding(buffer, length, false)) == Constants.INVALID) {
+			int count = (length == buffer.length ? -1 : input.read(buffer,
+					length, buffer.length - length));
+
+			if (count == -1) {
+				skip = detectEncoding(buffer, length, true);
+				break;
+			}
+
+			length += count;
+		}
+
+		isEncodingDetected = true;
+
+		if (isUTF16()) {
+			input = new UTF16InputSource(input,
+					encoding == StandardCharsets.UTF_16BE, buffer, skip, length
+							- skip);
+			bufferLength = 0;
+			decoder.setAsciiInput(true);
+			fillBuffer();
+			return;
+		}
+
+		// Positions still count the byte order mark.
+		gIdx += skip;
+		lineOffset = gIdx;
+
+		if (skip > 0)
+			System.arraycopy(buffer, skip, buffer, 0, length - skip);
+
+		if (bufferLength != -1)
+			bufferLength = length - skip;
+
+		// The byte order mark or bytes read since the fill aren't tracked.
+		decoder.setAsciiInput(true);
+		trackAscii(0, bufferLength);
+	}
+
+	private boolean isUTF16() {
+		return (encoding == StandardCharsets.UTF_16BE || encoding == StandardCharsets.UTF_16LE);
+	}
+
+	/**
+	 * Used to detect the encoding of a document from its first
+	 * <code>length</code> bytes: a byte order mark, a '&lt;' encoded as
+	 * UTF-16 or the <code>encoding</code> of its XML declaration, in that
+	 * order. UTF-8 is assumed if none of them is there.
+	 * <p/>
+	 * Sets <code>encoding</code> and switches the decoder to it (UTF-16 is
+	 * decoded as the UTF-8 it is transcoded to).
+	 * 
+	 * @param isComplete
+	 *            <code>true</code> if no more bytes can be had, so the
+	 *            encoding must be decided on the bytes given.
+	 * 
+	 * @return the length of the byte order mark to skip or
+	 *         {@link Constants#INVALID} if more bytes are needed to tell.
+	 * 
+	 * @throws XMLParseException
+	 *             if the declared encoding isn't supported.
+	 */
+	private int detectEncoding(byte[] data, int length, boolean isComplete)
+			throws XMLParseException {
+		int b0 = (length > 0 ? data[0] & 0xFF : Constants.INVALID);
+		int b1 = (length > 1 ? data[1] & 0xFF : Constants.INVALID);
+
+		// Could still turn out to be a byte order mark or UTF-16.
+		if (!isComplete
+				&& length < 3
+				&& (b0 == Constants.INVALID || b0 == 0xEF || b0 == 0xFE
+						|| b0 == 0xFF || b0 == 0 || b0 == Constants.LT))
+			return Constants.INVALID;
+
+		if (b0 == 0xEF && b1 == 0xBB && length > 2 && (data[2] & 0xFF) == 0xBF)
+			return setEncoding(CodingUtil.UTF8_CHARSET, 3);
+		if (b0 == 0xFE && b1 == 0xFF)
+			return setUTF16Encoding(StandardCharsets.UTF_16BE, 2);
+		if (b0 == 0xFF && b1 == 0xFE)
+			return setUTF16Encoding(StandardCharsets.UTF_16LE, 2);
+		if (b0 == 0 && b1 == Constants.LT)
+			return setUTF16Encoding(StandardCharsets.UTF_16BE, 0);
+		if (b0 == Constants.LT && b1 == 0)
+			return setUTF16Encoding(StandardCharsets.UTF_16LE, 0);
+
+		if (b0 == Constants.LT && b1 == Constants.QM) {
+			int end = ScannerUtil.indexOf(Constants.PI_SFX, 0, length, data);
+
+			if (end == Constants.INVALID) {
+				if (!isComplete && length < XML_DECL_LIMIT)
+					return Constants.INVALID;
+			} else if (length > Constants.XML_DECL_PFX.length
+					&& ArrayUtil.equals(Constants.XML_DECL_PFX, 0, data))
+				return setEncoding(parseDeclaredEncoding(data, end), 0);
+		}
+
+		return setEncoding(CodingUtil.UTF8_CHARSET, 0);
+	}
+
+	/**
+	 * Used to parse the value of the <code>encoding</code> pseudo-attribute of
+	 * the XML declaration ending at <code>end</code>.
+	 * 
+	 * @return the declared charset or UTF-8 if there is none.
+	 */
+	private Charset parseDeclaredEncoding(byte[] data, int end)
+			throws XMLParseException {
+		int i = ScannerUtil.indexOf(Constants.ENCODING,
+				Constants.XML_DECL_PFX.length, end
+						- Constants.XML_DECL_PFX.length, data);
+
+		if (i == Constants.INVALID)
+			return CodingUtil.UTF8_CHARSET;
+
+		for (i += Constants.ENCODING.length; i < end && isWhitespace(data[i]); i++)
+			;
+
+		if (i == end || data[i++] != Constants.EQ)
+			return CodingUtil.UTF8_CHARSET;
+
+		for (; i < end && isWhitespace(data[i]); i++)
+			;
+
+		if (i == end || (data[i] != Constants.QT && data[i] != Constants.AP))
+			return CodingUtil.UTF8_CHARSET;
+
+		byte quote = data[i++];
+		int valueEnd = ScannerUtil.indexOf(quote, i, end - i, data);
+
+		if (valueEnd == Constants.INVALID)
+			return CodingUtil.UTF8_CHARSET;
+
+		String name = new String(data, i, valueEnd - i,
+				CodingUtil.ISO_8859_1_CHARSET);
+
+		try {
+			return Charset.forName(name);
+		} catch (IllegalArgumentException e) {
+			throw new XMLParseException("Unsupported encoding \"" + name
+					+ "\" declared by the XML document");
+		}
+	}
+
+	/**
+	 * Used to make the given UTF-16 charset the encoding of the current
+	 * document, which is then transcoded to (and decoded as) UTF-8.
+	 * 
+	 * @return <code>skip</code>, for convenience.
+	 */
+	private int setUTF16Encoding(Charset charset, int skip) {
+		encoding = charset;
+		decoder.setCharset(CodingUtil.UTF8_CHARSET);
+		return skip;
+	}
+
+	/**
+	 * Used to make the given ASCII compatible <code>charset</code> the
+	 * encoding of the current document.
+	 * 
+	 * @return <code>skip</code>, for convenience.
+	 */
+	private int setEncoding(Charset charset, int skip)
+			throws XMLParseException {
+		decoder.setCharset(charset);
+
+		/*
+		 * A declaration read as ASCII can't be right about an encoding that
+		 * isn't ASCII compatible (e.g. encoding="UTF-16" without a BOM), the
+		 * bytes say otherwise; go by the bytes.
+		 */
+		if (!decoder.isAsciiCompatible()) {
+			charset = CodingUtil.UTF8_CHARSET;
+			decoder.setCharset(charset);
+		} else if (!decoder.isSingleByte()
+				&& !charset.equals(CodingUtil.UTF8_CHARSET)) {
+			decoder.setCharset(CodingUtil.UTF8_CHARSET);
+			throw new XMLParseException("Unsupported encoding \""
+					+ charset.name()
+					+ "\" declared by the XML document; only UTF-8, UTF-16 and single-byte charsets such as ISO-8859-1 or windows-1252 are supported");
+		}
+
+		encoding = charset;
+		return skip;
+	}
+
+	private static boolean isWhitespace(byte value) {
+		return (value == Constants.SP || value == Constants.TB
+				|| value == Constants.LF || value == Constants.CR);
+	}
+
+	/**
+	 * Used by {@link #feed(byte[], int, int)} to make room for
+	 * <code>length</code> more bytes at the end of the buffer, first by
+	 * discarding the bytes already parsed and then by growing it.
+	 */
+	private void ensureFeedCapacity(int length) throws IOException,
+			XMLParseException {
+		if (buffer.length - bufferLength >= length)
+			return;
+
+		if (idx > 0)
+			fillBuffer();
+
+		while (buffer.length - bufferLength < length) {
+			if (!growBuffer())
+				throw new XMLParseException("Unable to buffer " + length
+						+ " more fed bytes at position " + (gIdx + bufferLength)
+						+ " in the XML document; " + (bufferLength - idx)
+						+ " bytes are still unparsed and the buffer would need to grow beyond its maximum size (hpjxp.maxBufferSize) to hold them all at one time.");
+		}
 	}
 
 	private State handlePI() throws IOException, XMLParseException {
 		// Find the end of the processing instruction.
 		eIdx = scan(Constants.PI_SFX);
 
+		if (isStarved)
+			return starve();
+
 		if (eIdx == Constants.INVALID)
 			throw new XMLParseException(
-					"Unable to find closing '?>' for the processing-instruction block starting at position "
-							+ gIdx
-							+ " in the XML document. Either the XML is malformed or contains individual TAG/TEXT constructs so long that BUFFER_SIZE will need to be increased in order to hold it in memory at one time.");
+					"Unable to find closing '?>' for the processing-instruction block starting at "
+							+ describePosition(sIdx)
+							+ " in the XML document. Either the XML is malformed or contains individual TAG/TEXT constructs so long that the buffer would need to grow beyond its maximum size (hpjxp.maxBufferSize) to hold it in memory at one time.");
+
+		// Adjust eIdx to point at the index of the last PI suffix char
+		eIdx += Constants.PI_SFX.length - 1;
 
 		/*
 		 * Effectively skip the PI by recursively executing nextState again,
@@ -601,11 +2939,17 @@ public class HPXMLParser {
 		// Find the end of the comment.
 		eIdx = scan(Constants.CMT_SFX);
 
+		if (isStarved)
+			return starve();
+
 		if (eIdx == Constants.INVALID)
 			throw new XMLParseException(
-					"Unable to find closing '-->' for the comment starting at position "
-							+ gIdx
-							+ " in the XML document. Either the XML is malformed or contains individual TAG/TEXT constructs so long that BUFFER_SIZE will need to be increased in order to hold it in memory at one time.");
+					"Unable to find closing '-->' for the comment starting at "
+							+ describePosition(sIdx)
+							+ " in the XML document. Either the XML is malformed or contains individual TAG/TEXT constructs so long that the buffer would need to grow beyond its maximum size (hpjxp.maxBufferSize) to hold it in memory at one time.");
+
+		// Adjust eIdx to point at the index of the last comment suffix char
+		eIdx += Constants.CMT_SFX.length - 1;
 
 		/*
 		 * Effectively skip the comment by recursively executing nextState
@@ -619,11 +2963,14 @@ public class HPXMLParser {
 		// Processing a TAG, so find the end of it ('>')
 		eIdx = scan(Constants.A_GT);
 
+		if (isStarved)
+			return;
+
 		if (eIdx == Constants.INVALID)
 			throw new XMLParseException(
-					"Unable to find closing '>' for the tag starting at position "
-							+ gIdx
-							+ " in the XML document. Either the XML is malformed or contains individual TAG/TEXT constructs so long that BUFFER_SIZE will need to be increased in order to hold it in memory at one time.");
+					"Unable to find closing '>' for the tag starting at "
+							+ describePosition(sIdx)
+							+ " in the XML document. Either the XML is malformed or contains individual TAG/TEXT constructs so long that the buffer would need to grow beyond its maximum size (hpjxp.maxBufferSize) to hold it in memory at one time.");
 
 		/*
 		 * Check if we are dealing with an empty element (<book/>) in which case
@@ -668,11 +3015,14 @@ public class HPXMLParser {
 		// Find the end of the CDATA block.
 		eIdx = scan(Constants.CDATA_SFX);
 
+		if (isStarved)
+			return;
+
 		if (eIdx == Constants.INVALID)
 			throw new XMLParseException(
-					"Unable to find closing ']]>' for the CDATA block starting at position "
-							+ gIdx
-							+ " in the XML document. Either the XML is malformed or contains individual TAG/TEXT constructs so long that BUFFER_SIZE will need to be increased in order to hold it in memory at one time.");
+					"Unable to find closing ']]>' for the CDATA block starting at "
+							+ describePosition(sIdx)
+							+ " in the XML document. Either the XML is malformed or contains individual TAG/TEXT constructs so long that the buffer would need to grow beyond its maximum size (hpjxp.maxBufferSize) to hold it in memory at one time.");
 
 		// getText is handled differently for CDATA and plain char data.
 		isCDATA = true;
@@ -695,13 +3045,6 @@ public class HPXMLParser {
 	 * state is set to {@link State#TEXT}.
 	 */
 	private void handleCharData() {
-		/*
-		 * TODO: Something is going on here with the end of files, running
-		 * simple.xml through parser with test case shows it parse the entire
-		 * thing then throw an exception at the last step as eIdx gets
-		 * decreamented to -2 from this method. Need to research more.
-		 */
-
 		/*
 		 * Processing TEXT, so the '<' we just found is actually the terminating
 		 * character to the run of characters and the beginning of the
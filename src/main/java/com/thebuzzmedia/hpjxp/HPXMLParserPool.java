@@ -0,0 +1,161 @@
+package com.thebuzzmedia.hpjxp;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class used to reuse {@link HPXMLParser} instances (and more importantly
+ * their internal buffers) across many short parse operations, for example in
+ * a server parsing thousands of small payloads per second.
+ * <p/>
+ * Parsers are kept in size classes by buffer size, so a borrower that knows
+ * the (approximate) size of its payload gets the smallest parser that fits
+ * and small payloads don't pin {@link HPXMLParser#BUFFER_SIZE} bytes each.
+ * <p/>
+ * <h3>Usage</h3>
+ * A borrowed parser is returned to the pool by closing it, which makes it
+ * work naturally with try-with-resources:
+ * 
+ * <pre>
+ * try (HPXMLParser parser = pool.borrow(payload.length)) {
+ * 	parser.setInput(new ByteArrayInputStream(payload));
+ * 	// ...
+ * }
+ * </pre>
+ * 
+ * <h3>Bounds</h3>
+ * {@link #borrow(long)} never blocks; if no idle parser is available in the
+ * size class a new one is created. At most <code>maxIdle</code> parsers are
+ * retained per size class, any parser returned beyond that is dropped and
+ * left to the garbage collector.
+ * <p/>
+ * <h3>Thread Safety</h3>
+ * This class is thread-safe. It relies only on lock-free queues and counters
+ * (no <code>ThreadLocal</code>s or monitors), so it behaves the same with
+ * platform or virtual threads. Parsers themselves are not thread-safe and
+ * must only be used by the borrower until they are closed.
+ */
+public class HPXMLParserPool {
+	public static final int DEFAULT_MAX_IDLE = 64;
+	public static final int[] DEFAULT_SIZE_CLASSES = { 4096, 16384, 65536,
+			HPXMLParser.BUFFER_SIZE };
+
+	private int maxIdle;
+	private int[] sizeClasses;
+
+	private ConcurrentLinkedQueue<HPXMLParser>[] idleParsers;
+	private AtomicInteger[] idleCounts;
+
+	public HPXMLParserPool() {
+		this(DEFAULT_MAX_IDLE, DEFAULT_SIZE_CLASSES);
+	}
+
+	/**
+	 * Create a pool retaining at most <code>maxIdle</code> parsers for each of
+	 * the given buffer size classes.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>maxIdle</code> is &lt; 0 or no size classes are
+	 *             given.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public HPXMLParserPool(int maxIdle, int... sizeClasses)
+			throws IllegalArgumentException {
+		if (maxIdle < 0)
+			throw new IllegalArgumentException("maxIdle [" + maxIdle
+					+ "] must be >= 0");
+		if (sizeClasses == null || sizeClasses.length == 0)
+			throw new IllegalArgumentException(
+					"sizeClasses cannot be null or empty");
+
+		this.maxIdle = maxIdle;
+		this.sizeClasses = sizeClasses.clone();
+		Arrays.sort(this.sizeClasses);
+
+		idleParsers = new ConcurrentLinkedQueue[this.sizeClasses.length];
+		idleCounts = new AtomicInteger[this.sizeClasses.length];
+
+		for (int i = 0; i < this.sizeClasses.length; i++) {
+			idleParsers[i] = new ConcurrentLinkedQueue<HPXMLParser>();
+			idleCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Used to borrow a parser from the largest size class.
+	 */
+	public HPXMLParser borrow() {
+		return borrow(sizeClasses.length - 1);
+	}
+
+	/**
+	 * Used to borrow a parser from the smallest size class whose buffer can
+	 * hold <code>expectedSize</code> bytes, or the largest size class if none
+	 * can. Pass the payload size when it is known (e.g. a Content-Length).
+	 * <p/>
+	 * The parser must be returned by calling {@link HPXMLParser#close()}.
+	 */
+	public HPXMLParser borrow(long expectedSize) {
+		int sizeClass = 0;
+
+		while (sizeClass < sizeClasses.length - 1
+				&& sizeClasses[sizeClass] < expectedSize)
+			sizeClass++;
+
+		return borrow(sizeClass);
+	}
+
+	/**
+	 * Used to get the number of idle parsers currently held by this pool.
+	 */
+	public int getIdleCount() {
+		int count = 0;
+
+		for (int i = 0; i < idleCounts.length; i++)
+			count += idleCounts[i].get();
+
+		return count;
+	}
+
+	private HPXMLParser borrow(int sizeClass) {
+		HPXMLParser parser = idleParsers[sizeClass].poll();
+
+		if (parser == null)
+			parser = new HPXMLParser(sizeClasses[sizeClass]);
+		else
+			idleCounts[sizeClass].decrementAndGet();
+
+		parser.pool = this;
+		parser.poolSizeClass = sizeClass;
+		parser.leased = true;
+
+		return parser;
+	}
+
+	/**
+	 * Called by {@link HPXMLParser#close()} once the parser has released its
+	 * input.
+	 */
+	void release(HPXMLParser parser) {
+		int sizeClass = parser.poolSizeClass;
+
+		// Per-borrower settings don't carry over to the next borrower.
+		parser.setReuseByteSources(false);
+		parser.setReadAhead(false);
+		parser.setNamespaceAware(false);
+		parser.setLineTracking(false);
+		parser.setMaxBufferSize(Math.max(HPXMLParser.MAX_BUFFER_SIZE,
+				sizeClasses[sizeClass]));
+		parser.setBufferShrinkRefills(HPXMLParser.BUFFER_SHRINK_REFILLS);
+		parser.resetSymbols();
+
+		// Reserve a slot first so the idle count never exceeds maxIdle.
+		if (idleCounts[sizeClass].incrementAndGet() > maxIdle) {
+			idleCounts[sizeClass].decrementAndGet();
+			return;
+		}
+
+		idleParsers[sizeClass].offer(parser);
+	}
+}
@@ -0,0 +1,133 @@
+package com.thebuzzmedia.hpjxp;
+
+import com.thebuzzmedia.hpjxp.util.ArrayUtil;
+import com.thebuzzmedia.hpjxp.util.ScannerUtil;
+
+/**
+ * Class used to hold the structural index (the "tape") of an in-memory XML
+ * document: the position of every '&lt;' and '&gt;' in it, in document order.
+ * <p/>
+ * Building the tape is the first of two parsing stages. It is a single bulk
+ * pass over the bytes, 8 at a time, that flags both characters at once and
+ * appends their positions without looking at what they belong to. The second
+ * stage, {@link HPXMLParser#setInput(StructuralTape)}, walks the tape and
+ * classifies each construct (tag, end tag, empty element, comment, CDATA
+ * block, processing instruction) from the bytes next to the positions,
+ * producing the same {@link HPXMLParser.State} stream as parsing the
+ * document from a stream. Keeping the data-dependent branching out of the
+ * scanning loop lets that loop run at memory speed.
+ * <p/>
+ * A tape is never modified once built, so it can be walked any number of
+ * times, by any number of parsers at once. The document array must not be
+ * modified while the tape is in use.
+ */
+public class StructuralTape {
+	private static final long LTS = ScannerUtil.broadcast(Constants.LT);
+	private static final long GTS = ScannerUtil.broadcast(Constants.GT);
+
+	private byte[] data;
+	private int length;
+
+	private int[] positions;
+	private int size;
+
+	public StructuralTape(byte[] data) throws IllegalArgumentException {
+		this(data, (data == null ? 0 : data.length));
+	}
+
+	/**
+	 * Create the tape of the document held in the first <code>length</code>
+	 * bytes of <code>data</code>.
+	 */
+	public StructuralTape(byte[] data, int length)
+			throws IllegalArgumentException {
+		if (data == null)
+			throw new IllegalArgumentException("data cannot be null");
+		if (length < 0 || length > data.length)
+			throw new IllegalArgumentException("length [" + length
+					+ "] must be >= 0 and <= data.length [" + data.length
+					+ "]");
+
+		this.data = data;
+		this.length = length;
+
+		// Markup-heavy documents have a '<' or '>' every 10 or so bytes.
+		positions = new int[Math.max(16, length / 8)];
+		build();
+	}
+
+	@Override
+	public String toString() {
+		return this.getClass().getName() + "[length=" + length + ", size="
+				+ size + "]";
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Used to get the number of positions on the tape.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Used to get the position in the document of the given entry of the
+	 * tape; the byte at it is either '&lt;' or '&gt;'.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if <code>index</code> is &lt; 0 or &gt;= {@link #size()}.
+	 */
+	public int getPosition(int index) throws IndexOutOfBoundsException {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("index [" + index
+					+ "] must be >= 0 and < size() [" + size + "]");
+
+		return positions[index];
+	}
+
+	/**
+	 * Used by {@link HPXMLParser} to walk the tape without a bounds check per
+	 * entry. Only the first {@link #size()} entries are valid.
+	 */
+	int[] getPositions() {
+		return positions;
+	}
+
+	private void build() {
+		int i = 0;
+
+		if (ScannerUtil.WORD_SCAN) {
+			for (int last = length - 8; i <= last; i += 8) {
+				long word = ScannerUtil.getWord(i, data);
+				long flags = ScannerUtil.exactZeroBytes(word ^ LTS)
+						| ScannerUtil.exactZeroBytes(word ^ GTS);
+
+				// Most words hold neither, the loop body is skipped.
+				while (flags != 0) {
+					add(i + ScannerUtil.firstByte(flags));
+					flags &= flags - 1;
+				}
+			}
+		}
+
+		// Scan the tail (fewer than 8 bytes remain) or everything if scalar.
+		for (; i < length; i++) {
+			if (data[i] == Constants.LT || data[i] == Constants.GT)
+				add(i);
+		}
+	}
+
+	private void add(int position) {
+		if (size == positions.length)
+			positions = ArrayUtil.ensureCapacity(size + 1, positions);
+
+		positions[size++] = position;
+	}
+}
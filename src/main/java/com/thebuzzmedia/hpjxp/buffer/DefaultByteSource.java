@@ -1,14 +1,38 @@
 package com.thebuzzmedia.hpjxp.buffer;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import com.thebuzzmedia.hpjxp.Constants;
+import com.thebuzzmedia.hpjxp.util.CharDecoder;
 import com.thebuzzmedia.hpjxp.util.CodingUtil;
+import com.thebuzzmedia.hpjxp.util.ParseUtil;
+import com.thebuzzmedia.hpjxp.util.ScannerUtil;
+import com.thebuzzmedia.hpjxp.util.SymbolTable;
 
 public class DefaultByteSource implements IByteSource {
 	public static final char[] EMPTY_CHAR_ARRAY = new char[0];
 	public static final String EMPTY_STRING = "";
 
-	private int index;
-	private int length;
-	private byte[] array;
+	protected int index;
+	protected int length;
+	protected byte[] array;
+
+	// Decoder used by decodeTo, the thread's UTF-8 decoder if null.
+	protected CharDecoder decoder;
+
+	/**
+	 * Constructor used by subclasses that set the bounds themselves after
+	 * construction.
+	 */
+	protected DefaultByteSource() {
+		// no-op
+	}
 
 	public DefaultByteSource(byte[] array) {
 		this(0, array);
@@ -20,6 +44,16 @@ public class DefaultByteSource implements IByteSource {
 
 	public DefaultByteSource(int index, int length, byte[] array)
 			throws IllegalArgumentException {
+		this(index, length, array, null);
+	}
+
+	/**
+	 * Create a source for the given region of <code>array</code> that decodes
+	 * with the given decoder (e.g. the one of the parser the array belongs
+	 * to) instead of a thread-local UTF-8 decoder.
+	 */
+	public DefaultByteSource(int index, int length, byte[] array,
+			CharDecoder decoder) throws IllegalArgumentException {
 		if (array == null)
 			throw new IllegalArgumentException("array cannot be null");
 		if (index < 0 || length < 0 || (index + length) > array.length)
@@ -32,6 +66,7 @@ public class DefaultByteSource implements IByteSource {
 		this.index = index;
 		this.length = length;
 		this.array = array;
+		this.decoder = decoder;
 	}
 
 	public String toString() {
@@ -64,11 +99,198 @@ public class DefaultByteSource implements IByteSource {
 	}
 
 	public char[] decodeToChars() {
-		return (length == 0 ? EMPTY_CHAR_ARRAY : CodingUtil.decode(index,
-				length, array));
+		if (length == 0)
+			return EMPTY_CHAR_ARRAY;
+
+		CharDecoder decoder = getDecoder();
+
+		if (decoder.isAscii(index, length, array)) {
+			char[] chars = new char[length];
+			CodingUtil.decodeAscii(index, length, array, chars, 0);
+			return chars;
+		}
+
+		char[] chars = new char[decoder.maxChars(length)];
+		int count = decoder.decode(index, length, array, chars, 0);
+
+		return (count == chars.length ? chars : Arrays.copyOf(chars, count));
 	}
 
 	public String decodeToString() {
-		return (length == 0 ? EMPTY_STRING : new String(array, index, length));
+		return (length == 0 ? EMPTY_STRING : getDecoder().decodeToString(
+				index, length, array));
+	}
+
+	public int decodeTo(char[] chars, int index)
+			throws IllegalArgumentException {
+		if (chars == null)
+			throw new IllegalArgumentException("chars cannot be null");
+		if (index < 0 || index > chars.length)
+			throw new IllegalArgumentException("index [" + index
+					+ "] must be >= 0 and <= chars.length [" + chars.length
+					+ "]");
+
+		return getDecoder().decode(this.index, length, array, chars, index);
+	}
+
+	public int decodeTo(StringBuilder builder) throws IllegalArgumentException {
+		if (builder == null)
+			throw new IllegalArgumentException("builder cannot be null");
+
+		return getDecoder().decode(index, length, array, builder);
+	}
+
+	public int decodeTo(CharBuffer chars) throws IllegalArgumentException {
+		if (chars == null)
+			throw new IllegalArgumentException("chars cannot be null");
+
+		return getDecoder().decode(index, length, array, chars);
+	}
+
+	public String decodeTextToString() {
+		if (length == 0)
+			return EMPTY_STRING;
+
+		// Nothing to resolve, skip straight to the plain decode.
+		if (ScannerUtil.indexOf(Constants.AM, index, length, array) == Constants.INVALID)
+			return getDecoder().decodeToString(index, length, array);
+
+		CharDecoder decoder = getDecoder();
+		char[] chars = new char[decoder.maxChars(length)];
+
+		return new String(chars, 0, decoder.decodeText(index, length, array,
+				chars, 0));
+	}
+
+	protected CharDecoder getDecoder() {
+		return (decoder == null ? CodingUtil.getThreadCharDecoder() : decoder);
+	}
+
+	public int decodeTextTo(char[] chars, int index)
+			throws IllegalArgumentException {
+		if (chars == null)
+			throw new IllegalArgumentException("chars cannot be null");
+		if (index < 0 || chars.length - index < length)
+			throw new IllegalArgumentException("index [" + index
+					+ "] must be >= 0 and leave room for length [" + length
+					+ "] chars in chars.length [" + chars.length + "]");
+
+		return getDecoder().decodeText(this.index, length, array, chars,
+				index);
+	}
+
+	public int parseInt() throws NumberFormatException {
+		return ParseUtil.parseInt(index, length, array);
+	}
+
+	public long parseLong() throws NumberFormatException {
+		return ParseUtil.parseLong(index, length, array);
+	}
+
+	public double parseDouble() throws NumberFormatException {
+		return ParseUtil.parseDouble(index, length, array);
+	}
+
+	public BigDecimal parseBigDecimal() throws NumberFormatException {
+		return ParseUtil.parseBigDecimal(index, length, array);
+	}
+
+	public boolean parseBoolean() throws IllegalArgumentException {
+		return ParseUtil.parseBoolean(index, length, array);
+	}
+
+	public long parseTimestamp() throws IllegalArgumentException {
+		return ParseUtil.parseTimestamp(index, length, array);
+	}
+
+	public boolean contentEquals(byte[] value) throws IllegalArgumentException {
+		if (value == null)
+			throw new IllegalArgumentException("value cannot be null");
+
+		return Arrays.equals(array, index, index + length, value, 0,
+				value.length);
+	}
+
+	public boolean contentEquals(IByteSource source)
+			throws IllegalArgumentException {
+		if (source == null)
+			throw new IllegalArgumentException("source cannot be null");
+
+		int sourceIndex = source.getIndex();
+
+		return Arrays.equals(array, index, index + length, source.getArray(),
+				sourceIndex, sourceIndex + source.getLength());
+	}
+
+	public boolean equalsIgnoreAsciiCase(byte[] value)
+			throws IllegalArgumentException {
+		if (value == null)
+			throw new IllegalArgumentException("value cannot be null");
+		if (value.length != length)
+			return false;
+
+		int end = index + length;
+		int i = index;
+		int mismatch;
+
+		// Skip over runs of identical bytes, only fold where they differ.
+		while ((mismatch = Arrays.mismatch(array, i, end, value, i - index,
+				length)) != -1) {
+			i += mismatch;
+
+			if (toLowerAscii(array[i]) != toLowerAscii(value[i - index]))
+				return false;
+
+			i++;
+		}
+
+		return true;
+	}
+
+	public boolean startsWith(byte[] prefix) throws IllegalArgumentException {
+		if (prefix == null)
+			throw new IllegalArgumentException("prefix cannot be null");
+
+		return prefix.length <= length
+				&& Arrays.equals(array, index, index + prefix.length, prefix,
+						0, prefix.length);
+	}
+
+	public int contentHashCode() {
+		return SymbolTable.hash(array, index, length);
+	}
+
+	public int writeTo(OutputStream out) throws IllegalArgumentException,
+			IOException {
+		if (out == null)
+			throw new IllegalArgumentException("out cannot be null");
+
+		out.write(array, index, length);
+		return length;
+	}
+
+	public int writeTo(WritableByteChannel channel)
+			throws IllegalArgumentException, IOException {
+		if (channel == null)
+			throw new IllegalArgumentException("channel cannot be null");
+
+		ByteBuffer buffer = ByteBuffer.wrap(array, index, length);
+
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+
+		return length;
+	}
+
+	public int writeTo(ByteBuffer buffer) throws IllegalArgumentException {
+		if (buffer == null)
+			throw new IllegalArgumentException("buffer cannot be null");
+
+		buffer.put(array, index, length);
+		return length;
+	}
+
+	private static byte toLowerAscii(byte value) {
+		return (value >= 'A' && value <= 'Z' ? (byte) (value + 32) : value);
 	}
-}
\ No newline at end of file
+}
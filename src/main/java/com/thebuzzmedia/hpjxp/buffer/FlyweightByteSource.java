@@ -0,0 +1,45 @@
+package com.thebuzzmedia.hpjxp.buffer;
+
+import com.thebuzzmedia.hpjxp.util.CharDecoder;
+
+/**
+ * Mutable {@link IByteSource} that can be re-pointed at a new region of an
+ * array any number of times.
+ * <p/>
+ * This is used by the parser when it is asked to reuse its byte sources (see
+ * {@link com.thebuzzmedia.hpjxp.HPXMLParser#setReuseByteSources(boolean)}) so
+ * no object is allocated per value retrieved. As a result an instance is only
+ * valid until the next time it is re-pointed, which for the parser is the
+ * next call to {@link com.thebuzzmedia.hpjxp.HPXMLParser#nextState()}.
+ */
+public class FlyweightByteSource extends DefaultByteSource {
+	public FlyweightByteSource() {
+		super();
+	}
+
+	/**
+	 * Create a source that decodes with the given decoder, see
+	 * {@link DefaultByteSource#DefaultByteSource(int, int, byte[], CharDecoder)}.
+	 */
+	public FlyweightByteSource(CharDecoder decoder) {
+		super();
+		this.decoder = decoder;
+	}
+
+	/**
+	 * Used to re-point this source at the given region of
+	 * <code>array</code>.
+	 * <p/>
+	 * No argument checks are done, the caller is trusted to pass bounds that
+	 * are valid for the array.
+	 * 
+	 * @return this source, for convenience.
+	 */
+	public FlyweightByteSource set(int index, int length, byte[] array) {
+		this.index = index;
+		this.length = length;
+		this.array = array;
+
+		return this;
+	}
+}
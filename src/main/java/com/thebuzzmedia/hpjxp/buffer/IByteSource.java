@@ -1,5 +1,12 @@
 package com.thebuzzmedia.hpjxp.buffer;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+
 public interface IByteSource {
 	public int getIndex();
 
@@ -12,9 +19,173 @@ public interface IByteSource {
 	public char[] decodeToChars();
 
 	public String decodeToString();
-	
-	// TODO: Check XML spec, but entity-replacement may be mandatory,
-	// scanning for &blah; entities and replacing them with their real values.
+
+	/**
+	 * Used to decode this source into the given array starting at
+	 * <code>index</code>, without allocating.
+	 * 
+	 * @return the number of chars written.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>chars</code> is <code>null</code>,
+	 *             <code>index</code> is out of bounds or the decoded chars
+	 *             don't fit. At most {@link #getLength()} chars are written
+	 *             for UTF-8.
+	 */
+	public int decodeTo(char[] chars, int index)
+			throws IllegalArgumentException;
+
+	/**
+	 * Used to decode this source, appending the chars to the given builder.
+	 * No allocation is done once the builder has grown large enough.
+	 * 
+	 * @return the number of chars appended.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>builder</code> is <code>null</code>.
+	 */
+	public int decodeTo(StringBuilder builder) throws IllegalArgumentException;
+
+	/**
+	 * Used to decode this source into the given buffer at its current
+	 * position, advancing it, without allocating.
+	 * 
+	 * @return the number of chars written.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>chars</code> is <code>null</code> or the decoded
+	 *             chars don't fit in its remaining space.
+	 */
+	public int decodeTo(CharBuffer chars) throws IllegalArgumentException;
+
+	/**
+	 * Used to decode this source as character data, resolving the predefined
+	 * entity references (e.g. <code>&amp;amp;</code>) and numeric character
+	 * references (e.g. <code>&amp;#x20AC;</code>) it contains.
+	 * <p/>
+	 * Values without any '&amp;' in them, the common case, are checked for
+	 * with a quick scan and decoded as-is.
+	 */
+	public String decodeTextToString();
+
+	/**
+	 * Used to decode this source as character data into the given array
+	 * starting at <code>index</code>, resolving references the same way as
+	 * {@link #decodeTextToString()}. The decoded text is never longer than
+	 * {@link #getLength()} chars.
+	 * 
+	 * @return the number of chars written.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>chars</code> is <code>null</code> or doesn't have
+	 *             room for {@link #getLength()} chars from <code>index</code>
+	 *             on.
+	 */
+	public int decodeTextTo(char[] chars, int index)
+			throws IllegalArgumentException;
 
 	// TODO: To other native types?
-}
\ No newline at end of file
+
+	/*
+	 * Primitive values are parsed straight from the bytes, ignoring leading
+	 * and trailing whitespace; see ParseUtil for the accepted formats.
+	 */
+	public int parseInt() throws NumberFormatException;
+
+	public long parseLong() throws NumberFormatException;
+
+	public double parseDouble() throws NumberFormatException;
+
+	public BigDecimal parseBigDecimal() throws NumberFormatException;
+
+	/**
+	 * Used to parse this source as an <code>xsd:boolean</code>:
+	 * <code>true</code>, <code>false</code>, <code>1</code> or
+	 * <code>0</code>.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if this source holds any other value.
+	 */
+	public boolean parseBoolean() throws IllegalArgumentException;
+
+	/**
+	 * Used to parse this source as an ISO-8601 date or date-time into
+	 * milliseconds since the epoch. Values without an offset are taken to be
+	 * UTC.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if this source doesn't hold a valid timestamp.
+	 */
+	public long parseTimestamp() throws IllegalArgumentException;
+
+	/**
+	 * Used to determine if this source holds exactly the bytes of
+	 * <code>value</code>, without decoding either.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>value</code> is <code>null</code>.
+	 */
+	public boolean contentEquals(byte[] value) throws IllegalArgumentException;
+
+	public boolean contentEquals(IByteSource source)
+			throws IllegalArgumentException;
+
+	/**
+	 * Used to determine if this source holds the bytes of <code>value</code>
+	 * when the ASCII letters of both are compared case-insensitively. Any
+	 * other byte (including every byte of a multi-byte UTF-8 sequence) must
+	 * match exactly.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>value</code> is <code>null</code>.
+	 */
+	public boolean equalsIgnoreAsciiCase(byte[] value)
+			throws IllegalArgumentException;
+
+	public boolean startsWith(byte[] prefix) throws IllegalArgumentException;
+
+	/**
+	 * Used to get a hash of the bytes of this source that only depends on
+	 * their values, not where they happen to be in the array; it is the same
+	 * hash {@link com.thebuzzmedia.hpjxp.util.SymbolTable#hash(byte[], int, int)}
+	 * calculates.
+	 */
+	public int contentHashCode();
+
+	/**
+	 * Used to write the bytes of this source, as-is, to the given stream.
+	 * 
+	 * @return the number of bytes written.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>out</code> is <code>null</code>.
+	 */
+	public int writeTo(OutputStream out) throws IllegalArgumentException,
+			IOException;
+
+	/**
+	 * Used to write the bytes of this source, as-is, to the given channel,
+	 * blocking until all of them are written.
+	 * 
+	 * @return the number of bytes written.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>channel</code> is <code>null</code>.
+	 */
+	public int writeTo(WritableByteChannel channel)
+			throws IllegalArgumentException, IOException;
+
+	/**
+	 * Used to put the bytes of this source, as-is, into the given buffer at
+	 * its current position, advancing it.
+	 * 
+	 * @return the number of bytes written.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>buffer</code> is <code>null</code>.
+	 * @throws java.nio.BufferOverflowException
+	 *             if the buffer doesn't have {@link #getLength()} bytes
+	 *             remaining.
+	 */
+	public int writeTo(ByteBuffer buffer) throws IllegalArgumentException;
+}
@@ -0,0 +1,392 @@
+package com.thebuzzmedia.hpjxp.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.thebuzzmedia.hpjxp.HPXMLParser;
+import com.thebuzzmedia.hpjxp.io.MappedFileSource;
+import com.thebuzzmedia.hpjxp.util.CodingUtil;
+
+/**
+ * Class used to read an index written by {@link ElementIndexer} and point an
+ * {@link HPXMLParser} straight at record N, a range of records or the records
+ * in a range of keys, without scanning the document up to them.
+ * <p/>
+ * The index file is memory-mapped. Looking up a record binary searches the
+ * checkpoint table for its block, if needed, and decodes that one block;
+ * the last block decoded is kept, so walking records in order decodes each
+ * block once.
+ * <p/>
+ * Index files are limited to <code>2GB</code>, which is enough for hundreds
+ * of millions of records.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+public class ElementIndex implements Closeable {
+	static final byte[] MAGIC = { 'H', 'P', 'X', 'I' };
+	static final int VERSION = 1;
+
+	static final int FLAG_KEYS = 1;
+	static final int FLAG_SORTED = 2;
+
+	// Longest an entry can be encoded as, 3 varints of up to 10 bytes.
+	static final int MAX_ENTRY_SIZE = 30;
+
+	// Flags, block count, record count and the position of the table.
+	static final int TRAILER_SIZE = 1 + 4 + 8 + 8;
+
+	private ByteBuffer data;
+
+	private Charset encoding;
+	private boolean hasKeys;
+	private boolean isKeysSorted;
+	private int blockSize;
+	private int blockCount;
+	private long count;
+	private int tableIdx;
+
+	// The last block decoded and its entries.
+	private int block = -1;
+	private long[] starts;
+	private long[] ends;
+	private long[] keys;
+
+	// Index of the next byte to decode, see readVarLong.
+	private int readIdx;
+
+	/**
+	 * Create a reader for the given index file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be opened or mapped or isn't an index
+	 *             written by {@link ElementIndexer}.
+	 */
+	public ElementIndex(Path indexFile) throws IllegalArgumentException,
+			IOException {
+		if (indexFile == null)
+			throw new IllegalArgumentException("indexFile cannot be null");
+
+		FileChannel channel = FileChannel.open(indexFile,
+				StandardOpenOption.READ);
+
+		try {
+			long size = channel.size();
+
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("index file [" + indexFile
+						+ "] is larger than 2GB");
+
+			// The mapping stays valid once the channel is closed.
+			data = channel.map(MapMode.READ_ONLY, 0, size);
+		} finally {
+			channel.close();
+		}
+
+		readHeader(indexFile);
+	}
+
+	/**
+	 * Used to release the mapping of the index file, after which this index
+	 * can no longer be used.
+	 */
+	public void close() {
+		data = null;
+		starts = ends = keys = null;
+	}
+
+	/**
+	 * Used to get the encoding of the indexed document, which records are
+	 * parsed in by {@link #setInput(HPXMLParser, FileChannel, long, long)}.
+	 */
+	public Charset getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Used to get the number of records in the index.
+	 */
+	public long size() {
+		return count;
+	}
+
+	public boolean hasKeys() {
+		return hasKeys;
+	}
+
+	/**
+	 * Used to determine if the keys of the records never decrease in document
+	 * order, which {@link #findKey(long)} relies on.
+	 */
+	public boolean isKeysSorted() {
+		return isKeysSorted;
+	}
+
+	/**
+	 * Used to get the document offset of the start tag of the given record.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if <code>ordinal</code> is &lt; 0 or &gt;= {@link #size()}.
+	 */
+	public long getStartOffset(long ordinal) throws IndexOutOfBoundsException {
+		return starts[load(ordinal)];
+	}
+
+	/**
+	 * Used to get the document offset one past the end tag of the given
+	 * record.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if <code>ordinal</code> is &lt; 0 or &gt;= {@link #size()}.
+	 */
+	public long getEndOffset(long ordinal) throws IndexOutOfBoundsException {
+		return ends[load(ordinal)];
+	}
+
+	/**
+	 * Used to get the key of the given record.
+	 *
+	 * @throws IllegalStateException
+	 *             if the index has no keys.
+	 * @throws IndexOutOfBoundsException
+	 *             if <code>ordinal</code> is &lt; 0 or &gt;= {@link #size()}.
+	 */
+	public long getKey(long ordinal) throws IllegalStateException,
+			IndexOutOfBoundsException {
+		if (!hasKeys)
+			throw new IllegalStateException("getKey(long) requires an index with keys");
+
+		return keys[load(ordinal)];
+	}
+
+	/**
+	 * Used to find the first record whose key is &gt;= <code>key</code>. The
+	 * records with keys in <code>[from, to)</code> are those from
+	 * <code>findKey(from)</code> up to (not including)
+	 * <code>findKey(to)</code>.
+	 *
+	 * @return the ordinal of the record or {@link #size()} if every key is
+	 *         smaller.
+	 *
+	 * @throws IllegalStateException
+	 *             if the index has no keys or they aren't sorted (see
+	 *             {@link #isKeysSorted()}).
+	 */
+	public long findKey(long key) throws IllegalStateException {
+		if (!isKeysSorted)
+			throw new IllegalStateException(
+					"findKey(long) requires an index with sorted keys");
+
+		// First block whose first key is >= key.
+		int low = 0;
+		int high = blockCount;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (getCheckpoint(mid, 1) < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		// The record, if not the first of that block, is in the one before.
+		if (low > 0) {
+			long first = (long) (low - 1) * blockSize;
+			int length = decode(low - 1);
+
+			for (int i = 1; i < length; i++) {
+				if (keys[i] >= key)
+					return first + i;
+			}
+		}
+
+		return Math.min((long) low * blockSize, count);
+	}
+
+	/**
+	 * Used to set the given record of the document open on
+	 * <code>channel</code> as the input of <code>parser</code>.
+	 *
+	 * @see #setInput(HPXMLParser, FileChannel, long, long)
+	 */
+	public void setInput(HPXMLParser parser, FileChannel channel, long ordinal)
+			throws IllegalArgumentException, IndexOutOfBoundsException,
+			IOException {
+		setInput(parser, channel, ordinal, ordinal + 1);
+	}
+
+	/**
+	 * Used to set the records <code>[from, to)</code> of the document open on
+	 * <code>channel</code> as the input of <code>parser</code>. Only the
+	 * bytes of those records (and anything in between them) are mapped, so
+	 * the first event is the {@link HPXMLParser.State#START_TAG} of record
+	 * <code>from</code> and {@link HPXMLParser.State#END_DOCUMENT} follows
+	 * the {@link HPXMLParser.State#END_TAG} of the last one.
+	 * <p/>
+	 * Offsets reported by the parser are offsets in the document. The
+	 * channel is left open, closing it remains the responsibility of the
+	 * caller.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if <code>parser</code> or <code>channel</code> is
+	 *             <code>null</code> or <code>from &gt; to</code>.
+	 * @throws IndexOutOfBoundsException
+	 *             if <code>from</code> or <code>to</code> is &lt; 0 or
+	 *             &gt; {@link #size()}.
+	 */
+	public void setInput(HPXMLParser parser, FileChannel channel, long from,
+			long to) throws IllegalArgumentException,
+			IndexOutOfBoundsException, IOException {
+		if (parser == null)
+			throw new IllegalArgumentException("parser cannot be null");
+		if (channel == null)
+			throw new IllegalArgumentException("channel cannot be null");
+		if (from > to)
+			throw new IllegalArgumentException("from [" + from
+					+ "] must be <= to [" + to + "]");
+		if (from < 0 || to > count)
+			throw new IndexOutOfBoundsException("from [" + from + "] and to ["
+					+ to + "] must be >= 0 and <= size() [" + count + "]");
+
+		long start = 0;
+		long end = 0;
+
+		if (from < to) {
+			start = getStartOffset(from);
+			end = getEndOffset(to - 1);
+		}
+
+		parser.setInput(new MappedFileSource(channel, start, end, false),
+				start, encoding);
+	}
+
+	private void readHeader(Path indexFile) throws IOException {
+		int length = data.limit();
+		int encodingLength = (length > MAGIC.length + 1 ? data
+				.get(MAGIC.length + 1) & 0xFF : 0);
+		int headerLength = MAGIC.length + 2 + encodingLength + 4;
+
+		boolean isValid = (length >= headerLength + TRAILER_SIZE);
+
+		for (int i = 0; isValid && i < MAGIC.length; i++)
+			isValid = (data.get(i) == MAGIC[i]);
+
+		if (!isValid)
+			throw new IOException("[" + indexFile
+					+ "] is not an element index");
+
+		int version = data.get(MAGIC.length) & 0xFF;
+
+		if (version != VERSION)
+			throw new IOException("index file [" + indexFile
+					+ "] has unsupported version " + version);
+
+		byte[] name = new byte[encodingLength];
+
+		for (int i = 0; i < encodingLength; i++)
+			name[i] = data.get(MAGIC.length + 2 + i);
+
+		encoding = Charset.forName(new String(name,
+				CodingUtil.ISO_8859_1_CHARSET));
+		blockSize = data.getInt(headerLength - 4);
+
+		int trailerIdx = length - TRAILER_SIZE;
+		int flags = data.get(trailerIdx);
+
+		hasKeys = ((flags & FLAG_KEYS) != 0);
+		isKeysSorted = ((flags & FLAG_SORTED) != 0);
+		blockCount = data.getInt(trailerIdx + 1);
+		count = data.getLong(trailerIdx + 5);
+		tableIdx = (int) data.getLong(trailerIdx + 13);
+
+		starts = new long[blockSize];
+		ends = new long[blockSize];
+		keys = (hasKeys ? new long[blockSize] : null);
+	}
+
+	/**
+	 * Used to decode the block holding the given record, if it isn't the one
+	 * already decoded.
+	 *
+	 * @return the index of the record in the block.
+	 */
+	private int load(long ordinal) throws IndexOutOfBoundsException {
+		if (ordinal < 0 || ordinal >= count)
+			throw new IndexOutOfBoundsException("ordinal [" + ordinal
+					+ "] must be >= 0 and < size() [" + count + "]");
+
+		decode((int) (ordinal / blockSize));
+		return (int) (ordinal % blockSize);
+	}
+
+	/**
+	 * Used to decode the entries of the given block into <code>starts</code>,
+	 * <code>ends</code> and <code>keys</code>.
+	 *
+	 * @return the number of entries in the block.
+	 */
+	private int decode(int block) {
+		long first = (long) block * blockSize;
+		int length = (int) Math.min(blockSize, count - first);
+
+		if (this.block == block)
+			return length;
+
+		long start = getCheckpoint(block, 0);
+		long key = getCheckpoint(block, 1);
+		readIdx = (int) getCheckpoint(block, 2);
+
+		for (int i = 0; i < length; i++) {
+			if (i > 0) {
+				start = ends[i - 1] + readVarLong();
+
+				if (hasKeys) {
+					long delta = readVarLong();
+					key += (delta >>> 1) ^ -(delta & 1);
+				}
+			}
+
+			starts[i] = start;
+			ends[i] = start + readVarLong();
+
+			if (hasKeys)
+				keys[i] = key;
+		}
+
+		this.block = block;
+		return length;
+	}
+
+	/**
+	 * Used to get the given field of the checkpoint of <code>block</code>: 0
+	 * for the start offset of its first record, 1 for the key of it and 2 for
+	 * the position of the block.
+	 */
+	private long getCheckpoint(int block, int field) {
+		return data.getLong(tableIdx + (block * 3 + field) * 8);
+	}
+
+	/**
+	 * Used to read the unsigned LEB128 varint at <code>readIdx</code>, see
+	 * {@link ElementIndexer#putVarLong(long, byte[], int)}.
+	 */
+	private long readVarLong() {
+		long value = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			b = data.get(readIdx++);
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+
+		return value;
+	}
+}
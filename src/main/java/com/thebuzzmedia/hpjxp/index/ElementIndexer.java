@@ -0,0 +1,277 @@
+package com.thebuzzmedia.hpjxp.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.thebuzzmedia.hpjxp.HPXMLParser;
+import com.thebuzzmedia.hpjxp.HPXMLParser.State;
+import com.thebuzzmedia.hpjxp.XMLParseException;
+import com.thebuzzmedia.hpjxp.buffer.IByteSource;
+import com.thebuzzmedia.hpjxp.util.ArrayUtil;
+import com.thebuzzmedia.hpjxp.util.CodingUtil;
+
+/**
+ * Class used to parse a large document once and write a compact sidecar
+ * index of where its records are, so later passes can go straight to record
+ * N (or to a range of keys) with {@link ElementIndex} instead of scanning the
+ * whole document again.
+ * <p/>
+ * A record is any element with one of the given names. For each record the
+ * document offsets of its start tag and one past its end tag are stored and,
+ * optionally, a <code>long</code> key parsed from one of its attributes (e.g.
+ * <code>&lt;rec id="42"&gt;</code>). Records are skipped with
+ * {@link HPXMLParser#skipElement()} once found, so records nested inside of
+ * other records are part of the outer record and aren't indexed on their own.
+ * <p/>
+ * <h3>Format</h3>
+ * Records are stored in blocks of <code>blockSize</code> entries. Within a
+ * block every entry is delta-encoded against the one before it as unsigned
+ * varints (the gap from the previous record's end, the record's length and
+ * the zig-zag encoded change in key), so a typical entry takes 3-5 bytes. A
+ * checkpoint table after the blocks holds the absolute start offset and key
+ * of the first record of every block along with where the block begins; it
+ * is what {@link ElementIndex} binary searches.
+ * <p/>
+ * UTF-16 documents can't be indexed; the parser transcodes them to UTF-8, so
+ * the offsets it reports aren't offsets in the file.
+ * <p/>
+ * Instances are thread-safe and can be reused.
+ */
+public class ElementIndexer {
+	public static final int BLOCK_SIZE = 128;
+
+	private String[] elementNames;
+	private byte[] keyAttribute;
+	private int blockSize;
+
+	/**
+	 * Create an indexer for the elements with the given name, without keys.
+	 */
+	public ElementIndexer(String elementName) throws IllegalArgumentException {
+		this(new String[] { elementName }, null, BLOCK_SIZE);
+	}
+
+	/**
+	 * Create an indexer for the elements with any of the given names.
+	 *
+	 * @param keyAttribute
+	 *            the name of the attribute holding the key of each record or
+	 *            <code>null</code> to index without keys. The value must parse
+	 *            as a <code>long</code>, see
+	 *            {@link IByteSource#parseLong()}.
+	 * @param blockSize
+	 *            the number of records between checkpoints; smaller blocks
+	 *            make seeking faster and the index larger.
+	 */
+	public ElementIndexer(String[] elementNames, String keyAttribute,
+			int blockSize) throws IllegalArgumentException {
+		if (elementNames == null || elementNames.length == 0)
+			throw new IllegalArgumentException(
+					"elementNames cannot be null or empty");
+		if (blockSize < 1)
+			throw new IllegalArgumentException("blockSize [" + blockSize
+					+ "] must be >= 1");
+
+		for (int i = 0; i < elementNames.length; i++) {
+			if (elementNames[i] == null || elementNames[i].length() == 0)
+				throw new IllegalArgumentException("elementNames[" + i
+						+ "] cannot be null or empty");
+		}
+
+		if (keyAttribute != null && keyAttribute.length() == 0)
+			throw new IllegalArgumentException("keyAttribute cannot be empty");
+
+		this.elementNames = elementNames.clone();
+		this.keyAttribute = (keyAttribute == null ? null : keyAttribute
+				.getBytes(CodingUtil.UTF8_CHARSET));
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Used to index every record in the given document, writing the index to
+	 * <code>indexFile</code> (replacing it if it exists).
+	 *
+	 * @return the number of records indexed.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if either file is <code>null</code> or the document is
+	 *             UTF-16 encoded.
+	 * @throws IOException
+	 *             if any error occurs reading the document or writing the
+	 *             index.
+	 * @throws XMLParseException
+	 *             if the document can't be parsed or a record has no key
+	 *             attribute.
+	 * @throws NumberFormatException
+	 *             if the key attribute of a record isn't a valid
+	 *             <code>long</code>.
+	 */
+	public long index(Path file, Path indexFile)
+			throws IllegalArgumentException, IOException, XMLParseException,
+			NumberFormatException {
+		if (file == null)
+			throw new IllegalArgumentException("file cannot be null");
+		if (indexFile == null)
+			throw new IllegalArgumentException("indexFile cannot be null");
+
+		HPXMLParser parser = new HPXMLParser();
+
+		try {
+			parser.setInput(file);
+
+			if (parser.getEncoding().equals(StandardCharsets.UTF_16BE)
+					|| parser.getEncoding().equals(StandardCharsets.UTF_16LE))
+				throw new IllegalArgumentException("file [" + file
+						+ "] is UTF-16 encoded and can't be indexed");
+
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(indexFile)));
+
+			try {
+				return write(parser, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			parser.close();
+		}
+	}
+
+	private long write(HPXMLParser parser, DataOutputStream out)
+			throws IOException, XMLParseException {
+		boolean hasKeys = (keyAttribute != null);
+		byte[] encoding = parser.getEncoding().name()
+				.getBytes(CodingUtil.ISO_8859_1_CHARSET);
+
+		out.write(ElementIndex.MAGIC);
+		out.writeByte(ElementIndex.VERSION);
+		out.writeByte(encoding.length);
+		out.write(encoding);
+		out.writeInt(blockSize);
+
+		long position = ElementIndex.MAGIC.length + 2 + encoding.length + 4;
+
+		/*
+		 * Tag IDs are handed out in order starting at 0, every other tag is
+		 * given an ID after the ones registered here.
+		 */
+		int recordIdLimit = 0;
+
+		for (int i = 0; i < elementNames.length; i++)
+			recordIdLimit = Math.max(recordIdLimit,
+					parser.registerTag(elementNames[i]) + 1);
+
+		/*
+		 * Checkpoints, 3 per block: start offset and key of the first record
+		 * and the position of the block in the index.
+		 */
+		long[] checkpoints = new long[48];
+		int blockCount = 0;
+
+		byte[] block = new byte[blockSize * ElementIndex.MAX_ENTRY_SIZE];
+		int blockLength = 0;
+
+		boolean isSorted = true;
+		long count = 0;
+		long lastEnd = 0;
+		long lastKey = 0;
+		State state = null;
+
+		while ((state = parser.nextState()) != State.END_DOCUMENT) {
+			if (state != State.START_TAG || parser.getTagId() >= recordIdLimit)
+				continue;
+
+			long start = parser.getStartOffset();
+			long key = (hasKeys ? parseKey(parser, start) : 0);
+
+			parser.skipElement();
+			long end = parser.getEndOffset();
+
+			if (count > 0 && key < lastKey)
+				isSorted = false;
+
+			if (count % blockSize == 0) {
+				if (blockLength > 0) {
+					out.write(block, 0, blockLength);
+					position += blockLength;
+					blockLength = 0;
+				}
+
+				checkpoints = ArrayUtil.ensureCapacity(blockCount * 3 + 3,
+						checkpoints);
+				checkpoints[blockCount * 3] = start;
+				checkpoints[blockCount * 3 + 1] = key;
+				checkpoints[blockCount * 3 + 2] = position;
+				blockCount++;
+			} else {
+				blockLength = putVarLong(start - lastEnd, block, blockLength);
+
+				if (hasKeys)
+					blockLength = putVarLong(zigZag(key - lastKey), block,
+							blockLength);
+			}
+
+			blockLength = putVarLong(end - start, block, blockLength);
+
+			lastEnd = end;
+			lastKey = key;
+			count++;
+		}
+
+		out.write(block, 0, blockLength);
+		position += blockLength;
+
+		for (int i = 0, length = blockCount * 3; i < length; i++)
+			out.writeLong(checkpoints[i]);
+
+		// The trailer, only now is everything in it known.
+		out.writeByte((hasKeys ? ElementIndex.FLAG_KEYS : 0)
+				| (hasKeys && isSorted ? ElementIndex.FLAG_SORTED : 0));
+		out.writeInt(blockCount);
+		out.writeLong(count);
+		out.writeLong(position);
+
+		return count;
+	}
+
+	private long parseKey(HPXMLParser parser, long start)
+			throws XMLParseException, NumberFormatException {
+		IByteSource value = parser.getAttributeValue(keyAttribute);
+
+		if (value == null)
+			throw new XMLParseException("The record starting at position "
+					+ start + " in the XML document has no "
+					+ new String(keyAttribute, CodingUtil.UTF8_CHARSET)
+					+ " attribute to take its key from.");
+
+		return value.parseLong();
+	}
+
+	/**
+	 * Used to write <code>value</code> as an unsigned LEB128 varint, 7 bits
+	 * per byte with the high bit set on every byte but the last.
+	 *
+	 * @return the index right after the last byte written.
+	 */
+	static int putVarLong(long value, byte[] data, int index) {
+		while ((value & ~0x7FL) != 0) {
+			data[index++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		data[index++] = (byte) value;
+		return index;
+	}
+
+	/**
+	 * Used to map signed values to unsigned ones so small negative key
+	 * changes stay short as varints: 0, -1, 1, -2, ... become 0, 1, 2, 3, ...
+	 */
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+}
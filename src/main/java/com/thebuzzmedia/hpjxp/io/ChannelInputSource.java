@@ -0,0 +1,74 @@
+package com.thebuzzmedia.hpjxp.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * {@link IInputSource} that reads from a caller-supplied, blocking
+ * {@link ReadableByteChannel} (e.g. a socket channel) through a direct
+ * (off-heap) staging {@link ByteBuffer} owned by this source.
+ * <p/>
+ * Bytes still cross from native memory to the parser's heap buffer exactly
+ * once, as they do through an {@link java.io.InputStream} adapter. What the
+ * staging buffer changes is where that happens: a channel given a heap
+ * buffer reads into a temporary direct buffer from the JDK's per-thread
+ * cache, sized to the request, so a thread whose parser grew its buffer to
+ * several MB keeps a native buffer of that size for its lifetime. The
+ * staging buffer here is at most {@link #STAGING_SIZE} bytes, allocated on
+ * the first read and released with this source.
+ * <p/>
+ * Each read returns whatever a single {@link ReadableByteChannel#read} gave
+ * back, so a socket is never waited on for more than the bytes already in
+ * flight; the parser reads again whenever it needs more.
+ * <p/>
+ * Non-blocking channels should be driven through
+ * {@link com.thebuzzmedia.hpjxp.HPXMLParser#feed(ByteBuffer)} instead. The
+ * channel is never closed by this source; that remains the responsibility of
+ * the caller.
+ */
+public class ChannelInputSource implements IInputSource {
+	public static final Integer STAGING_SIZE = Integer.getInteger(
+			"hpjxp.io.channelStagingSize", 65536); // 1024*64 (64KB)
+
+	private ReadableByteChannel channel;
+
+	private ByteBuffer staging;
+
+	public ChannelInputSource(ReadableByteChannel channel)
+			throws IllegalArgumentException {
+		if (channel == null)
+			throw new IllegalArgumentException("channel cannot be null");
+		if (channel instanceof SelectableChannel
+				&& !((SelectableChannel) channel).isBlocking())
+			throw new IllegalArgumentException(
+					"channel must be in blocking mode, use HPXMLParser.setFeedInput() for non-blocking channels");
+
+		this.channel = channel;
+	}
+
+	public int read(byte[] buffer, int index, int length) throws IOException {
+		if (staging == null)
+			staging = ByteBuffer.allocateDirect(STAGING_SIZE);
+
+		staging.clear();
+
+		if (length < staging.capacity())
+			staging.limit(length);
+
+		int count = channel.read(staging);
+
+		if (count > 0) {
+			staging.flip();
+			staging.get(buffer, index, count);
+		}
+
+		return count;
+	}
+
+	public void close() throws IOException {
+		// Let the native memory go with the source rather than the thread.
+		staging = null;
+	}
+}
@@ -0,0 +1,40 @@
+package com.thebuzzmedia.hpjxp.io;
+
+import java.io.IOException;
+
+/**
+ * Interface used to describe a source of raw XML bytes that the
+ * {@link com.thebuzzmedia.hpjxp.HPXMLParser} pulls from whenever it needs to
+ * top-off its internal buffer.
+ * <p/>
+ * Implementations are not expected to be thread-safe; a source is owned by a
+ * single parser at a time.
+ */
+public interface IInputSource {
+	/**
+	 * Used to read up to <code>length</code> bytes from the underlying source
+	 * directly into the given <code>buffer</code>, starting at
+	 * <code>index</code>.
+	 * <p/>
+	 * Fewer than <code>length</code> bytes may be returned even if more are
+	 * still to come (e.g. from a socket); the parser reads again whenever it
+	 * needs more.
+	 * 
+	 * @return the number of bytes read or <code>-1</code> if the end of the
+	 *         source has been reached.
+	 * 
+	 * @throws IOException
+	 *             if any error occurs reading from the underlying source.
+	 */
+	public int read(byte[] buffer, int index, int length) throws IOException;
+
+	/**
+	 * Used to release any resources held by this source. Sources that wrap a
+	 * caller-supplied stream or channel leave it open; only resources the
+	 * source opened itself are closed.
+	 * 
+	 * @throws IOException
+	 *             if any error occurs releasing the underlying resources.
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,292 @@
+package com.thebuzzmedia.hpjxp.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * {@link IInputSource} that decompresses another (compressed) source,
+ * inflating straight into the parser's buffer.
+ * <p/>
+ * Compared to wrapping a stream in a {@link java.util.zip.GZIPInputStream},
+ * there is no intermediate buffer of decompressed bytes for the parser to
+ * copy out of; only the compressed bytes are staged, in a buffer of
+ * {@link #INPUT_SIZE} bytes instead of the JDK's 512 byte default. When the
+ * wrapped source is a {@link MappedFileSource} they aren't staged at all,
+ * the {@link Inflater} reads them straight out of the mapped windows.
+ * <p/>
+ * GZIP headers and trailers are handled here: every member's CRC-32 and
+ * size are verified and files made of several concatenated members (e.g.
+ * from <code>cat a.gz b.gz</code> or parallel compressors) are read as one.
+ * Like {@link java.util.zip.GZIPInputStream}, bytes after the last member
+ * that don't start a new member are ignored.
+ */
+public class InflaterInputSource implements IInputSource {
+	public static final Integer INPUT_SIZE = Integer.getInteger(
+			"hpjxp.io.inflateInputSize", 65536); // 1024*64 (64k)
+
+	public static enum Format {
+		/**
+		 * GZIP file format (RFC 1952), e.g. <code>.gz</code> files.
+		 */
+		GZIP,
+		/**
+		 * Deflate data with a zlib header and trailer (RFC 1950).
+		 */
+		ZLIB,
+		/**
+		 * Raw deflate data without any header or trailer (RFC 1951).
+		 */
+		DEFLATE;
+	}
+
+	private static final int GZIP_MAGIC = 0x8B1F;
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private IInputSource input;
+	private Format format;
+
+	private Inflater inflater;
+	private CRC32 crc;
+
+	/*
+	 * Compressed bytes; the remaining ones haven't been consumed yet. Either
+	 * the current window of mapped or a view of staged bytes read from input.
+	 */
+	private ByteBuffer in;
+	private MappedFileSource mapped;
+	private byte[] staged;
+
+	private boolean isHeaderNeeded;
+	private boolean isFirstMember = true;
+	private boolean isDone = false;
+
+	public InflaterInputSource(IInputSource input, Format format)
+			throws IllegalArgumentException {
+		if (input == null)
+			throw new IllegalArgumentException("input cannot be null");
+		if (format == null)
+			throw new IllegalArgumentException("format cannot be null");
+
+		this.input = input;
+		this.format = format;
+
+		if (input instanceof MappedFileSource)
+			mapped = (MappedFileSource) input;
+		else
+			staged = new byte[INPUT_SIZE];
+
+		in = ByteBuffer.allocate(0);
+
+		inflater = new Inflater(format != Format.ZLIB);
+		isHeaderNeeded = (format == Format.GZIP);
+
+		if (format == Format.GZIP)
+			crc = new CRC32();
+	}
+
+	public int read(byte[] buffer, int index, int length) throws IOException {
+		if (isDone)
+			return -1;
+		if (length == 0)
+			return 0;
+
+		while (true) {
+			if (isHeaderNeeded) {
+				if (!readHeader()) {
+					isDone = true;
+					return -1;
+				}
+
+				isHeaderNeeded = false;
+			}
+
+			int count;
+
+			try {
+				count = inflater.inflate(buffer, index, length);
+			} catch (DataFormatException e) {
+				throw new ZipException("Invalid " + format + " data: "
+						+ e.getMessage());
+			}
+
+			if (count > 0) {
+				if (crc != null)
+					crc.update(buffer, index, count);
+
+				return count;
+			}
+
+			/*
+			 * The inflater advances the position of in as it consumes it, so
+			 * whatever it didn't need is still remaining there.
+			 */
+			if (inflater.finished()) {
+				if (format != Format.GZIP) {
+					isDone = true;
+					return -1;
+				}
+
+				readTrailer();
+				inflater.reset();
+				crc.reset();
+				isHeaderNeeded = true;
+			} else if (inflater.needsDictionary())
+				throw new ZipException("Unsupported " + format
+						+ " data: a preset dictionary is required");
+			else if (inflater.needsInput()) {
+				if (!in.hasRemaining() && !fillInput())
+					throw new EOFException("Unexpected end of " + format
+							+ " data");
+
+				inflater.setInput(in);
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		inflater.end();
+		input.close();
+	}
+
+	/**
+	 * Used to replace the (fully consumed) compressed bytes with new ones
+	 * from the wrapped source.
+	 *
+	 * @return <code>false</code> if the wrapped source is exhausted.
+	 */
+	private boolean fillInput() throws IOException {
+		if (mapped != null) {
+			ByteBuffer window = mapped.nextWindow();
+
+			if (window == null)
+				return false;
+
+			in = window;
+			return true;
+		}
+
+		int count;
+
+		// Sources may return 0 bytes for a read, keep trying.
+		while ((count = input.read(staged, 0, staged.length)) == 0)
+			;
+
+		if (count == -1)
+			return false;
+
+		in = ByteBuffer.wrap(staged, 0, count);
+		return true;
+	}
+
+	private int readUByte() throws IOException {
+		if (!in.hasRemaining() && !fillInput())
+			throw new EOFException("Unexpected end of " + format + " data");
+
+		int value = in.get() & 0xFF;
+
+		if (isHeaderNeeded)
+			crc.update(value);
+
+		return value;
+	}
+
+	private int readUShort() throws IOException {
+		return readUByte() | (readUByte() << 8);
+	}
+
+	private long readUInt() throws IOException {
+		return (readUShort() & 0xFFFFL) | ((long) readUShort() << 16);
+	}
+
+	/**
+	 * Used to read the GZIP header of the next member.
+	 *
+	 * @return <code>false</code> if there is no next member.
+	 */
+	private boolean readHeader() throws IOException {
+		// A clean end of input between members ends the data.
+		if (!in.hasRemaining() && !fillInput()) {
+			if (isFirstMember)
+				throw new EOFException("Empty " + format + " data");
+
+			return false;
+		}
+
+		crc.reset();
+
+		/*
+		 * Anything after the first member that isn't another member is
+		 * trailing garbage and ignored; this is what GZIPInputStream does too.
+		 */
+		int next = in.position();
+
+		if (!isFirstMember && in.remaining() >= 2
+				&& ((in.get(next) & 0xFF) | ((in.get(next + 1) & 0xFF) << 8)) != GZIP_MAGIC)
+			return false;
+
+		if (readUShort() != GZIP_MAGIC)
+			throw new ZipException("Not in GZIP format");
+		if (readUByte() != 8)
+			throw new ZipException("Unsupported GZIP compression method");
+
+		int flags = readUByte();
+
+		// MTIME (4), XFL (1) and OS (1)
+		for (int i = 0; i < 6; i++)
+			readUByte();
+
+		if ((flags & FEXTRA) != 0) {
+			for (int i = readUShort(); i > 0; i--)
+				readUByte();
+		}
+
+		if ((flags & FNAME) != 0) {
+			while (readUByte() != 0)
+				;
+		}
+
+		if ((flags & FCOMMENT) != 0) {
+			while (readUByte() != 0)
+				;
+		}
+
+		if ((flags & FHCRC) != 0) {
+			int headerCRC = (int) crc.getValue() & 0xFFFF;
+
+			if (readUShort() != headerCRC)
+				throw new ZipException("Corrupt GZIP header");
+		}
+
+		crc.reset();
+		isFirstMember = false;
+
+		// The rest of the bytes are compressed data.
+		if (in.hasRemaining())
+			inflater.setInput(in);
+
+		return true;
+	}
+
+	/**
+	 * Used to read and verify the GZIP trailer (CRC-32 and size modulo 2^32)
+	 * of the member that was just inflated.
+	 */
+	private void readTrailer() throws IOException {
+		long expectedCRC = readUInt();
+		long expectedSize = readUInt();
+
+		if (expectedCRC != crc.getValue())
+			throw new ZipException("Corrupt GZIP trailer: CRC-32 mismatch");
+		if (expectedSize != (inflater.getBytesWritten() & 0xFFFFFFFFL))
+			throw new ZipException("Corrupt GZIP trailer: size mismatch");
+	}
+}
@@ -0,0 +1,28 @@
+package com.thebuzzmedia.hpjxp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link IInputSource} that reads from a caller-supplied {@link InputStream}.
+ * The stream is never closed by this source; that remains the responsibility
+ * of the caller.
+ */
+public class InputStreamSource implements IInputSource {
+	private InputStream input;
+
+	public InputStreamSource(InputStream input) throws IllegalArgumentException {
+		if (input == null)
+			throw new IllegalArgumentException("input cannot be null");
+
+		this.input = input;
+	}
+
+	public int read(byte[] buffer, int index, int length) throws IOException {
+		return input.read(buffer, index, length);
+	}
+
+	public void close() throws IOException {
+		// no-op, the caller owns the stream.
+	}
+}
@@ -0,0 +1,123 @@
+package com.thebuzzmedia.hpjxp.io;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * {@link IInputSource} that memory-maps a region of a {@link FileChannel} and
+ * copies bytes straight out of the mapping into the parser's buffer.
+ * <p/>
+ * Compared to reading through a {@link java.io.FileInputStream}, this avoids
+ * the <code>read</code> system call per refill as well as the JDK's
+ * intermediate native buffer; the OS page cache backs the mapping directly.
+ * <p/>
+ * A single {@link MappedByteBuffer} is limited to <code>2GB</code>, so the
+ * region is mapped in windows of {@link #WINDOW_SIZE} bytes which are
+ * re-mapped as the parser moves through the file. This allows files of any
+ * size to be parsed.
+ */
+public class MappedFileSource implements IInputSource {
+	public static final Integer WINDOW_SIZE = Integer.getInteger(
+			"hpjxp.io.mapWindowSize", 67108864); // 1024*1024*64 (64MB)
+
+	private boolean closeChannel;
+	private long windowSize;
+
+	private long position;
+	private long limit;
+
+	private FileChannel channel;
+	private MappedByteBuffer window;
+
+	/**
+	 * Create a source that maps the region of <code>channel</code> starting
+	 * at <code>position</code> and ending (exclusive) at <code>limit</code>.
+	 * 
+	 * @param closeChannel
+	 *            <code>true</code> if the channel was opened on behalf of the
+	 *            parser and should be closed by {@link #close()}.
+	 */
+	public MappedFileSource(FileChannel channel, long position, long limit,
+			boolean closeChannel) throws IllegalArgumentException {
+		this(channel, position, limit, closeChannel, WINDOW_SIZE);
+	}
+
+	/**
+	 * Create a source that maps the region of <code>channel</code> in
+	 * windows of <code>windowSize</code> bytes instead of
+	 * {@link #WINDOW_SIZE}.
+	 */
+	public MappedFileSource(FileChannel channel, long position, long limit,
+			boolean closeChannel, int windowSize)
+			throws IllegalArgumentException {
+		if (channel == null)
+			throw new IllegalArgumentException("channel cannot be null");
+		if (position < 0 || limit < position)
+			throw new IllegalArgumentException("position [" + position
+					+ "] must be >= 0 and <= limit [" + limit + "]");
+		if (windowSize < 1)
+			throw new IllegalArgumentException("windowSize [" + windowSize
+					+ "] must be >= 1");
+
+		this.position = position;
+		this.limit = limit;
+		this.channel = channel;
+		this.closeChannel = closeChannel;
+		this.windowSize = windowSize;
+	}
+
+	public int read(byte[] buffer, int index, int length) throws IOException {
+		int total = 0;
+
+		/*
+		 * Fill the request across window boundaries, one full refill is
+		 * cheaper for the parser than a short one followed by another.
+		 */
+		while (total < length) {
+			if ((window == null || !window.hasRemaining())
+					&& nextWindow() == null)
+				break;
+
+			int count = window.remaining();
+
+			if (length - total < count)
+				count = length - total;
+
+			window.get(buffer, index + total, count);
+			total += count;
+		}
+
+		return (total == 0 && length > 0 ? -1 : total);
+	}
+
+	/**
+	 * Used to map the next window of the region, dropping our reference to
+	 * the last one. Callers that can consume a {@link java.nio.ByteBuffer}
+	 * directly (e.g. {@link InflaterInputSource}) read the returned window in
+	 * place of calling {@link #read(byte[], int, int)}; reading from it
+	 * advances this source the same way.
+	 * 
+	 * @return the window or <code>null</code> if the end of the region has
+	 *         been reached.
+	 */
+	MappedByteBuffer nextWindow() throws IOException {
+		if (position >= limit)
+			return null;
+
+		long size = limit - position;
+		window = channel.map(MapMode.READ_ONLY, position,
+				(size < windowSize ? size : windowSize));
+		position += window.capacity();
+
+		return window;
+	}
+
+	public void close() throws IOException {
+		window = null;
+
+		if (closeChannel)
+			channel.close();
+	}
+}
@@ -0,0 +1,185 @@
+package com.thebuzzmedia.hpjxp.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link IInputSource} that reads from another source on a background
+ * thread, so the parser can scan the bytes it already has while the next
+ * ones are being read.
+ * <p/>
+ * Two chunks are double-buffered between the threads: while the parser
+ * copies out of one, the background thread fills the other. Handing a chunk
+ * over is a single copy into the parser's buffer, which keeps the parser's
+ * own carry-over of partially scanned constructs exactly as it is for a
+ * plain source.
+ * <p/>
+ * Closing this source stops the background thread and closes the wrapped
+ * source. A thread blocked reading a stream the wrapped source doesn't own
+ * (e.g. {@link InputStreamSource}) only exits once that read returns.
+ */
+public class ReadAheadInputSource implements IInputSource {
+	private static final ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "hpjxp-read-ahead");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private IInputSource input;
+
+	private BlockingQueue<Chunk> filled = new ArrayBlockingQueue<Chunk>(2);
+	private BlockingQueue<Chunk> empty = new ArrayBlockingQueue<Chunk>(2);
+
+	// Chunk the parser is currently copying out of.
+	private Chunk current;
+
+	private volatile boolean closed = false;
+	private Thread reader;
+
+	public ReadAheadInputSource(IInputSource input, int chunkSize)
+			throws IllegalArgumentException {
+		this(input, chunkSize, null);
+	}
+
+	/**
+	 * Create a source that reads ahead from the given source in chunks of
+	 * <code>chunkSize</code> bytes, ideally the size of the parser's buffer.
+	 *
+	 * @param threadFactory
+	 *            Used to create the background thread (e.g. to use virtual
+	 *            threads). If <code>null</code> a daemon thread is created.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if <code>input</code> is <code>null</code> or
+	 *             <code>chunkSize</code> is &lt; 1.
+	 */
+	public ReadAheadInputSource(IInputSource input, int chunkSize,
+			ThreadFactory threadFactory) throws IllegalArgumentException {
+		if (input == null)
+			throw new IllegalArgumentException("input cannot be null");
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("chunkSize [" + chunkSize
+					+ "] must be >= 1");
+
+		this.input = input;
+
+		empty.add(new Chunk(chunkSize));
+		empty.add(new Chunk(chunkSize));
+
+		reader = (threadFactory == null ? DEFAULT_THREAD_FACTORY
+				: threadFactory).newThread(new Runnable() {
+			public void run() {
+				readAhead();
+			}
+		});
+		reader.start();
+	}
+
+	public int read(byte[] buffer, int index, int length) throws IOException {
+		if (closed)
+			throw new IOException("source has been closed");
+
+		int total = 0;
+
+		while (total < length) {
+			if (current == null || current.position == current.length) {
+				Chunk next;
+
+				/*
+				 * Wait for the next chunk even if some bytes were copied
+				 * already; a full read is what the parser can use best, and
+				 * the chunk is usually already there.
+				 */
+				try {
+					next = filled.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"interrupted waiting on the read-ahead thread");
+				}
+
+				if (current != null)
+					empty.add(current);
+
+				current = next;
+			}
+
+			/*
+			 * A length of -1 means the reader has stopped (end of input or an
+			 * error). The test above never sees such a chunk as used up, so
+			 * no read waits for a chunk that will not come; every later read
+			 * ends here too. Bytes already copied are handed back first, the
+			 * error is thrown by the next read.
+			 */
+			if (current.length == -1) {
+				if (total > 0)
+					return total;
+				if (current.error != null)
+					throw new IOException("read-ahead failed", current.error);
+
+				return -1;
+			}
+
+			int count = current.length - current.position;
+
+			if (count > length - total)
+				count = length - total;
+
+			System.arraycopy(current.data, current.position, buffer, index
+					+ total, count);
+			current.position += count;
+			total += count;
+		}
+
+		return total;
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		reader.interrupt();
+		input.close();
+	}
+
+	/**
+	 * Run by the background thread: keeps filling empty chunks until the end
+	 * of the wrapped source, an error or {@link #close()}.
+	 */
+	private void readAhead() {
+		try {
+			while (!closed) {
+				Chunk chunk = empty.take();
+				chunk.position = 0;
+
+				try {
+					chunk.length = input.read(chunk.data, 0, chunk.data.length);
+				} catch (IOException e) {
+					chunk.length = -1;
+					chunk.error = e;
+				}
+
+				filled.add(chunk);
+
+				if (chunk.length == -1 || chunk.error != null)
+					break;
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	private static class Chunk {
+		private byte[] data;
+		private int position;
+		private int length;
+		private IOException error;
+
+		private Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+}
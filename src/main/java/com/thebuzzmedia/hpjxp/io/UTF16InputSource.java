@@ -0,0 +1,68 @@
+package com.thebuzzmedia.hpjxp.io;
+
+import java.io.IOException;
+
+import com.thebuzzmedia.hpjxp.util.UTF16Transcoder;
+
+/**
+ * {@link IInputSource} that transcodes another (UTF-16 encoded) source to
+ * UTF-8 as it is read, writing straight into the parser's buffer.
+ * <p/>
+ * The parser scans and compares raw bytes assuming ASCII is encoded as
+ * itself; transcoding chunk by chunk keeps that true for UTF-16 documents
+ * without converting the whole document up front. Only a staging buffer of
+ * {@link UTF16Transcoder#INPUT_SIZE} UTF-16 bytes is used.
+ * <p/>
+ * Positions reported by the parser for these documents are offsets into the
+ * transcoded UTF-8 bytes, not the original input.
+ */
+public class UTF16InputSource implements IInputSource {
+	private IInputSource input;
+	private UTF16Transcoder transcoder;
+
+	private boolean isEOF = false;
+
+	public UTF16InputSource(IInputSource input, boolean isBigEndian)
+			throws IllegalArgumentException {
+		this(input, isBigEndian, null, 0, 0);
+	}
+
+	/**
+	 * Create a source that transcodes the given UTF-16 bytes, already read
+	 * from <code>input</code> (e.g. to detect the encoding), before reading
+	 * any more from it.
+	 */
+	public UTF16InputSource(IInputSource input, boolean isBigEndian,
+			byte[] prefix, int index, int length)
+			throws IllegalArgumentException {
+		if (input == null)
+			throw new IllegalArgumentException("input cannot be null");
+
+		this.input = input;
+		transcoder = new UTF16Transcoder(isBigEndian);
+
+		if (length > 0)
+			transcoder.append(prefix, index, length);
+	}
+
+	public int read(byte[] buffer, int index, int length) throws IOException {
+		if (length == 0)
+			return 0;
+
+		while (true) {
+			int count = transcoder.transcode(buffer, index, length, isEOF);
+
+			if (count > 0)
+				return count;
+			if (isEOF)
+				return -1;
+
+			if (transcoder.fill(input) == -1)
+				isEOF = true;
+		}
+	}
+
+	public void close() throws IOException {
+		input.close();
+	}
+}
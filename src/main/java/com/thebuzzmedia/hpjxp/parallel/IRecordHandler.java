@@ -0,0 +1,27 @@
+package com.thebuzzmedia.hpjxp.parallel;
+
+import java.io.IOException;
+
+import com.thebuzzmedia.hpjxp.HPXMLParser;
+
+/**
+ * Interface used to process a single record for a
+ * {@link ParallelRecordParser}.
+ * <p/>
+ * Handlers are called concurrently from multiple threads (each with its own
+ * parser), so implementations must be thread-safe.
+ */
+public interface IRecordHandler<T> {
+	/**
+	 * Used to process the record whose {@link HPXMLParser.State#START_TAG} the
+	 * given parser is currently in.
+	 * <p/>
+	 * The handler is expected to advance the parser up to and including the
+	 * record's {@link HPXMLParser.State#END_TAG} (e.g. with
+	 * {@link HPXMLParser#nextState()} or {@link HPXMLParser#skipElement()}) and
+	 * no further.
+	 * 
+	 * @return the result for this record; may be <code>null</code>.
+	 */
+	public T handleRecord(HPXMLParser parser) throws IOException;
+}
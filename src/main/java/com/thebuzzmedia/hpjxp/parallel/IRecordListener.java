@@ -0,0 +1,13 @@
+package com.thebuzzmedia.hpjxp.parallel;
+
+/**
+ * Interface used to receive record results from a
+ * {@link ParallelRecordParser} as soon as they are available, in no
+ * particular order.
+ * <p/>
+ * Listeners are called concurrently from multiple threads, so implementations
+ * must be thread-safe.
+ */
+public interface IRecordListener<T> {
+	public void recordHandled(T result);
+}
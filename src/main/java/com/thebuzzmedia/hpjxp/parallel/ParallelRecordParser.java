@@ -0,0 +1,317 @@
+package com.thebuzzmedia.hpjxp.parallel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import com.thebuzzmedia.hpjxp.Constants;
+import com.thebuzzmedia.hpjxp.HPXMLParser;
+import com.thebuzzmedia.hpjxp.HPXMLParser.State;
+import com.thebuzzmedia.hpjxp.XMLParseException;
+import com.thebuzzmedia.hpjxp.io.MappedFileSource;
+import com.thebuzzmedia.hpjxp.util.CodingUtil;
+import com.thebuzzmedia.hpjxp.util.ScannerUtil;
+
+/**
+ * Class used to parse a large file made up of a long sequence of sibling
+ * records (e.g. <code>&lt;root&gt;&lt;rec&gt;...&lt;/rec&gt;&lt;rec&gt;...&lt;/rec&gt;&lt;/root&gt;</code>)
+ * on multiple cores.
+ * <p/>
+ * The file is split into N byte ranges and each split point is moved forward
+ * to the next real record start by scanning for the record's start tag
+ * (<code>&lt;rec</code> followed by whitespace, '/' or '&gt;'). Each range is
+ * then parsed by its own {@link HPXMLParser} on a {@link ForkJoinPool},
+ * calling the given {@link IRecordHandler} for every record start tag found.
+ * <p/>
+ * <h3>Assumptions</h3>
+ * Because split points are found by a raw byte scan, the record's start tag
+ * must not appear inside of comments or CDATA blocks and records must not be
+ * nested inside of other records of the same name. This holds for the typical
+ * feed-style documents this class is designed for.
+ * <p/>
+ * Instances are thread-safe and can be reused.
+ */
+public class ParallelRecordParser {
+	public static final int SPLIT_SCAN_SIZE = 65536;
+
+	private byte[] recordName;
+	private byte[] recordPrefix;
+
+	private int splits;
+	private ForkJoinPool pool;
+
+	/**
+	 * Create a parser for records with the given tag name, splitting files
+	 * into as many ranges as the common {@link ForkJoinPool} has threads.
+	 */
+	public ParallelRecordParser(String recordName)
+			throws IllegalArgumentException {
+		this(recordName, ForkJoinPool.commonPool(), ForkJoinPool
+				.commonPool().getParallelism());
+	}
+
+	/**
+	 * Create a parser for records with the given tag name, splitting files
+	 * into at most <code>splits</code> ranges which are parsed on the given
+	 * pool.
+	 */
+	public ParallelRecordParser(String recordName, ForkJoinPool pool,
+			int splits) throws IllegalArgumentException {
+		if (recordName == null || recordName.length() == 0)
+			throw new IllegalArgumentException(
+					"recordName cannot be null or empty");
+		if (pool == null)
+			throw new IllegalArgumentException("pool cannot be null");
+		if (splits < 1)
+			throw new IllegalArgumentException("splits [" + splits
+					+ "] must be >= 1");
+
+		this.recordName = recordName.getBytes(CodingUtil.UTF8_CHARSET);
+		this.pool = pool;
+		this.splits = splits;
+
+		// '<' followed by the name, used to find the record starts.
+		recordPrefix = new byte[this.recordName.length + 1];
+		recordPrefix[0] = Constants.LT;
+		System.arraycopy(this.recordName, 0, recordPrefix, 1,
+				this.recordName.length);
+	}
+
+	/**
+	 * Used to parse every record in the given file, returning the results of
+	 * the handler in document order.
+	 * 
+	 * @throws IOException
+	 *             if any error occurs reading the file or is thrown by the
+	 *             handler.
+	 * @throws XMLParseException
+	 *             if a range is not well-formed or the handler throws one.
+	 *             This and any other unchecked exception thrown by the
+	 *             handler are rethrown as-is; see {@link ForkJoinTask#invoke()}
+	 *             for how they may be wrapped when thrown on another thread.
+	 */
+	public <T> List<T> parse(Path file, IRecordHandler<T> handler)
+			throws IllegalArgumentException, IOException, XMLParseException {
+		return run(file, handler, null);
+	}
+
+	/**
+	 * Used to parse every record in the given file, handing each result of the
+	 * handler to the given listener as soon as it is available. Results arrive
+	 * in no particular order and from multiple threads.
+	 * 
+	 * @throws IOException
+	 *             if any error occurs reading the file or is thrown by the
+	 *             handler.
+	 * @throws XMLParseException
+	 *             if a range is not well-formed or the handler throws one.
+	 *             This and any other unchecked exception thrown by the
+	 *             handler are rethrown as-is; see {@link ForkJoinTask#invoke()}
+	 *             for how they may be wrapped when thrown on another thread.
+	 */
+	public <T> void parse(Path file, IRecordHandler<T> handler,
+			IRecordListener<T> listener) throws IllegalArgumentException,
+			IOException, XMLParseException {
+		if (listener == null)
+			throw new IllegalArgumentException("listener cannot be null");
+
+		run(file, handler, listener);
+	}
+
+	private <T> List<T> run(Path file, IRecordHandler<T> handler,
+			IRecordListener<T> listener) throws IllegalArgumentException,
+			IOException {
+		if (file == null)
+			throw new IllegalArgumentException("file cannot be null");
+		if (handler == null)
+			throw new IllegalArgumentException("handler cannot be null");
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+			long[] bounds = split(channel);
+			List<RangeTask<T>> tasks = new ArrayList<RangeTask<T>>();
+
+			for (int i = 0; i < bounds.length - 1; i++) {
+				if (bounds[i] < bounds[i + 1])
+					tasks.add(new RangeTask<T>(channel, bounds[i],
+							bounds[i + 1], handler, listener));
+			}
+
+			try {
+				return pool.invoke(new JoinTask<T>(tasks));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Used to calculate the range boundaries, every one except the first and
+	 * last being the position of a record start tag.
+	 */
+	private long[] split(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long[] bounds = new long[splits + 1];
+
+		bounds[splits] = size;
+
+		for (int i = 1; i < splits; i++) {
+			long position = size / splits * i;
+
+			// Never move backwards over the previous split.
+			if (position < bounds[i - 1])
+				position = bounds[i - 1];
+
+			bounds[i] = findRecordStart(channel, position, size);
+		}
+
+		return bounds;
+	}
+
+	/**
+	 * Used to find the position of the first record start tag at or after
+	 * <code>position</code>, or <code>size</code> if there is none.
+	 */
+	private long findRecordStart(FileChannel channel, long position, long size)
+			throws IOException {
+		byte[] chunk = new byte[SPLIT_SCAN_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+
+		while (position < size) {
+			buffer.clear();
+
+			// Positional reads, the channel is shared between tasks.
+			while (buffer.hasRemaining()
+					&& channel.read(buffer, position + buffer.position()) != -1)
+				;
+
+			int length = buffer.position();
+
+			for (int i = 0; (i = ScannerUtil.indexOf(recordPrefix, i, length
+					- i, chunk)) != Constants.INVALID; i++) {
+				int delimIdx = i + recordPrefix.length;
+
+				// Delimiter isn't in this chunk, the overlap below handles it.
+				if (delimIdx >= length)
+					break;
+
+				// The full name and not just the start of a longer name?
+				if (isNameDelim(chunk[delimIdx]))
+					return position + i;
+			}
+
+			if (position + length >= size)
+				break;
+
+			// Overlap so a start tag straddling two chunks is found.
+			position += length - recordPrefix.length;
+		}
+
+		return size;
+	}
+
+	private static boolean isNameDelim(byte value) {
+		for (int i = 0; i < Constants.TAG_NAME_DELIM.length; i++) {
+			if (value == Constants.TAG_NAME_DELIM[i])
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Task used to parse a single range of the file.
+	 */
+	private class RangeTask<T> extends RecursiveTask<List<T>> {
+		private static final long serialVersionUID = 1L;
+
+		private long start;
+		private long end;
+
+		private FileChannel channel;
+		private IRecordHandler<T> handler;
+		private IRecordListener<T> listener;
+
+		public RangeTask(FileChannel channel, long start, long end,
+				IRecordHandler<T> handler, IRecordListener<T> listener) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.handler = handler;
+			this.listener = listener;
+		}
+
+		@Override
+		protected List<T> compute() {
+			List<T> results = (listener == null ? new ArrayList<T>() : null);
+
+			// Closed even if the handler fails, releasing its buffer.
+			try (HPXMLParser parser = new HPXMLParser()) {
+				int recordId = parser.registerTag(recordName);
+
+				// Offsets reported to the handler are offsets in the file.
+				parser.setInput(new MappedFileSource(channel, start, end,
+						false), start);
+
+				State state = null;
+
+				while ((state = parser.nextState()) != State.END_DOCUMENT) {
+					if (state == State.START_TAG
+							&& parser.getTagId() == recordId) {
+						T result = handler.handleRecord(parser);
+
+						if (listener == null)
+							results.add(result);
+						else
+							listener.recordHandled(result);
+					}
+				}
+			} catch (IOException e) {
+				// Unwrapped again by run(), unchecked exceptions pass as-is.
+				throw new UncheckedIOException(e);
+			}
+
+			return results;
+		}
+	}
+
+	/**
+	 * Task used to fork every range task and join their results in order.
+	 */
+	private class JoinTask<T> extends RecursiveTask<List<T>> {
+		private static final long serialVersionUID = 1L;
+
+		private List<RangeTask<T>> tasks;
+
+		public JoinTask(List<RangeTask<T>> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected List<T> compute() {
+			invokeAll(tasks);
+
+			List<T> results = new ArrayList<T>();
+
+			for (RangeTask<T> task : tasks) {
+				List<T> taskResults = task.join();
+
+				if (taskResults != null)
+					results.addAll(taskResults);
+			}
+
+			return results;
+		}
+	}
+}
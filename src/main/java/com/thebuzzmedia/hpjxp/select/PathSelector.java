@@ -0,0 +1,416 @@
+package com.thebuzzmedia.hpjxp.select;
+
+import java.io.IOException;
+
+import com.thebuzzmedia.hpjxp.Constants;
+import com.thebuzzmedia.hpjxp.HPXMLParser;
+import com.thebuzzmedia.hpjxp.HPXMLParser.State;
+import com.thebuzzmedia.hpjxp.XMLParseException;
+import com.thebuzzmedia.hpjxp.buffer.IByteSource;
+import com.thebuzzmedia.hpjxp.util.ArrayUtil;
+import com.thebuzzmedia.hpjxp.util.CodingUtil;
+
+/**
+ * Class used to drive an {@link HPXMLParser} so that it only reports the
+ * elements matching one or more simple path expressions, fast-skipping every
+ * subtree that cannot contain a match.
+ * <p/>
+ * <h3>Path Language</h3>
+ * A path is a sequence of steps, each one made up of:
+ * <ul>
+ * <li><code>/name</code> - a child element with the given name.</li>
+ * <li><code>//name</code> - a descendant element (at any depth) with the given
+ * name.</li>
+ * <li><code>*</code> - in place of a name, matches any element.</li>
+ * <li><code>[@attr]</code> or <code>[@attr='value']</code> - optionally
+ * following a name, requires the element to have the given attribute (with
+ * the given value).</li>
+ * </ul>
+ * For example: <code>/feed/item/price</code>, <code>//offer[@type]</code> or
+ * <code>/feed/*&#47;id</code>.
+ * <p/>
+ * <h3>Performance</h3>
+ * All the paths given to a selector are compiled once into a single
+ * automaton over the tag IDs of the parser (see
+ * {@link HPXMLParser#getTagId()}), so one pass over a document serves all of
+ * them and tag names are never decoded. While walking the document the
+ * selector keeps, per element depth, the set of path steps that could still
+ * match; as soon as that set is empty (and we are not inside of a match) the
+ * whole subtree is skipped with {@link HPXMLParser#skipElement()}.
+ * <p/>
+ * <h3>Usage</h3>
+ * Call {@link #nextState()} in place of {@link HPXMLParser#nextState()}; it
+ * only returns the events for matched elements and everything inside of
+ * them, followed by {@link State#END_DOCUMENT}. All the <code>getXXX</code>
+ * methods of the parser can be used as normal for the returned events, but
+ * the parser must not be advanced directly while a selector is driving it.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+public class PathSelector {
+	/**
+	 * Tag ID used by a step that matches any element name.
+	 */
+	public static final int WILDCARD = -2;
+
+	private HPXMLParser parser;
+
+	private int pathCount;
+
+	// Compiled steps, a path's steps are stored consecutively.
+	private int stepCount = 0;
+	private int[] stepTagIds = new int[16];
+	private int[] stepPaths = new int[16];
+	private boolean[] stepDescendant = new boolean[16];
+	private boolean[] stepLast = new boolean[16];
+	private byte[][] stepAttrNames = new byte[16][];
+	private byte[][] stepAttrValues = new byte[16][];
+
+	/*
+	 * Active steps for each open element depth; frame N is stored from
+	 * frameEnds[N - 1] (or 0) up to frameEnds[N].
+	 */
+	private int depth;
+	private int[] frames = new int[64];
+	private int[] frameEnds = new int[16];
+
+	// Path matched by the element at each depth and innermost enclosing match
+	private int[] matches = new int[16];
+	private int[] enclosingMatches = new int[16];
+
+	// Used to avoid adding the same step to a frame twice.
+	private int generation = 0;
+	private int[] stepGenerations;
+
+	// Set while a skipElement() is waiting on more fed input.
+	private boolean isSkipping;
+
+	/**
+	 * Create a selector that drives the given parser, reporting the elements
+	 * matching any one of the given paths.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>parser</code> is <code>null</code>, no paths are
+	 *             given or any path is malformed.
+	 */
+	public PathSelector(HPXMLParser parser, String... paths)
+			throws IllegalArgumentException {
+		if (parser == null)
+			throw new IllegalArgumentException("parser cannot be null");
+		if (paths == null || paths.length == 0)
+			throw new IllegalArgumentException(
+					"paths cannot be null or empty");
+
+		this.parser = parser;
+		this.pathCount = paths.length;
+
+		for (int i = 0; i < paths.length; i++)
+			compile(i, paths[i]);
+
+		stepGenerations = new int[stepCount];
+		reset();
+	}
+
+	/**
+	 * Used to get the number of paths this selector was compiled with.
+	 */
+	public int getPathCount() {
+		return pathCount;
+	}
+
+	/**
+	 * Used to reset the selector back to the top of a document. This must be
+	 * called whenever a new input is set on the parser.
+	 */
+	public void reset() {
+		depth = 0;
+		isSkipping = false;
+		frameEnds[0] = 0;
+		matches[0] = Constants.INVALID;
+		enclosingMatches[0] = Constants.INVALID;
+
+		// The root frame holds the first step of every path.
+		frames = ArrayUtil.ensureCapacity(pathCount, frames);
+
+		for (int i = 0; i < stepCount; i++) {
+			if (i == 0 || stepLast[i - 1])
+				frames[frameEnds[0]++] = i;
+		}
+	}
+
+	/**
+	 * Used to advance the parser to the next event that is either a matched
+	 * element or inside of one. See {@link HPXMLParser#nextState()}.
+	 * 
+	 * @return the next event for a matched element,
+	 *         {@link State#NEED_MORE_INPUT} if the parser is in push mode
+	 *         and ran out of fed bytes, or {@link State#END_DOCUMENT}.
+	 */
+	public State nextState() throws IOException, XMLParseException {
+		while (true) {
+			State state = parser.nextState();
+
+			// The parser resumed a skip, this is the skipped element's END_TAG.
+			if (isSkipping && state == State.END_TAG) {
+				isSkipping = false;
+				continue;
+			}
+
+			switch (state) {
+			case START_TAG:
+				if (push())
+					return state;
+				break;
+
+			case END_TAG:
+				// Stray end tag with no matching start tag, ignore it.
+				if (depth == 0)
+					break;
+
+				// Report the END_TAG of anything we reported the START_TAG of.
+				boolean inMatch = (enclosingMatches[depth] != Constants.INVALID);
+				depth--;
+
+				if (inMatch)
+					return state;
+				break;
+
+			case TEXT:
+				if (enclosingMatches[depth] != Constants.INVALID)
+					return state;
+				break;
+
+			default:
+				return state;
+			}
+		}
+	}
+
+	/**
+	 * Used to get the index (in the order given to the constructor) of the
+	 * path matched by the element of the current {@link State#START_TAG} or
+	 * {@link State#END_TAG} event. If the element matches more than one path,
+	 * the lowest index is returned.
+	 * 
+	 * @return the index of the matched path or {@link Constants#INVALID} if
+	 *         the current element is only reported because it is inside of a
+	 *         matched element.
+	 */
+	public int getMatch() {
+		// An END_TAG has already popped its depth.
+		return (parser.getState() == State.END_TAG ? matches[depth + 1]
+				: matches[depth]);
+	}
+
+	/**
+	 * Used to get the index of the path matched by the innermost matched
+	 * element enclosing (or being) the current event.
+	 * 
+	 * @return the index of the matched path or {@link Constants#INVALID} if
+	 *         not inside a matched element.
+	 */
+	public int getEnclosingMatch() {
+		return (parser.getState() == State.END_TAG ? enclosingMatches[depth + 1]
+				: enclosingMatches[depth]);
+	}
+
+	/**
+	 * Used to run the automaton for the START_TAG the parser is on, pushing a
+	 * new frame for it or skipping it entirely.
+	 * 
+	 * @return <code>true</code> if the START_TAG should be reported.
+	 */
+	private boolean push() throws IOException, XMLParseException {
+		int tagId = parser.getTagId();
+		int from = (depth == 0 ? 0 : frameEnds[depth - 1]);
+		int to = frameEnds[depth];
+		int end = to;
+		int match = Constants.INVALID;
+
+		generation++;
+
+		for (int i = from; i < to; i++) {
+			int step = frames[i];
+
+			// A descendant step stays active for every level below.
+			if (stepDescendant[step])
+				end = addStep(step, end);
+
+			if (matches(step, tagId)) {
+				if (!stepLast[step])
+					end = addStep(step + 1, end);
+				else if (match == Constants.INVALID
+						|| stepPaths[step] < match)
+					match = stepPaths[step];
+			}
+		}
+
+		int enclosingMatch = (match == Constants.INVALID ? enclosingMatches[depth]
+				: match);
+
+		// Nothing in here can match and we aren't inside a match, skip it.
+		if (end == to && enclosingMatch == Constants.INVALID) {
+			isSkipping = (parser.skipElement() == State.NEED_MORE_INPUT);
+			return false;
+		}
+
+		depth++;
+		frameEnds = ArrayUtil.ensureCapacity(depth + 1, frameEnds);
+		matches = ArrayUtil.ensureCapacity(depth + 1, matches);
+		enclosingMatches = ArrayUtil.ensureCapacity(depth + 1,
+				enclosingMatches);
+
+		frameEnds[depth] = end;
+		matches[depth] = match;
+		enclosingMatches[depth] = enclosingMatch;
+
+		return (enclosingMatch != Constants.INVALID);
+	}
+
+	private int addStep(int step, int end) {
+		if (stepGenerations[step] != generation) {
+			stepGenerations[step] = generation;
+			frames = ArrayUtil.ensureCapacity(end + 1, frames);
+			frames[end++] = step;
+		}
+
+		return end;
+	}
+
+	private boolean matches(int step, int tagId) {
+		if (stepTagIds[step] != WILDCARD && stepTagIds[step] != tagId)
+			return false;
+
+		byte[] attrName = stepAttrNames[step];
+
+		if (attrName == null)
+			return true;
+
+		IByteSource value = parser.getAttributeValue(attrName);
+
+		if (value == null)
+			return false;
+
+		byte[] expected = stepAttrValues[step];
+
+		return (expected == null || (value.getLength() == expected.length && ArrayUtil
+				.equals(expected, value.getIndex(), value.getArray())));
+	}
+
+	private void compile(int path, String expression)
+			throws IllegalArgumentException {
+		if (expression == null || expression.length() == 0
+				|| expression.charAt(0) != '/')
+			throw new IllegalArgumentException("path [" + expression
+					+ "] must start with '/'");
+
+		int i = 0;
+		int length = expression.length();
+
+		while (i < length) {
+			boolean descendant = false;
+
+			// Every step starts with '/' or '//'
+			if (expression.charAt(i) != '/')
+				throw new IllegalArgumentException("path [" + expression
+						+ "] is missing a '/' at index " + i);
+			if (++i < length && expression.charAt(i) == '/') {
+				descendant = true;
+				i++;
+			}
+
+			int nameStart = i;
+
+			while (i < length && expression.charAt(i) != '/'
+					&& expression.charAt(i) != '[')
+				i++;
+
+			if (i == nameStart)
+				throw new IllegalArgumentException("path [" + expression
+						+ "] has an empty step at index " + nameStart);
+
+			String name = expression.substring(nameStart, i);
+			String attrName = null;
+			String attrValue = null;
+
+			// Optional [@attr] or [@attr='value'] predicate.
+			if (i < length && expression.charAt(i) == '[') {
+				int close = expression.indexOf(']', i);
+
+				if (close == -1 || i + 1 >= length
+						|| expression.charAt(i + 1) != '@')
+					throw new IllegalArgumentException("path [" + expression
+							+ "] has a malformed predicate at index " + i
+							+ ", expected [@attr] or [@attr='value']");
+
+				String predicate = expression.substring(i + 2, close);
+				int equals = predicate.indexOf('=');
+
+				if (equals == -1)
+					attrName = predicate;
+				else {
+					attrName = predicate.substring(0, equals);
+					attrValue = predicate.substring(equals + 1);
+
+					if (attrValue.length() < 2
+							|| (attrValue.charAt(0) != '\''
+									&& attrValue.charAt(0) != '"')
+							|| attrValue.charAt(attrValue.length() - 1) != attrValue
+									.charAt(0))
+						throw new IllegalArgumentException("path ["
+								+ expression
+								+ "] has a malformed predicate value at index "
+								+ i + ", the value must be quoted");
+
+					attrValue = attrValue.substring(1, attrValue.length() - 1);
+				}
+
+				if (attrName.length() == 0)
+					throw new IllegalArgumentException("path [" + expression
+							+ "] has an empty attribute name at index " + i);
+
+				i = close + 1;
+			}
+
+			addStep(path, descendant, name, attrName, attrValue, i == length);
+		}
+	}
+
+	private void addStep(int path, boolean descendant, String name,
+			String attrName, String attrValue, boolean last) {
+		int step = stepCount++;
+
+		if (step == stepTagIds.length) {
+			int capacity = step * 2;
+
+			stepTagIds = ArrayUtil.ensureCapacity(capacity, stepTagIds);
+			stepPaths = ArrayUtil.ensureCapacity(capacity, stepPaths);
+			stepDescendant = copyOf(stepDescendant, capacity);
+			stepLast = copyOf(stepLast, capacity);
+			stepAttrNames = copyOf(stepAttrNames, capacity);
+			stepAttrValues = copyOf(stepAttrValues, capacity);
+		}
+
+		stepPaths[step] = path;
+		stepDescendant[step] = descendant;
+		stepLast[step] = last;
+		stepTagIds[step] = ("*".equals(name) ? WILDCARD : parser
+				.registerTag(name));
+		stepAttrNames[step] = (attrName == null ? null : attrName
+				.getBytes(CodingUtil.UTF8_CHARSET));
+		stepAttrValues[step] = (attrValue == null ? null : attrValue
+				.getBytes(CodingUtil.UTF8_CHARSET));
+	}
+
+	private static boolean[] copyOf(boolean[] array, int capacity) {
+		boolean[] newArray = new boolean[capacity];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+
+	private static byte[][] copyOf(byte[][] array, int capacity) {
+		byte[][] newArray = new byte[capacity][];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+}
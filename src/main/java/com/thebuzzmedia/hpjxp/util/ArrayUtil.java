@@ -1,5 +1,7 @@
 package com.thebuzzmedia.hpjxp.util;
 
+import java.util.Arrays;
+
 public class ArrayUtil {
 	public static byte[] ensureCapacity(int capacity, byte[] array) {
 		return ensureCapacity(capacity, 1, array);
@@ -20,22 +22,39 @@ public class ArrayUtil {
 		return newArray;
 	}
 
-	public static boolean equals(byte[] values, int index, byte[] source) {
-		boolean result = false;
-		int length = values.length;
+	public static int[] ensureCapacity(int capacity, int[] array) {
+		if (capacity <= array.length)
+			return array;
+
+		int newCapacity = array.length * 2;
+
+		if (newCapacity < capacity)
+			newCapacity = capacity;
+
+		int[] newArray = new int[newCapacity];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+
+	public static long[] ensureCapacity(int capacity, long[] array) {
+		if (capacity <= array.length)
+			return array;
 
-		if (index + length <= source.length) {
-			int i = 0;
+		int newCapacity = array.length * 2;
 
-			// Loop and try and match every value
-			for (; i < length && values[i] == source[index + i]; i++) {
-				// no-op, for-loop header does all the work.
-			}
+		if (newCapacity < capacity)
+			newCapacity = capacity;
 
-			// If we looped the whole array, then we DID match every value.
-			result = (i == length);
-		}
+		long[] newArray = new long[newCapacity];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+
+	public static boolean equals(byte[] values, int index, byte[] source) {
+		int length = values.length;
 
-		return result;
+		return index + length <= source.length
+				&& Arrays.equals(values, 0, length, source, index, index
+						+ length);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,397 @@
+package com.thebuzzmedia.hpjxp.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import com.thebuzzmedia.hpjxp.Constants;
+
+/**
+ * Reusable decoder that turns regions of a <code>byte[]</code> into chars
+ * written to caller-owned destinations without allocating per call.
+ * <p/>
+ * A single {@link CharsetDecoder} is reused for every call, along with the
+ * {@link ByteBuffer} and {@link CharBuffer} views wrapping the source and
+ * destination arrays; the views are only re-created when a different array
+ * is passed in. Malformed or unmappable input is replaced rather than
+ * reported.
+ * <p/>
+ * For charsets that encode ASCII as itself (e.g. UTF-8), values without
+ * any high bit set are widened straight to chars instead. The owner of the
+ * decoder can go one step further and declare all of its input ASCII (see
+ * {@link #setAsciiInput(boolean)}) so even that check is skipped.
+ * <p/>
+ * Single-byte charsets (e.g. ISO-8859-1 or windows-1252) skip the
+ * {@link CharsetDecoder} altogether and map every byte through a 256 entry
+ * lookup table built once per charset.
+ * <p/>
+ * Each {@link com.thebuzzmedia.hpjxp.HPXMLParser} owns one instance which
+ * the byte sources it hands out decode with. Instances are not thread-safe.
+ */
+public class CharDecoder {
+	public static final int SCRATCH_SIZE = 512;
+
+	private Charset charset;
+	private CharsetDecoder decoder;
+
+	private boolean isUTF8;
+	private boolean isAsciiCompatible;
+
+	// Char of every byte value for single-byte charsets, otherwise null.
+	private char[] table;
+	private boolean isAsciiInput = false;
+
+	private byte[] inArray;
+	private ByteBuffer in;
+
+	private char[] outArray;
+	private CharBuffer out;
+
+	// Used to decode into a StringBuilder in chunks.
+	private char[] scratch;
+	private CharBuffer scratchBuffer;
+
+	public CharDecoder(Charset charset) throws IllegalArgumentException {
+		setCharset(charset);
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Used to switch this decoder to the given charset, e.g. once the
+	 * encoding of a new document is known. Does nothing if it already uses
+	 * the charset.
+	 * <p/>
+	 * This also clears {@link #isAsciiInput()}.
+	 */
+	public void setCharset(Charset charset) throws IllegalArgumentException {
+		if (charset == null)
+			throw new IllegalArgumentException("charset cannot be null");
+
+		isAsciiInput = false;
+
+		if (charset.equals(this.charset))
+			return;
+
+		this.charset = charset;
+		decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		isUTF8 = charset.equals(CodingUtil.UTF8_CHARSET);
+		table = null;
+
+		// Decode every byte value on its own to see how the charset maps it.
+		byte[] bytes = new byte[256];
+
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) i;
+
+		String ascii = new String(bytes, 0, 128, charset);
+		isAsciiCompatible = (ascii.length() == 128);
+
+		for (int i = 0; isAsciiCompatible && i < 128; i++)
+			isAsciiCompatible = (ascii.charAt(i) == i);
+
+		if (isAsciiCompatible && isSingleByte(charset)) {
+			table = new String(bytes, charset).toCharArray();
+
+			if (table.length != bytes.length)
+				table = null;
+		}
+	}
+
+	public boolean isAsciiCompatible() {
+		return isAsciiCompatible;
+	}
+
+	/**
+	 * Used to determine if this decoder maps bytes to chars one to one
+	 * through a lookup table, which is the case for single-byte charsets
+	 * that encode ASCII as itself.
+	 */
+	public boolean isSingleByte() {
+		return (table != null);
+	}
+
+	/**
+	 * Used to get the char every byte value decodes to, indexed by
+	 * <code>(value &amp; 0xFF)</code>, or <code>null</code> if the charset is
+	 * not single-byte (see {@link #isSingleByte()}). The array is shared and
+	 * must not be modified.
+	 */
+	public char[] getTable() {
+		return table;
+	}
+
+	public boolean isAsciiInput() {
+		return isAsciiInput;
+	}
+
+	/**
+	 * Used by the owner of this decoder to declare that every byte it will be
+	 * asked to decode is ASCII (e.g. the parser has only read ASCII bytes from
+	 * the current document so far), so decodes skip checking for it. Ignored
+	 * for charsets that don't encode ASCII as itself.
+	 */
+	public void setAsciiInput(boolean isAsciiInput) {
+		this.isAsciiInput = isAsciiInput && isAsciiCompatible;
+	}
+
+	/**
+	 * Used to determine if the given bytes can be widened to chars as-is
+	 * instead of being decoded.
+	 */
+	public boolean isAscii(int index, int length, byte[] bytes) {
+		return isAsciiInput
+				|| (isAsciiCompatible && ScannerUtil.isAscii(index, length,
+						bytes));
+	}
+
+	/**
+	 * Used to decode the given bytes into a new {@link String}. ASCII values
+	 * are built as ISO-8859-1, which the JVM stores compactly without any
+	 * decoding.
+	 */
+	public String decodeToString(int index, int length, byte[] bytes) {
+		return new String(bytes, index, length, (isAscii(index, length,
+				bytes) ? CodingUtil.ISO_8859_1_CHARSET : charset));
+	}
+
+	/**
+	 * Used to get the most chars <code>length</code> bytes can decode to,
+	 * which is how much room the destination of a decode needs.
+	 */
+	public int maxChars(int length) {
+		return (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+	}
+
+	/**
+	 * Used to decode the given bytes into <code>chars</code> starting at
+	 * <code>charIndex</code>.
+	 *
+	 * @return the number of chars written.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the decoded chars don't fit in <code>chars</code>.
+	 */
+	public int decode(int index, int length, byte[] bytes, char[] chars,
+			int charIndex) throws IllegalArgumentException {
+		if (isAscii(index, length, bytes)) {
+			if (chars.length - charIndex < length)
+				throw overflow(length, chars.length - charIndex);
+
+			CodingUtil.decodeAscii(index, length, bytes, chars, charIndex);
+			return length;
+		}
+
+		if (table != null) {
+			if (chars.length - charIndex < length)
+				throw overflow(length, chars.length - charIndex);
+
+			decodeTable(index, length, bytes, chars, charIndex);
+			return length;
+		}
+
+		if (chars != outArray) {
+			outArray = chars;
+			out = CharBuffer.wrap(chars);
+		}
+
+		out.limit(chars.length).position(charIndex);
+		return decode(index, length, bytes, out);
+	}
+
+	/**
+	 * Used to decode the given bytes into <code>chars</code> at its current
+	 * position, advancing it.
+	 *
+	 * @return the number of chars written.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the decoded chars don't fit in the remaining space of
+	 *             <code>chars</code>.
+	 */
+	public int decode(int index, int length, byte[] bytes, CharBuffer chars)
+			throws IllegalArgumentException {
+		int start = chars.position();
+
+		if (chars.hasArray() && (table != null || isAscii(index, length, bytes))) {
+			if (chars.remaining() < length)
+				throw overflow(length, chars.remaining());
+
+			if (table != null)
+				decodeTable(index, length, bytes, chars.array(),
+						chars.arrayOffset() + start);
+			else
+				CodingUtil.decodeAscii(index, length, bytes, chars.array(),
+						chars.arrayOffset() + start);
+
+			chars.position(start + length);
+			return length;
+		}
+
+		decoder.reset();
+		ByteBuffer source = wrap(index, length, bytes);
+
+		if (decoder.decode(source, chars, true).isOverflow()
+				|| decoder.flush(chars).isOverflow())
+			throw overflow(length, chars.remaining());
+
+		return chars.position() - start;
+	}
+
+	/**
+	 * Used to decode the given bytes, appending the chars to
+	 * <code>builder</code>.
+	 *
+	 * @return the number of chars appended.
+	 */
+	public int decode(int index, int length, byte[] bytes,
+			StringBuilder builder) {
+		if (isAscii(index, length, bytes)) {
+			builder.ensureCapacity(builder.length() + length);
+
+			for (int i = index, end = index + length; i < end; i++)
+				builder.append((char) bytes[i]);
+
+			return length;
+		}
+
+		if (table != null) {
+			builder.ensureCapacity(builder.length() + length);
+
+			for (int i = index, end = index + length; i < end; i++)
+				builder.append(table[bytes[i] & 0xFF]);
+
+			return length;
+		}
+
+		if (scratch == null) {
+			scratch = new char[SCRATCH_SIZE];
+			scratchBuffer = CharBuffer.wrap(scratch);
+		}
+
+		int count = 0;
+		boolean isFlushing = false;
+		decoder.reset();
+		ByteBuffer source = wrap(index, length, bytes);
+		CoderResult result;
+
+		// Decode a scratch buffer's worth at a time until all is flushed.
+		do {
+			scratchBuffer.clear();
+
+			if (isFlushing)
+				result = decoder.flush(scratchBuffer);
+			else {
+				result = decoder.decode(source, scratchBuffer, true);
+
+				// Once decode is done, the decoder only accepts flush calls.
+				if (!result.isOverflow()) {
+					isFlushing = true;
+					result = decoder.flush(scratchBuffer);
+				}
+			}
+
+			builder.append(scratch, 0, scratchBuffer.position());
+			count += scratchBuffer.position();
+		} while (result.isOverflow());
+
+		return count;
+	}
+
+	/**
+	 * Used to decode the given bytes of character data into
+	 * <code>chars</code>, resolving entity and character references as
+	 * {@link CodingUtil#decodeText(int, int, byte[], char[], int)} does for
+	 * UTF-8. The decoded text is never longer than {@link #maxChars(int)}
+	 * chars.
+	 * 
+	 * @return the number of chars written.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the decoded chars don't fit in <code>chars</code>.
+	 */
+	public int decodeText(int index, int length, byte[] bytes, char[] chars,
+			int charIndex) throws IllegalArgumentException {
+		if (isUTF8)
+			return CodingUtil.decodeText(index, length, bytes, chars,
+					charIndex);
+		if (table != null)
+			return CodingUtil.decodeText(index, length, bytes, table, chars,
+					charIndex);
+
+		/*
+		 * Any other charset: decode the runs between references with the
+		 * charset decoder. This is only safe for charsets where '&' can't be
+		 * part of a multi-byte sequence, which holds for ASCII compatible ones.
+		 */
+		int i = index;
+		int end = index + length;
+		int c = charIndex;
+
+		while (i < end) {
+			int ampersand = ScannerUtil.indexOf(Constants.AM, i, end - i,
+					bytes);
+			int runEnd = (ampersand == Constants.INVALID ? end : ampersand);
+
+			if (runEnd > i)
+				c += decode(i, runEnd - i, bytes, chars, c);
+
+			if (ampersand == Constants.INVALID)
+				break;
+
+			int semicolon = CodingUtil.findReferenceEnd(ampersand, end, bytes);
+			int count = (semicolon == Constants.INVALID ? 0 : CodingUtil
+					.resolveReference(ampersand + 1, semicolon, bytes, chars,
+							c));
+
+			if (count > 0) {
+				c += count;
+				i = semicolon + 1;
+			} else {
+				chars[c++] = '&';
+				i = ampersand + 1;
+			}
+		}
+
+		return c - charIndex;
+	}
+
+	private void decodeTable(int index, int length, byte[] bytes,
+			char[] chars, int charIndex) {
+		for (int i = index, end = index + length; i < end; i++)
+			chars[charIndex++] = table[bytes[i] & 0xFF];
+	}
+
+	private static boolean isSingleByte(Charset charset) {
+		try {
+			return (charset.newEncoder().maxBytesPerChar() == 1.0f);
+		} catch (UnsupportedOperationException e) {
+			// Decode-only charset, no way to tell.
+			return false;
+		}
+	}
+
+	private IllegalArgumentException overflow(int length, int remaining) {
+		return new IllegalArgumentException("Not enough room to decode "
+				+ length + " bytes, " + remaining
+				+ " chars remaining; up to " + maxChars(length)
+				+ " chars are needed");
+	}
+
+	private ByteBuffer wrap(int index, int length, byte[] bytes) {
+		if (bytes != inArray) {
+			inArray = bytes;
+			in = ByteBuffer.wrap(bytes);
+		}
+
+		in.limit(index + length).position(index);
+		return in;
+	}
+}
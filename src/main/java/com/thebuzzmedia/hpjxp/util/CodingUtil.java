@@ -5,6 +5,10 @@ import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import com.thebuzzmedia.hpjxp.Constants;
 
 public class CodingUtil {
 	public static final int MAX_ENCODE_BUFFER_SIZE = Integer.getInteger(
@@ -13,6 +17,17 @@ public class CodingUtil {
 			"hpjxp.util.maxDecodeBufferSize", 2048);
 
 	public static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+	public static final Charset ISO_8859_1_CHARSET = Charset
+			.forName("ISO-8859-1");
+
+	/*
+	 * Longest reference resolved by decodeText, including the '&' and ';'.
+	 * Enough for any numeric reference to a valid code point with a few
+	 * leading zeros.
+	 */
+	private static final int MAX_REFERENCE_LENGTH = 16;
+
+	public static final char REPLACEMENT_CHAR = '\uFFFD';
 
 	private static final ThreadLocal<CharsetEncoder> THREAD_ENCODER = new ThreadLocal<CharsetEncoder>() {
 		@Override
@@ -24,10 +39,28 @@ public class CodingUtil {
 	private static final ThreadLocal<CharsetDecoder> THREAD_DECODER = new ThreadLocal<CharsetDecoder>() {
 		@Override
 		protected CharsetDecoder initialValue() {
-			return UTF8_CHARSET.newDecoder();
+			// Malformed input is replaced, never left unconsumed in decode().
+			return UTF8_CHARSET.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
 		}
 	};
 
+	private static final ThreadLocal<CharDecoder> THREAD_CHAR_DECODER = new ThreadLocal<CharDecoder>() {
+		@Override
+		protected CharDecoder initialValue() {
+			return new CharDecoder(UTF8_CHARSET);
+		}
+	};
+
+	/**
+	 * Used to get the UTF-8 {@link CharDecoder} of the calling thread, used
+	 * by byte sources that weren't given a decoder of their own.
+	 */
+	public static CharDecoder getThreadCharDecoder() {
+		return THREAD_CHAR_DECODER.get();
+	}
+
 	public static byte[] encode(char[] chars) {
 		return (chars == null ? null : encode(CharBuffer.wrap(chars)));
 	}
@@ -71,7 +104,7 @@ public class CodingUtil {
 				int bytesEncoded = buffer.remaining();
 
 				// Ensure we have enough room in result to add our encoded bits
-				ensureCapacity(bytesRead + bytesEncoded, result);
+				result = ensureCapacity(bytesRead + bytesEncoded, result);
 				buffer.get(result, bytesRead, bytesEncoded);
 				bytesRead += bytesEncoded;
 
@@ -95,7 +128,7 @@ public class CodingUtil {
 					if (bytesEncoded > 0) {
 						// Ensure we have enough room in result to add our
 						// encoded bits
-						ensureCapacity(bytesRead + bytesEncoded, result);
+						result = ensureCapacity(bytesRead + bytesEncoded, result);
 						buffer.get(result, bytesRead, bytesEncoded);
 						bytesRead += bytesEncoded;
 					}
@@ -104,7 +137,6 @@ public class CodingUtil {
 
 			// See if we need to trim the result
 			if (bytesRead < result.length) {
-				System.out.println("TRIMMING byte[] RESULT");
 				byte[] newResult = new byte[bytesRead];
 				System.arraycopy(result, 0, newResult, 0, bytesRead);
 				result = newResult;
@@ -119,14 +151,30 @@ public class CodingUtil {
 	}
 
 	public static char[] decode(int index, int length, byte[] bytes) {
-		return (bytes == null ? null : decode(ByteBuffer.wrap(bytes, index,
-				length)));
+		if (bytes == null)
+			return null;
+
+		// Pure ASCII needs no decoder, just widen every byte.
+		if (ScannerUtil.isAscii(index, length, bytes)) {
+			char[] result = new char[length];
+			decodeAscii(index, length, bytes, result, 0);
+			return result;
+		}
+
+		return decode(ByteBuffer.wrap(bytes, index, length));
 	}
 
 	public static char[] decode(ByteBuffer in) {
 		char[] result = null;
 
-		if (in != null) {
+		if (in != null && in.hasArray()
+				&& ScannerUtil.isAscii(in.arrayOffset() + in.position(),
+						in.remaining(), in.array())) {
+			result = new char[in.remaining()];
+			decodeAscii(in.arrayOffset() + in.position(), result.length,
+					in.array(), result, 0);
+			in.position(in.limit());
+		} else if (in != null) {
 			CharsetDecoder decoder = THREAD_DECODER.get();
 
 			int size = Math.round(decoder.averageCharsPerByte()
@@ -140,53 +188,40 @@ public class CodingUtil {
 			int charsRead = 0;
 			decoder.reset();
 
-			while (in.hasRemaining()) {
-				/*
-				 * Decode the first buffer.capacity chars, passing 'false' to
-				 * indicate that we aren't sure if we are done with the decode
-				 * operation yet.
-				 */
-				decoder.decode(in, buffer, false);
+			/*
+			 * All of the input is given up-front, so it is decoded with
+			 * endOfInput set: a truncated sequence at the end is replaced
+			 * instead of being left unconsumed. Per the CharsetDecoder
+			 * Javadocs the decoder is then given an opportunity to "finalize"
+			 * its internal state with flush. An overflow only means buffer is
+			 * full; empty it into result and go around again.
+			 */
+			boolean isFlushing = false;
+
+			while (true) {
+				CoderResult coderResult = (isFlushing ? decoder.flush(buffer)
+						: decoder.decode(in, buffer, true));
 
 				// Append what we successfully decoded to our tally
 				buffer.flip();
 				int charsDecoded = buffer.remaining();
 
 				// Ensure we have enough room in result to add our decoded bits
-				ensureCapacity(charsRead + charsDecoded, result);
+				result = ensureCapacity(charsRead + charsDecoded, result);
 				buffer.get(result, charsRead, charsDecoded);
 				charsRead += charsDecoded;
+				buffer.clear();
 
-				// If there is no more to decode, go through finalization
-				if (!in.hasRemaining()) {
-					buffer.clear();
+				if (coderResult.isUnderflow()) {
+					if (isFlushing)
+						break;
 
-					/*
-					 * Per the CharsetDecoder Javadocs, encoders must be given
-					 * an opportunity to "finalize" their internal state and
-					 * flush out any pending operations once we know we've hit
-					 * the end of the chars to decode.
-					 */
-					decoder.decode(in, buffer, true);
-					decoder.flush(buffer);
-
-					buffer.flip();
-					charsDecoded = buffer.remaining();
-
-					// If any finalized chars were written, append them.
-					if (charsDecoded > 0) {
-						// Ensure we have enough room in result to add our
-						// decoded bits
-						ensureCapacity(charsRead + charsDecoded, result);
-						buffer.get(result, charsRead, charsDecoded);
-						charsRead += charsDecoded;
-					}
+					isFlushing = true;
 				}
 			}
 
 			// See if we need to trim the result
 			if (charsRead < result.length) {
-				System.out.println("TRIMMING char[] RESULT");
 				char[] newResult = new char[charsRead];
 				System.arraycopy(result, 0, newResult, 0, charsRead);
 				result = newResult;
@@ -196,8 +231,160 @@ public class CodingUtil {
 		return result;
 	}
 
+	/**
+	 * Used to widen the given ASCII bytes into <code>chars</code>. The bytes
+	 * must already be known to be ASCII (see
+	 * {@link ScannerUtil#isAscii(int, int, byte[])}).
+	 */
+	public static void decodeAscii(int index, int length, byte[] bytes,
+			char[] chars, int charIndex) {
+		for (int i = 0; i < length; i++)
+			chars[charIndex + i] = (char) bytes[index + i];
+	}
+
+	/**
+	 * Convenience method for
+	 * {@link #decodeText(int, int, byte[], char[], int)} that returns the
+	 * decoded text as a {@link String}.
+	 */
+	public static String decodeText(int index, int length, byte[] bytes) {
+		char[] chars = new char[length];
+		int count = decodeText(index, length, bytes, chars, 0);
+
+		return new String(chars, 0, count);
+	}
+
+	/**
+	 * Used to decode the given UTF-8 bytes of character data into
+	 * <code>chars</code>, resolving the predefined entity references
+	 * (<code>&amp;amp;</code>, <code>&amp;lt;</code>, <code>&amp;gt;</code>,
+	 * <code>&amp;quot;</code> and <code>&amp;apos;</code>) and numeric
+	 * character references (e.g. <code>&amp;#8364;</code> or
+	 * <code>&amp;#x20AC;</code>) in the same single pass.
+	 * <p/>
+	 * Decoding is lenient: references that are unknown or malformed are copied
+	 * as-is and every byte that isn't part of a well-formed UTF-8 sequence is
+	 * replaced by <code>U+FFFD</code>.
+	 * <p/>
+	 * The decoded text is never longer than <code>length</code> chars, which
+	 * is how much room <code>chars</code> needs from <code>charIndex</code>
+	 * on.
+	 * 
+	 * @return the number of chars written to <code>chars</code>.
+	 */
+	public static int decodeText(int index, int length, byte[] bytes,
+			char[] chars, int charIndex) {
+		int i = index;
+		int end = index + length;
+		int c = charIndex;
+
+		while (i < end) {
+			int b = bytes[i];
+
+			// ASCII, by far the most common case.
+			if (b >= 0) {
+				if (b == Constants.AM) {
+					int semicolon = findReferenceEnd(i, end, bytes);
+					int count = (semicolon == Constants.INVALID ? 0
+							: resolveReference(i + 1, semicolon, bytes, chars,
+									c));
+
+					if (count > 0) {
+						c += count;
+						i = semicolon + 1;
+						continue;
+					}
+				}
+
+				chars[c++] = (char) b;
+				i++;
+			} else if ((b & 0xE0) == 0xC0 && i + 1 < end
+					&& isContinuation(bytes[i + 1])) {
+				int cp = ((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F);
+
+				if (cp < 0x80) {
+					chars[c++] = REPLACEMENT_CHAR;
+					i++;
+				} else {
+					chars[c++] = (char) cp;
+					i += 2;
+				}
+			} else if ((b & 0xF0) == 0xE0 && i + 2 < end
+					&& isContinuation(bytes[i + 1])
+					&& isContinuation(bytes[i + 2])) {
+				int cp = ((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6)
+						| (bytes[i + 2] & 0x3F);
+
+				if (cp < 0x800 || Character.isSurrogate((char) cp)) {
+					chars[c++] = REPLACEMENT_CHAR;
+					i++;
+				} else {
+					chars[c++] = (char) cp;
+					i += 3;
+				}
+			} else if ((b & 0xF8) == 0xF0 && i + 3 < end
+					&& isContinuation(bytes[i + 1])
+					&& isContinuation(bytes[i + 2])
+					&& isContinuation(bytes[i + 3])) {
+				int cp = ((b & 0x07) << 18) | ((bytes[i + 1] & 0x3F) << 12)
+						| ((bytes[i + 2] & 0x3F) << 6) | (bytes[i + 3] & 0x3F);
+
+				if (cp < 0x10000 || cp > Character.MAX_CODE_POINT) {
+					chars[c++] = REPLACEMENT_CHAR;
+					i++;
+				} else {
+					chars[c++] = Character.highSurrogate(cp);
+					chars[c++] = Character.lowSurrogate(cp);
+					i += 4;
+				}
+			} else {
+				chars[c++] = REPLACEMENT_CHAR;
+				i++;
+			}
+		}
+
+		return c - charIndex;
+	}
+
+	/**
+	 * Used to decode the given bytes of character data in a single-byte
+	 * charset the same way {@link #decodeText(int, int, byte[], char[], int)}
+	 * decodes UTF-8: non-ASCII bytes are mapped through <code>table</code>,
+	 * which holds the char of each of the 256 byte values (see
+	 * {@link CharDecoder#getTable()}).
+	 * 
+	 * @return the number of chars written to <code>chars</code>.
+	 */
+	public static int decodeText(int index, int length, byte[] bytes,
+			char[] table, char[] chars, int charIndex) {
+		int i = index;
+		int end = index + length;
+		int c = charIndex;
+
+		while (i < end) {
+			int b = bytes[i];
+
+			if (b == Constants.AM) {
+				int semicolon = findReferenceEnd(i, end, bytes);
+				int count = (semicolon == Constants.INVALID ? 0
+						: resolveReference(i + 1, semicolon, bytes, chars, c));
+
+				if (count > 0) {
+					c += count;
+					i = semicolon + 1;
+					continue;
+				}
+			}
+
+			chars[c++] = (b >= 0 ? (char) b : table[b & 0xFF]);
+			i++;
+		}
+
+		return c - charIndex;
+	}
+
 	protected static byte[] ensureCapacity(int capacity, byte[] array) {
-		if (capacity < array.length)
+		if (capacity <= array.length)
 			return array;
 
 		byte[] newArray = new byte[capacity];
@@ -206,11 +393,98 @@ public class CodingUtil {
 	}
 
 	protected static char[] ensureCapacity(int capacity, char[] array) {
-		if (capacity < array.length)
+		if (capacity <= array.length)
 			return array;
 
 		char[] newArray = new char[capacity];
 		System.arraycopy(array, 0, newArray, 0, array.length);
 		return newArray;
 	}
+
+	private static boolean isContinuation(byte value) {
+		return (value & 0xC0) == 0x80;
+	}
+
+	/**
+	 * Used to find the ';' ending a reference that starts with the '&amp;' at
+	 * <code>ampersand</code>, looking no further than
+	 * {@link #MAX_REFERENCE_LENGTH} bytes or <code>end</code>.
+	 * 
+	 * @return the index of the ';' or {@link Constants#INVALID}.
+	 */
+	static int findReferenceEnd(int ampersand, int end, byte[] bytes) {
+		int limit = ampersand + MAX_REFERENCE_LENGTH;
+
+		return ScannerUtil.indexOf(Constants.SC, ampersand + 1,
+				(limit < end ? limit : end) - ampersand - 1, bytes);
+	}
+
+	/**
+	 * Used to resolve the reference between a '&amp;' (exclusive, at
+	 * <code>index - 1</code>) and the ';' at <code>semicolon</code>, writing
+	 * its value to <code>chars</code>.
+	 * 
+	 * @return the number of chars written (1 or 2) or 0 if the bytes aren't a
+	 *         reference that can be resolved.
+	 */
+	static int resolveReference(int index, int semicolon,
+			byte[] bytes, char[] chars, int charIndex) {
+		int i = index;
+		int length = semicolon - i;
+
+		// Character reference: &#nnnn; or &#xhhhh;
+		if (length > 1 && bytes[i] == Constants.HS) {
+			int radix = 10;
+			int cp = 0;
+
+			if (bytes[++i] == 'x') {
+				radix = 16;
+
+				if (++i == semicolon)
+					return 0;
+			}
+
+			for (; i < semicolon; i++) {
+				int digit = Character.digit(bytes[i], radix);
+
+				if (digit < 0)
+					return 0;
+
+				cp = cp * radix + digit;
+
+				if (cp > Character.MAX_CODE_POINT)
+					return 0;
+			}
+
+			if (cp == 0 || (cp < 0x10000 && Character.isSurrogate((char) cp)))
+				return 0;
+
+			return Character.toChars(cp, chars, charIndex);
+		}
+
+		// Predefined entity reference
+		char value;
+
+		if (length == 2 && bytes[i + 1] == 't') {
+			if (bytes[i] == 'l')
+				value = '<';
+			else if (bytes[i] == 'g')
+				value = '>';
+			else
+				return 0;
+		} else if (length == 3 && bytes[i] == 'a' && bytes[i + 1] == 'm'
+				&& bytes[i + 2] == 'p')
+			value = '&';
+		else if (length == 4 && bytes[i] == 'q' && bytes[i + 1] == 'u'
+				&& bytes[i + 2] == 'o' && bytes[i + 3] == 't')
+			value = '"';
+		else if (length == 4 && bytes[i] == 'a' && bytes[i + 1] == 'p'
+				&& bytes[i + 2] == 'o' && bytes[i + 3] == 's')
+			value = '\'';
+		else
+			return 0;
+
+		chars[charIndex] = value;
+		return 1;
+	}
 }
\ No newline at end of file
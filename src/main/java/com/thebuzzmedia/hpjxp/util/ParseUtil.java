@@ -0,0 +1,492 @@
+package com.thebuzzmedia.hpjxp.util;
+
+import java.math.BigDecimal;
+
+import com.thebuzzmedia.hpjxp.Constants;
+
+/**
+ * Class used to parse primitive values straight out of (UTF-8 or any ASCII
+ * compatible) <code>byte[]</code> data, without creating a {@link String}
+ * first.
+ * <p/>
+ * Every method ignores leading and trailing XML whitespace (space, tab, CR
+ * and LF) and throws a {@link NumberFormatException} (or
+ * {@link IllegalArgumentException} for non-numeric values) with the offending
+ * value if the bytes don't hold a value of the requested type.
+ */
+public class ParseUtil {
+	// Exactly representable powers of ten, used by the parseDouble fast path.
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5,
+			1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// Most significant digits that always fit exactly in a double (< 2^53).
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	// Most digits that always fit in a long.
+	private static final int MAX_LONG_DIGITS = 18;
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	public static int parseInt(int index, int length, byte[] data)
+			throws NumberFormatException {
+		long value = parseLong(index, length, data);
+
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw error("int", index, length, data);
+
+		return (int) value;
+	}
+
+	public static long parseLong(int index, int length, byte[] data)
+			throws NumberFormatException {
+		int end = trimEnd(index, index + length, data);
+		int i = trimStart(index, end, data);
+
+		if (i == end)
+			throw error("long", index, length, data);
+
+		boolean negative = false;
+
+		if (data[i] == '-' || data[i] == '+')
+			negative = (data[i++] == '-');
+
+		if (i == end)
+			throw error("long", index, length, data);
+
+		// Accumulate negatively, Long.MIN_VALUE has no positive counterpart.
+		long limit = (negative ? Long.MIN_VALUE : -Long.MAX_VALUE);
+		long value = 0;
+
+		for (; i < end; i++) {
+			int digit = data[i] - '0';
+
+			if (digit < 0 || digit > 9 || value < limit / 10)
+				throw error("long", index, length, data);
+
+			value *= 10;
+
+			if (value < limit + digit)
+				throw error("long", index, length, data);
+
+			value -= digit;
+		}
+
+		return (negative ? value : -value);
+	}
+
+	/**
+	 * Used to parse a decimal floating point value such as
+	 * <code>-12.5</code>, <code>3.0E-4</code> or the XML Schema special values
+	 * <code>INF</code>, <code>-INF</code> and <code>NaN</code>.
+	 * <p/>
+	 * Values with at most 15 significant digits and a decimal exponent within
+	 * +/-22, which covers nearly every price or quantity, are computed exactly
+	 * with a single multiplication or division (Clinger's fast path). Anything
+	 * else falls back to {@link Double#parseDouble(String)}.
+	 */
+	public static double parseDouble(int index, int length, byte[] data)
+			throws NumberFormatException {
+		int end = trimEnd(index, index + length, data);
+		int start = trimStart(index, end, data);
+		int i = start;
+
+		if (i == end)
+			throw error("double", index, length, data);
+
+		boolean negative = false;
+
+		if (data[i] == '-' || data[i] == '+')
+			negative = (data[i++] == '-');
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean hasDigits = false;
+
+		// Integer part, leading zeros aren't significant.
+		for (; i < end && data[i] >= '0' && data[i] <= '9'; i++) {
+			hasDigits = true;
+
+			if (digits < MAX_LONG_DIGITS) {
+				mantissa = mantissa * 10 + (data[i] - '0');
+
+				if (mantissa != 0)
+					digits++;
+			} else {
+				digits++;
+				exponent++;
+			}
+		}
+
+		// Fraction part
+		if (i < end && data[i] == '.') {
+			for (i++; i < end && data[i] >= '0' && data[i] <= '9'; i++) {
+				hasDigits = true;
+
+				if (digits < MAX_LONG_DIGITS) {
+					mantissa = mantissa * 10 + (data[i] - '0');
+					exponent--;
+
+					if (mantissa != 0)
+						digits++;
+				} else
+					digits++;
+			}
+		}
+
+		if (!hasDigits)
+			return parseSpecialDouble(start, end, index, length, data);
+
+		// Exponent part
+		if (i < end && (data[i] == 'e' || data[i] == 'E')) {
+			boolean negativeExponent = false;
+			int value = 0;
+
+			if (++i < end && (data[i] == '-' || data[i] == '+'))
+				negativeExponent = (data[i++] == '-');
+
+			if (i == end)
+				throw error("double", index, length, data);
+
+			for (; i < end; i++) {
+				int digit = data[i] - '0';
+
+				if (digit < 0 || digit > 9)
+					throw error("double", index, length, data);
+
+				// Anything this large is 0 or infinite either way.
+				if (value < 100000)
+					value = value * 10 + digit;
+			}
+
+			exponent += (negativeExponent ? -value : value);
+		}
+
+		if (i != end)
+			throw error("double", index, length, data);
+
+		if (mantissa == 0)
+			return (negative ? -0.0 : 0.0);
+
+		if (digits <= MAX_EXACT_DIGITS && exponent >= -22 && exponent <= 22) {
+			double value = mantissa;
+			value = (exponent < 0 ? value / POW10[-exponent] : value
+					* POW10[exponent]);
+
+			return (negative ? -value : value);
+		}
+
+		return Double.parseDouble(toAsciiString(start, end, data));
+	}
+
+	/**
+	 * Used to parse an <code>xsd:boolean</code> value: <code>true</code>,
+	 * <code>false</code>, <code>1</code> or <code>0</code>.
+	 */
+	public static boolean parseBoolean(int index, int length, byte[] data)
+			throws IllegalArgumentException {
+		int end = trimEnd(index, index + length, data);
+		int i = trimStart(index, end, data);
+
+		switch (end - i) {
+		case 1:
+			if (data[i] == '1')
+				return true;
+			if (data[i] == '0')
+				return false;
+			break;
+		case 4:
+			if (data[i] == 't' && data[i + 1] == 'r' && data[i + 2] == 'u'
+					&& data[i + 3] == 'e')
+				return true;
+			break;
+		case 5:
+			if (data[i] == 'f' && data[i + 1] == 'a' && data[i + 2] == 'l'
+					&& data[i + 3] == 's' && data[i + 4] == 'e')
+				return false;
+			break;
+		}
+
+		throw new IllegalArgumentException("Not a valid boolean value: \""
+				+ toAsciiString(index, index + length, data) + "\"");
+	}
+
+	/**
+	 * Used to parse an exact decimal value. Values with at most 18 digits are
+	 * built from a <code>long</code> and scale without any intermediate
+	 * object; longer ones go through a <code>char[]</code>.
+	 */
+	public static BigDecimal parseBigDecimal(int index, int length,
+			byte[] data) throws NumberFormatException {
+		int end = trimEnd(index, index + length, data);
+		int start = trimStart(index, end, data);
+		int i = start;
+
+		if (i == end)
+			throw error("BigDecimal", index, length, data);
+
+		boolean negative = false;
+
+		if (data[i] == '-' || data[i] == '+')
+			negative = (data[i++] == '-');
+
+		long unscaled = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean hasDigits = false;
+		boolean isFraction = false;
+
+		for (; i < end; i++) {
+			byte value = data[i];
+
+			if (value >= '0' && value <= '9') {
+				hasDigits = true;
+				unscaled = unscaled * 10 + (value - '0');
+
+				if (unscaled != 0)
+					digits++;
+				if (isFraction)
+					scale++;
+			} else if (value == '.' && !isFraction)
+				isFraction = true;
+			else
+				break;
+		}
+
+		// Exponents and long values take the general route.
+		if (!hasDigits || i != end || digits > MAX_LONG_DIGITS) {
+			try {
+				char[] chars = new char[end - start];
+				CodingUtil.decodeAscii(start, chars.length, data, chars, 0);
+				return new BigDecimal(chars);
+			} catch (NumberFormatException e) {
+				throw error("BigDecimal", index, length, data);
+			}
+		}
+
+		return BigDecimal.valueOf((negative ? -unscaled : unscaled), scale);
+	}
+
+	/**
+	 * Used to parse an ISO-8601 date or date-time, as used by
+	 * <code>xsd:date</code> and <code>xsd:dateTime</code>, into milliseconds
+	 * since the epoch.
+	 * <p/>
+	 * Accepted forms are <code>YYYY-MM-DD</code> and
+	 * <code>YYYY-MM-DDThh:mm[:ss[.fff...]]</code> (a space may be used in
+	 * place of the <code>T</code>), followed by an optional <code>Z</code> or
+	 * <code>+hh:mm</code>/<code>-hh:mm</code>/<code>+hhmm</code> offset. Values
+	 * without an offset are taken to be UTC. Fractions beyond milliseconds are
+	 * truncated.
+	 */
+	public static long parseTimestamp(int index, int length, byte[] data)
+			throws IllegalArgumentException {
+		int end = trimEnd(index, index + length, data);
+		int i = trimStart(index, end, data);
+
+		if (end - i < 10 || data[i + 4] != '-' || data[i + 7] != '-')
+			throw timestampError(index, length, data);
+
+		int year = digits(i, 4, data);
+		int month = digits(i + 5, 2, data);
+		int day = digits(i + 8, 2, data);
+		i += 10;
+
+		if (year < 0 || month < 1 || month > 12 || day < 1
+				|| day > daysInMonth(year, month))
+			throw timestampError(index, length, data);
+
+		long millis = daysFromCivil(year, month, day) * MILLIS_PER_DAY;
+
+		if (i < end && (data[i] == 'T' || data[i] == Constants.SP)) {
+			if (end - i < 6 || data[i + 3] != ':')
+				throw timestampError(index, length, data);
+
+			int hour = digits(i + 1, 2, data);
+			int minute = digits(i + 4, 2, data);
+			int second = 0;
+			int milli = 0;
+			i += 6;
+
+			if (i < end && data[i] == ':') {
+				if (end - i < 3)
+					throw timestampError(index, length, data);
+
+				second = digits(i + 1, 2, data);
+				i += 3;
+
+				if (i < end && data[i] == '.') {
+					int fractionStart = ++i;
+
+					for (; i < end && data[i] >= '0' && data[i] <= '9'; i++) {
+						if (i - fractionStart < 3)
+							milli = milli * 10 + (data[i] - '0');
+					}
+
+					if (i == fractionStart)
+						throw timestampError(index, length, data);
+
+					// Scale e.g. ".5" up to 500ms.
+					for (int n = i - fractionStart; n < 3; n++)
+						milli *= 10;
+				}
+			}
+
+			// 24:00:00 is allowed as the end of a day.
+			if (hour < 0 || minute < 0 || second < 0 || minute > 59
+					|| second > 59 || hour > 24
+					|| (hour == 24 && (minute | second | milli) != 0))
+				throw timestampError(index, length, data);
+
+			millis += ((hour * 60L + minute) * 60L + second) * 1000L + milli;
+		}
+
+		// Time zone offset
+		if (i < end) {
+			if (data[i] == 'Z' && i + 1 == end)
+				i++;
+			else if (data[i] == '+' || data[i] == '-') {
+				boolean negative = (data[i] == '-');
+				int hours;
+				int minutes;
+
+				if (end - i == 6 && data[i + 3] == ':')
+					minutes = digits(i + 4, 2, data);
+				else if (end - i == 5)
+					minutes = digits(i + 3, 2, data);
+				else if (end - i == 3)
+					minutes = 0;
+				else
+					throw timestampError(index, length, data);
+
+				hours = digits(i + 1, 2, data);
+
+				if (hours < 0 || minutes < 0 || hours > 18 || minutes > 59)
+					throw timestampError(index, length, data);
+
+				long offset = (hours * 60L + minutes) * 60000L;
+				millis += (negative ? offset : -offset);
+				i = end;
+			}
+		}
+
+		if (i != end)
+			throw timestampError(index, length, data);
+
+		return millis;
+	}
+
+	private static int trimStart(int index, int end, byte[] data) {
+		while (index < end && isWhitespace(data[index]))
+			index++;
+
+		return index;
+	}
+
+	private static int trimEnd(int index, int end, byte[] data) {
+		while (end > index && isWhitespace(data[end - 1]))
+			end--;
+
+		return end;
+	}
+
+	private static boolean isWhitespace(byte value) {
+		return (value == Constants.SP || value == Constants.TB
+				|| value == Constants.LF || value == Constants.CR);
+	}
+
+	/**
+	 * Used to parse exactly <code>count</code> decimal digits.
+	 *
+	 * @return the value or <code>-1</code> if any byte isn't a digit.
+	 */
+	private static int digits(int index, int count, byte[] data) {
+		int value = 0;
+
+		for (int end = index + count; index < end; index++) {
+			int digit = data[index] - '0';
+
+			if (digit < 0 || digit > 9)
+				return -1;
+
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch (month) {
+		case 2:
+			return ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29
+					: 28);
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * Used to get the number of days since 1970-01-01 of the given date in the
+	 * proleptic Gregorian calendar (Howard Hinnant's
+	 * <code>days_from_civil</code>).
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		if (month <= 2)
+			year--;
+
+		long era = (year >= 0 ? year : year - 399) / 400;
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+				+ day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static double parseSpecialDouble(int start, int end, int index,
+			int length, byte[] data) throws NumberFormatException {
+		int i = start;
+		boolean negative = (data[i] == '-');
+
+		if (data[i] == '-' || data[i] == '+')
+			i++;
+
+		if (end - i == 3) {
+			if (data[i] == 'I' && data[i + 1] == 'N' && data[i + 2] == 'F')
+				return (negative ? Double.NEGATIVE_INFINITY
+						: Double.POSITIVE_INFINITY);
+			if (i == start && data[i] == 'N' && data[i + 1] == 'a'
+					&& data[i + 2] == 'N')
+				return Double.NaN;
+		}
+
+		throw error("double", index, length, data);
+	}
+
+	private static String toAsciiString(int index, int end, byte[] data) {
+		return new String(data, index, end - index,
+				CodingUtil.ISO_8859_1_CHARSET);
+	}
+
+	private static NumberFormatException error(String type, int index,
+			int length, byte[] data) {
+		return new NumberFormatException("Not a valid " + type + " value: \""
+				+ new String(data, index, length, CodingUtil.UTF8_CHARSET)
+				+ "\"");
+	}
+
+	private static IllegalArgumentException timestampError(int index,
+			int length, byte[] data) {
+		return new IllegalArgumentException(
+				"Not a valid ISO-8601 timestamp: \""
+						+ new String(data, index, length,
+								CodingUtil.UTF8_CHARSET) + "\"");
+	}
+}
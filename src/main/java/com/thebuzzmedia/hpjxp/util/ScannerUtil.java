@@ -1,8 +1,138 @@
 package com.thebuzzmedia.hpjxp.util;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 import com.thebuzzmedia.hpjxp.Constants;
 
+/**
+ * Class used to provide optimized search operations over raw
+ * <code>byte[]</code> data.
+ * <p/>
+ * <h3>Word-at-a-time Scanning</h3>
+ * Searches for a single <code>byte</code> value read the data 8 bytes at a
+ * time as a <code>long</code> and use the classic "has-zero-byte" bit trick
+ * (SWAR, SIMD-within-a-register) to test all 8 bytes for the value in a
+ * handful of instructions. Multi-byte values are found by searching for their
+ * final byte this way and confirming the preceding bytes. Any tail of fewer
+ * than 8 bytes is scanned one byte at a time.
+ * <p/>
+ * <h3>Vector Scanning</h3>
+ * When the JVM is started with <code>--add-modules jdk.incubator.vector</code>
+ * single-byte and any-of searches are instead done by
+ * <code>VectorScanner</code>, which compares a whole
+ * <code>ByteVector</code> (32 bytes on AVX2, 64 on AVX-512) per step. That
+ * class is compiled separately, from <code>src/main/java-vector</code>
+ * against the incubator module, and only loaded (reflectively) when the
+ * module is present, so this class has no dependency on it.
+ * <p/>
+ * The best available backend is used by default; the
+ * <code>hpjxp.scanner</code> system property can be set to
+ * <code>swar</code> to use word-at-a-time scanning even when the vector
+ * module is present or to <code>scalar</code> to select the plain
+ * byte-by-byte loops for every search, which is useful for comparing results
+ * or on a JVM where unaligned <code>long</code> reads are slow.
+ */
 public class ScannerUtil {
+	public static final String SCANNER = System.getProperty("hpjxp.scanner",
+			"vector");
+
+	/**
+	 * <code>true</code> if searches should be done a word at a time,
+	 * <code>false</code> if the scalar loops should be used.
+	 */
+	public static final boolean WORD_SCAN = !"scalar".equals(SCANNER);
+
+	/**
+	 * The vector backend or <code>null</code> if the vector module isn't
+	 * present or another backend was selected.
+	 */
+	static final Backend VECTOR = ("vector".equals(SCANNER) ? loadVector()
+			: null);
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+	private static final long LOWS = 0x7F7F7F7F7F7F7F7FL;
+
+	/*
+	 * Little-endian view so the byte at the lowest index lands in the lowest
+	 * bits of the word; the lowest flagged byte is then the first match.
+	 */
+	private static final VarHandle LONG_VIEW = MethodHandles
+			.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Searches implemented by the separately compiled vector backend; both
+	 * have the same contract as the methods of this class with the same name.
+	 */
+	interface Backend {
+		int indexOf(byte value, int index, int length, byte[] data);
+
+		int indexOfAny(byte[] values, int index, int length, byte[] data);
+	}
+
+	private static Backend loadVector() {
+		if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+			return null;
+
+		try {
+			return (Backend) Class
+					.forName("com.thebuzzmedia.hpjxp.util.VectorScanner")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			// Built without the vector sources, scan a word at a time.
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Used to read the 8 bytes starting at <code>index</code> as a single
+	 * little-endian <code>long</code>.
+	 */
+	public static long getWord(int index, byte[] data) {
+		return (long) LONG_VIEW.get(data, index);
+	}
+
+	/**
+	 * Used to copy the given value into all 8 bytes of a <code>long</code>.
+	 */
+	public static long broadcast(byte value) {
+		return (value & 0xFFL) * ONES;
+	}
+
+	/**
+	 * Used to flag (set the high bit of) the bytes in <code>word</code> that
+	 * are zero. Only the lowest flagged byte is exact, bytes above it may be
+	 * falsely flagged by the borrow, which is fine as we only ever want the
+	 * first match.
+	 * 
+	 * @return <code>0</code> if no byte in the word is zero.
+	 */
+	public static long zeroBytes(long word) {
+		return (word - ONES) & ~word & HIGHS;
+	}
+
+	/**
+	 * Used to flag (set the high bit of) exactly the bytes in
+	 * <code>word</code> that are zero. Unlike {@link #zeroBytes(long)} no
+	 * byte is ever falsely flagged, so every match in the word can be read
+	 * from the result; it costs a couple more instructions.
+	 */
+	public static long exactZeroBytes(long word) {
+		return ~(((word & LOWS) + LOWS) | word | LOWS);
+	}
+
+	/**
+	 * Used to convert a non-zero result of {@link #zeroBytes(long)} into the
+	 * offset (0-7) of the first flagged byte.
+	 */
+	public static int firstByte(long flags) {
+		return Long.numberOfTrailingZeros(flags) >>> 3;
+	}
+
 	public static int indexOf(byte value, byte[] data) {
 		return indexOf(value, 0, data.length, data);
 	}
@@ -12,11 +142,36 @@ public class ScannerUtil {
 	}
 
 	public static int indexOf(byte value, int index, int length, byte[] data) {
-		int result = index;
+		if (VECTOR != null)
+			return VECTOR.indexOf(value, index, length, data);
+
+		int end = index + length;
 
-		for (int end = (index + length); result < end; result++) {
-			if (data[result] == value)
-				return result;
+		if (WORD_SCAN) {
+			long pattern = broadcast(value);
+
+			// XOR zeroes every byte that matches, then test all 8 at once.
+			for (int last = end - 8; index <= last; index += 8) {
+				long flags = zeroBytes(getWord(index, data) ^ pattern);
+
+				if (flags != 0)
+					return index + firstByte(flags);
+			}
+		}
+
+		// Scan the tail (fewer than 8 bytes remain) or everything if scalar.
+		return indexOfScalar(value, index, end - index, data);
+	}
+
+	/**
+	 * Byte-by-byte version of {@link #indexOf(byte, int, int, byte[])}, used
+	 * to scan the tail of a word-at-a-time search.
+	 */
+	public static int indexOfScalar(byte value, int index, int length,
+			byte[] data) {
+		for (int end = (index + length); index < end; index++) {
+			if (data[index] == value)
+				return index;
 		}
 
 		return Constants.INVALID;
@@ -30,26 +185,38 @@ public class ScannerUtil {
 		return indexOf(values, index, (data.length - index), data);
 	}
 
+	/**
+	 * Used to find the first index at which all of <code>values</code> occur
+	 * in <code>data</code>, with the entire match falling within
+	 * <code>index</code> and <code>index + length</code>.
+	 * <p/>
+	 * The final value is searched for a word at a time and the preceding
+	 * values confirmed backwards from it. For the suffixes the parser looks for
+	 * (e.g. <code>--&gt;</code> or <code>]]&gt;</code>) the final
+	 * <code>'&gt;'</code> is much rarer in the data than the leading chars, so
+	 * this produces far fewer false candidates.
+	 */
 	public static int indexOf(byte[] values, int index, int length, byte[] data) {
-		int valuesLength = values.length;
+		int last = values.length - 1;
+		int end = index + length;
+		byte anchor = values[last];
 
-		for (int end = (index + length); index < end; index++) {
-			int j = 0;
+		for (int i = index + last; i < end; i++) {
+			i = indexOf(anchor, i, end - i, data);
+
+			if (i == Constants.INVALID)
+				break;
 
-			// Increment j as many times as we can match.
-			for (; j < valuesLength && data[index + j] == values[j]; j++)
+			int j = last - 1;
+			int start = i - last;
+
+			// Decrement j as many times as we can match.
+			for (; j >= 0 && data[start + j] == values[j]; j--)
 				;
 
-			/*
-			 * If j was incremented to match the length of values[], then we
-			 * found a complete match, otherwise we didn't and we need to return
-			 * to the outer loop to hunt some more, but we can at least skip the
-			 * chars we tried to match already.
-			 */
-			if (j == valuesLength)
-				return index;
-			else
-				index += j;
+			// If j made it past the first value, we found a complete match.
+			if (j < 0)
+				return start;
 		}
 
 		return Constants.INVALID;
@@ -63,8 +230,43 @@ public class ScannerUtil {
 		return indexOfAny(values, index, (data.length - index), data);
 	}
 
+	/**
+	 * Used to find the first index in <code>data</code> holding any one of the
+	 * given <code>values</code>. The match flags for every value are OR'ed
+	 * together per word, the lowest flagged byte is still exact since each
+	 * value's own lowest flag is.
+	 */
 	public static int indexOfAny(byte[] values, int index, int length,
 			byte[] data) {
+		if (VECTOR != null)
+			return VECTOR.indexOfAny(values, index, length, data);
+
+		int end = index + length;
+
+		if (WORD_SCAN) {
+			int valuesLength = values.length;
+
+			for (int last = end - 8; index <= last; index += 8) {
+				long flags = 0;
+				long word = getWord(index, data);
+
+				for (int j = 0; j < valuesLength; j++)
+					flags |= zeroBytes(word ^ broadcast(values[j]));
+
+				if (flags != 0)
+					return index + firstByte(flags);
+			}
+		}
+
+		return indexOfAnyScalar(values, index, end - index, data);
+	}
+
+	/**
+	 * Byte-by-byte version of {@link #indexOfAny(byte[], int, int, byte[])},
+	 * used to scan the tail of a word-at-a-time search.
+	 */
+	public static int indexOfAnyScalar(byte[] values, int index, int length,
+			byte[] data) {
 		int valuesLength = values.length;
 
 		for (int end = (index + length); index < end; index++) {
@@ -76,4 +278,36 @@ public class ScannerUtil {
 
 		return Constants.INVALID;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Used to determine if the given range of bytes is pure ASCII (no byte has
+	 * its high bit set), checking 8 bytes at a time. ASCII bytes decode to the
+	 * same chars in UTF-8 and ISO-8859-1, so they can be widened to chars
+	 * without going through a charset decoder.
+	 */
+	public static boolean isAscii(int index, int length, byte[] data) {
+		int end = index + length;
+
+		if (WORD_SCAN) {
+			for (int last = end - 8; index <= last; index += 8) {
+				if ((getWord(index, data) & HIGHS) != 0)
+					return false;
+			}
+		}
+
+		return isAsciiScalar(index, end - index, data);
+	}
+
+	/**
+	 * Byte-by-byte version of {@link #isAscii(int, int, byte[])}, used to
+	 * check the tail of a word-at-a-time check.
+	 */
+	public static boolean isAsciiScalar(int index, int length, byte[] data) {
+		for (int end = (index + length); index < end; index++) {
+			if (data[index] < 0)
+				return false;
+		}
+
+		return true;
+	}
+}
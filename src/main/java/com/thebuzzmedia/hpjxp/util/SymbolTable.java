@@ -0,0 +1,214 @@
+package com.thebuzzmedia.hpjxp.util;
+
+import java.util.Arrays;
+
+import com.thebuzzmedia.hpjxp.Constants;
+
+/**
+ * Class used to map distinct <code>byte</code> sequences (e.g. tag names) to
+ * small, stable <code>int</code> IDs without ever creating a {@link String}.
+ * <p/>
+ * IDs are handed out densely starting at <code>0</code> in the order symbols
+ * are first added and never change for the life of the table, or until it is
+ * {@link #clear()}ed.
+ * <p/>
+ * The table is open-addressed with linear probing; the symbol bytes
+ * themselves are copied into a single shared <code>byte[]</code> pool so
+ * lookups compare raw bytes. Instances are not thread-safe.
+ */
+public class SymbolTable {
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private int size = 0;
+	private int poolLength = 0;
+
+	// Slot -> (ID + 1), 0 marks an empty slot.
+	private int[] slots;
+
+	// ID -> hash, pool index and length of the symbol.
+	private int[] hashes;
+	private int[] indices;
+	private int[] lengths;
+
+	private byte[] pool;
+
+	public SymbolTable() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public SymbolTable(int capacity) throws IllegalArgumentException {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity [" + capacity
+					+ "] must be >= 1");
+
+		// Keep the slot count a power of 2 and at most half full.
+		int slotCount = Integer.highestOneBit(capacity * 2 - 1) << 1;
+
+		slots = new int[slotCount];
+		hashes = new int[capacity];
+		indices = new int[capacity];
+		lengths = new int[capacity];
+		pool = new byte[capacity * 8];
+	}
+
+	/**
+	 * Used to calculate the hash of the given bytes the same way this table
+	 * does, for callers that compute it while scanning the bytes anyway.
+	 */
+	public static int hash(byte[] data, int index, int length) {
+		int hash = 0;
+
+		for (int end = index + length; index < end; index++)
+			hash = 31 * hash + data[index];
+
+		return hash;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Used to remove every symbol, so IDs are handed out from <code>0</code>
+	 * again. The arrays are kept, so a table that is cleared and refilled
+	 * with similar symbols doesn't allocate.
+	 */
+	public void clear() {
+		Arrays.fill(slots, 0);
+		size = 0;
+		poolLength = 0;
+	}
+
+	/**
+	 * Used to get the ID of the given bytes, or {@link Constants#INVALID} if
+	 * they have never been added.
+	 */
+	public int get(byte[] data, int index, int length) {
+		return get(hash(data, index, length), data, index, length);
+	}
+
+	/**
+	 * Used to get the ID of the given bytes whose hash (as calculated by
+	 * {@link #hash(byte[], int, int)}) is already known, or
+	 * {@link Constants#INVALID} if they have never been added.
+	 */
+	public int get(int hash, byte[] data, int index, int length) {
+		int mask = slots.length - 1;
+
+		for (int slot = mix(hash) & mask;; slot = (slot + 1) & mask) {
+			int id = slots[slot] - 1;
+
+			if (id == Constants.INVALID)
+				return Constants.INVALID;
+			if (matches(id, hash, data, index, length))
+				return id;
+		}
+	}
+
+	/**
+	 * Used to add the given bytes to the table if they are not in it yet.
+	 * 
+	 * @return the ID of the bytes.
+	 */
+	public int add(byte[] data, int index, int length) {
+		return add(hash(data, index, length), data, index, length);
+	}
+
+	/**
+	 * Used to add the given bytes, whose hash (as calculated by
+	 * {@link #hash(byte[], int, int)}) is already known, to the table if they
+	 * are not in it yet.
+	 * 
+	 * @return the ID of the bytes.
+	 */
+	public int add(int hash, byte[] data, int index, int length) {
+		int mask = slots.length - 1;
+		int slot = mix(hash) & mask;
+
+		for (;; slot = (slot + 1) & mask) {
+			int id = slots[slot] - 1;
+
+			if (id == Constants.INVALID)
+				break;
+			if (matches(id, hash, data, index, length))
+				return id;
+		}
+
+		// Not found, slot is the empty slot the symbol belongs in.
+		int id = size++;
+
+		if (id == hashes.length) {
+			hashes = ArrayUtil.ensureCapacity(id + 1, hashes);
+			indices = ArrayUtil.ensureCapacity(id + 1, indices);
+			lengths = ArrayUtil.ensureCapacity(id + 1, lengths);
+		}
+
+		pool = ArrayUtil.ensureCapacity(poolLength + length, pool);
+		System.arraycopy(data, index, pool, poolLength, length);
+
+		hashes[id] = hash;
+		indices[id] = poolLength;
+		lengths[id] = length;
+		poolLength += length;
+
+		slots[slot] = id + 1;
+
+		// Keep the table at most half full so probe runs stay short.
+		if (size * 2 > slots.length)
+			rehash();
+
+		return id;
+	}
+
+	/**
+	 * Used to get a copy of the bytes of the symbol with the given ID.
+	 * 
+	 * @throws IndexOutOfBoundsException
+	 *             if <code>id</code> is not a valid ID in this table.
+	 */
+	public byte[] getBytes(int id) throws IndexOutOfBoundsException {
+		if (id < 0 || id >= size)
+			throw new IndexOutOfBoundsException("id [" + id
+					+ "] must be >= 0 and < size() [" + size + "]");
+
+		byte[] copy = new byte[lengths[id]];
+		System.arraycopy(pool, indices[id], copy, 0, copy.length);
+		return copy;
+	}
+
+	private boolean matches(int id, int hash, byte[] data, int index,
+			int length) {
+		if (hashes[id] != hash || lengths[id] != length)
+			return false;
+
+		int poolIndex = indices[id];
+
+		return Arrays.equals(pool, poolIndex, poolIndex + length, data, index,
+				index + length);
+	}
+
+	private void rehash() {
+		int[] newSlots = new int[slots.length * 2];
+		int mask = newSlots.length - 1;
+
+		for (int id = 0; id < size; id++) {
+			int slot = mix(hashes[id]) & mask;
+
+			while (newSlots[slot] != 0)
+				slot = (slot + 1) & mask;
+
+			newSlots[slot] = id + 1;
+		}
+
+		slots = newSlots;
+	}
+
+	/*
+	 * Spread the high bits down, short names only ever set the low bits of a
+	 * 31-based hash.
+	 */
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
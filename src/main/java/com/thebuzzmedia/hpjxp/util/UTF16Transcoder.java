@@ -0,0 +1,219 @@
+package com.thebuzzmedia.hpjxp.util;
+
+import java.io.IOException;
+
+import com.thebuzzmedia.hpjxp.io.IInputSource;
+
+/**
+ * Incremental UTF-16 to UTF-8 transcoder.
+ * <p/>
+ * UTF-16 bytes are staged with {@link #append(byte[], int, int)} or
+ * {@link #fill(IInputSource)} and then transcoded into a caller-owned
+ * <code>byte[]</code> with {@link #transcode(byte[], int, int, boolean)} as
+ * room allows. Code units split across chunks, surrogate pairs included, are
+ * carried over to the next call, as are the UTF-8 bytes of a char that only
+ * partly fit in the destination. Unpaired surrogates and a trailing odd byte
+ * are replaced by <code>U+FFFD</code>.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+public class UTF16Transcoder {
+	public static final int INPUT_SIZE = 8192;
+
+	private boolean isBigEndian;
+
+	// Staged UTF-16 bytes; in[inIndex, inLength) haven't been transcoded yet.
+	private byte[] in;
+	private int inIndex = 0;
+	private int inLength = 0;
+
+	// UTF-8 bytes of the last char that didn't fit in the destination.
+	private byte[] pending = new byte[4];
+	private int pendingIndex = 0;
+	private int pendingLength = 0;
+
+	public UTF16Transcoder(boolean isBigEndian) {
+		this(isBigEndian, INPUT_SIZE);
+	}
+
+	public UTF16Transcoder(boolean isBigEndian, int inputSize)
+			throws IllegalArgumentException {
+		if (inputSize < 4)
+			throw new IllegalArgumentException("inputSize [" + inputSize
+					+ "] must be >= 4");
+
+		this.isBigEndian = isBigEndian;
+		in = new byte[inputSize];
+	}
+
+	public boolean isBigEndian() {
+		return isBigEndian;
+	}
+
+	/**
+	 * Used to get the most UTF-8 bytes the given number of UTF-16 bytes can
+	 * transcode to, including anything carried over between calls and a
+	 * final <code>U+FFFD</code>.
+	 */
+	public static int maxOutput(int length) {
+		return (length / 2) * 3 + 6;
+	}
+
+	/**
+	 * Used to get the number of staged UTF-16 bytes that haven't been
+	 * transcoded yet.
+	 */
+	public int getRemaining() {
+		return inLength - inIndex;
+	}
+
+	/**
+	 * Used to stage the given UTF-16 bytes, growing the staging buffer as
+	 * needed.
+	 */
+	public void append(byte[] data, int index, int length) {
+		compact(length);
+		System.arraycopy(data, index, in, inLength, length);
+		inLength += length;
+	}
+
+	/**
+	 * Used to stage as many UTF-16 bytes from the given source as fit in the
+	 * staging buffer.
+	 *
+	 * @return the number of bytes read or <code>-1</code> if the source is
+	 *         exhausted.
+	 */
+	public int fill(IInputSource input) throws IOException {
+		compact(1);
+
+		int count = input.read(in, inLength, in.length - inLength);
+
+		if (count > 0)
+			inLength += count;
+
+		return count;
+	}
+
+	/**
+	 * Used to transcode as much of the staged input as fits into
+	 * <code>length</code> bytes of <code>out</code> starting at
+	 * <code>index</code>.
+	 *
+	 * @param isEnd
+	 *            <code>true</code> if no more input will be staged, so any
+	 *            incomplete trailing code unit or surrogate pair is replaced
+	 *            instead of being held back.
+	 *
+	 * @return the number of UTF-8 bytes written.
+	 */
+	public int transcode(byte[] out, int index, int length, boolean isEnd) {
+		int o = index;
+		int end = index + length;
+		int i = inIndex;
+		int hi = (isBigEndian ? 0 : 1);
+		int lo = 1 - hi;
+
+		while (pendingIndex < pendingLength && o < end)
+			out[o++] = pending[pendingIndex++];
+
+		while (o < end) {
+			int available = inLength - i;
+
+			if (available < 2) {
+				// A lone trailing byte can never become a code unit.
+				if (available == 1 && isEnd) {
+					i++;
+					queue(CodingUtil.REPLACEMENT_CHAR);
+				} else
+					break;
+			} else {
+				int unit = ((in[i + hi] & 0xFF) << 8) | (in[i + lo] & 0xFF);
+
+				// ASCII, by far the most common case in markup.
+				if (unit < 0x80) {
+					out[o++] = (byte) unit;
+					i += 2;
+					continue;
+				}
+
+				int cp = unit;
+				i += 2;
+
+				if (Character.isHighSurrogate((char) unit)) {
+					if (available < 4) {
+						if (!isEnd) {
+							// Wait for the low half.
+							i -= 2;
+							break;
+						}
+
+						cp = CodingUtil.REPLACEMENT_CHAR;
+					} else {
+						int next = ((in[i + hi] & 0xFF) << 8)
+								| (in[i + lo] & 0xFF);
+
+						if (Character.isLowSurrogate((char) next)) {
+							cp = Character.toCodePoint((char) unit,
+									(char) next);
+							i += 2;
+						} else
+							cp = CodingUtil.REPLACEMENT_CHAR;
+					}
+				} else if (Character.isLowSurrogate((char) unit))
+					cp = CodingUtil.REPLACEMENT_CHAR;
+
+				queue(cp);
+			}
+
+			while (pendingIndex < pendingLength && o < end)
+				out[o++] = pending[pendingIndex++];
+		}
+
+		inIndex = i;
+		return o - index;
+	}
+
+	/**
+	 * Used to move the unconsumed input to the front of the staging buffer,
+	 * growing it if that doesn't leave room for <code>length</code> more
+	 * bytes.
+	 */
+	private void compact(int length) {
+		int remaining = inLength - inIndex;
+
+		if (inIndex > 0) {
+			System.arraycopy(in, inIndex, in, 0, remaining);
+			inIndex = 0;
+			inLength = remaining;
+		}
+
+		if (in.length - inLength < length)
+			in = ArrayUtil.ensureCapacity(inLength + length, in);
+	}
+
+	/**
+	 * Used to encode the given code point as UTF-8 into the (drained)
+	 * pending bytes.
+	 */
+	private void queue(int cp) {
+		pendingIndex = 0;
+
+		if (cp < 0x800) {
+			pending[0] = (byte) (0xC0 | (cp >> 6));
+			pending[1] = (byte) (0x80 | (cp & 0x3F));
+			pendingLength = 2;
+		} else if (cp < 0x10000) {
+			pending[0] = (byte) (0xE0 | (cp >> 12));
+			pending[1] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+			pending[2] = (byte) (0x80 | (cp & 0x3F));
+			pendingLength = 3;
+		} else {
+			pending[0] = (byte) (0xF0 | (cp >> 18));
+			pending[1] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+			pending[2] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+			pending[3] = (byte) (0x80 | (cp & 0x3F));
+			pendingLength = 4;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.thebuzzmedia.hpjxp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HPXMLParserPoolTest {
+	public static final byte[] PAYLOAD = "<a><b>text</b></a>".getBytes();
+
+	@Test
+	public void testReuse() throws Exception {
+		HPXMLParserPool pool = new HPXMLParserPool();
+		HPXMLParser first = null;
+
+		try (HPXMLParser parser = pool.borrow(PAYLOAD.length)) {
+			first = parser;
+			parser.setInput(new ByteArrayInputStream(PAYLOAD));
+			assertEquals(4096, parser.getBufferSize());
+		}
+
+		assertEquals(1, pool.getIdleCount());
+
+		HPXMLParser second = pool.borrow(PAYLOAD.length);
+		assertSame(first, second);
+		assertEquals(0, pool.getIdleCount());
+
+		// Closing twice must not return the parser twice.
+		second.close();
+		second.close();
+		assertEquals(1, pool.getIdleCount());
+
+		// A bigger payload gets a parser from a bigger size class.
+		try (HPXMLParser parser = pool.borrow(20000)) {
+			assertNotSame(first, parser);
+			assertEquals(65536, parser.getBufferSize());
+		}
+	}
+
+	@Test
+	public void testSymbolsReset() throws Exception {
+		HPXMLParserPool pool = new HPXMLParserPool(1, 4096);
+
+		try (HPXMLParser parser = pool.borrow()) {
+			assertEquals(0, parser.registerTag("record"));
+			parser.setInput(new ByteArrayInputStream(PAYLOAD));
+
+			for (HPXMLParser.State state; (state = parser.nextState()) != HPXMLParser.State.END_DOCUMENT;) {
+				if (state == HPXMLParser.State.START_TAG)
+					parser.getTagId();
+			}
+
+			assertEquals(2, parser.registerNamespace("urn:first"));
+			parser.setMaxBufferSize(8192);
+			parser.setBufferShrinkRefills(1);
+		}
+
+		// The next borrower starts from the built-in symbols only.
+		try (HPXMLParser parser = pool.borrow()) {
+			assertEquals(0, parser.registerTag("b"));
+			assertEquals(HPXMLParser.XMLNS_NAMESPACE_ID,
+					parser.registerNamespace(HPXMLParser.XMLNS_NAMESPACE));
+			assertEquals(2, parser.registerNamespace("urn:second"));
+			assertEquals(HPXMLParser.MAX_BUFFER_SIZE.intValue(),
+					parser.getMaxBufferSize());
+			assertEquals(HPXMLParser.BUFFER_SHRINK_REFILLS.intValue(),
+					parser.getBufferShrinkRefills());
+		}
+	}
+
+	@Test
+	public void testMaxIdle() throws Exception {
+		HPXMLParserPool pool = new HPXMLParserPool(2, 1024);
+		HPXMLParser[] parsers = new HPXMLParser[5];
+
+		for (int i = 0; i < parsers.length; i++)
+			parsers[i] = pool.borrow();
+		for (int i = 0; i < parsers.length; i++)
+			parsers[i].close();
+
+		assertEquals(2, pool.getIdleCount());
+	}
+
+	@Test
+	public void testConcurrentBorrow() throws Exception {
+		final HPXMLParserPool pool = new HPXMLParserPool(8, 4096);
+		final AtomicInteger events = new AtomicInteger();
+		Thread[] threads = new Thread[16];
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 1000; j++) {
+							try (HPXMLParser parser = pool.borrow()) {
+								parser.setInput(new ByteArrayInputStream(
+										PAYLOAD));
+
+								while (parser.nextState() != HPXMLParser.State.END_DOCUMENT)
+									events.incrementAndGet();
+							}
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		assertEquals(16 * 1000 * 5, events.get());
+	}
+}
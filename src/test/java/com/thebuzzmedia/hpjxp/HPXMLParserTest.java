@@ -1,8 +1,30 @@
 package com.thebuzzmedia.hpjxp;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
 import org.junit.Test;
 
 import com.thebuzzmedia.hpjxp.HPXMLParser.State;
+import com.thebuzzmedia.hpjxp.buffer.IByteSource;
+import com.thebuzzmedia.hpjxp.io.InputStreamSource;
+import com.thebuzzmedia.hpjxp.io.MappedFileSource;
+import com.thebuzzmedia.hpjxp.util.CodingUtil;
 
 public class HPXMLParserTest {
 	public static char[] INDENTS = { ' ', ' ', ' ', ' ', ' ', ' ', ' ', ' ',
@@ -132,4 +154,1015 @@ public class HPXMLParserTest {
 			e.printStackTrace();
 		}
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testParserMappedFile() throws Exception {
+		HPXMLParser parser = new HPXMLParser();
+
+		parser.setInput(this.getClass().getResourceAsStream(
+				"resources/typical.xml"));
+		String expected = toEventString(parser);
+
+		parser.setInput(getResourcePath("resources/typical.xml"));
+		assertEquals(expected, toEventString(parser));
+
+		/*
+		 * Windows much smaller than the buffer and than the constructs in the
+		 * document, so reads and tags straddle many window boundaries.
+		 */
+		Path file = getResourcePath("resources/typical.xml");
+		parser = new HPXMLParser(64);
+
+		for (int windowSize : new int[] { 1, 7, 61, 4096 }) {
+			FileChannel channel = FileChannel.open(file,
+					StandardOpenOption.READ);
+
+			try {
+				parser.setInput(new MappedFileSource(channel, 0, channel
+						.size(), false, windowSize));
+				assertEquals(expected, toEventString(parser));
+			} finally {
+				channel.close();
+			}
+		}
+
+		parser.close();
+	}
+
+	@Test
+	public void testParserSuffixOverlap() throws Exception {
+		HPXMLParser parser = new HPXMLParser();
+		parser.setInput(new ByteArrayInputStream(
+				"<a><!-- dash --->x<![CDATA[y]]]]><b/></a>".getBytes("UTF-8")));
+
+		assertEquals("START_TAG:a\nTEXT:x\nTEXT:y]]\nSTART_TAG:b\n"
+				+ "END_TAG:b\nEND_TAG:a\n", toEventString(parser));
+	}
+
+	@Test
+	public void testParserAttributes() throws Exception {
+		HPXMLParser parser = new HPXMLParser();
+		parser.setInput(new ByteArrayInputStream(
+				"<a x=\"1\" y = 'two words' z=bare/v><b checked/><c k=\"v\"/></a>"
+						.getBytes("UTF-8")));
+
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals(3, parser.getAttributeCount());
+		assertEquals("x", parser.getAttributeName(0).decodeToString());
+		assertEquals("1", parser.getAttributeValue(0).decodeToString());
+		assertEquals("y", parser.getAttributeName(1).decodeToString());
+		assertEquals("two words", parser.getAttributeValue(1).decodeToString());
+		assertEquals("bare/v", parser.getAttributeValue("z".getBytes())
+				.decodeToString());
+		assertNull(parser.getAttributeValue("w".getBytes()));
+
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals(1, parser.getAttributeCount());
+		assertEquals("checked", parser.getAttributeName(0).decodeToString());
+		assertEquals(0, parser.getAttributeValue(0).getLength());
+
+		assertEquals(State.END_TAG, parser.nextState());
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals("c", parser.getTagName().decodeToString());
+		assertEquals("v", parser.getAttributeValue("k".getBytes())
+				.decodeToString());
+
+		try {
+			parser.nextState();
+			parser.getAttributeCount();
+			throw new AssertionError("END_TAG must not report attributes");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testParserReuseByteSourcesAllocation() throws Exception {
+		// Only measurable on JVMs that expose per-thread allocation counts.
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+			return;
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		StringBuilder xml = new StringBuilder("<items>");
+
+		for (int i = 0; i < 100000; i++)
+			xml.append("<item id=\"").append(i).append("\">text ").append(i)
+					.append("</item><!-- c --><empty/>");
+
+		xml.append("</items>");
+
+		HPXMLParser parser = new HPXMLParser();
+		parser.setReuseByteSources(true);
+		parser.setInput(new ByteArrayInputStream(xml.toString().getBytes(
+				"UTF-8")));
+
+		// The same flyweight is handed out for every tag name.
+		assertEquals(State.START_TAG, parser.nextState());
+		IByteSource name = parser.getTagName();
+		assertEquals(State.START_TAG, parser.nextState());
+		assertSame(name, parser.getTagName());
+		assertEquals("item", parser.getTagName().decodeToString());
+
+		// Warm up, so the JIT and buffer refills reach a steady state.
+		long checksum = consumeEvents(parser, 300000);
+
+		// Calibrate the cost of the measurement itself.
+		long overhead = bean.getThreadAllocatedBytes(threadId);
+		overhead = bean.getThreadAllocatedBytes(threadId) - overhead;
+
+		long before = bean.getThreadAllocatedBytes(threadId);
+		checksum += consumeEvents(parser, 200000);
+		long allocated = bean.getThreadAllocatedBytes(threadId) - before
+				- overhead;
+
+		assertEquals(true, checksum > 0);
+
+		/*
+		 * The JVM itself allocates a few KB in the window now and then (JIT
+		 * and class initialization, more so after other tests ran first), so
+		 * the bound is per event: under a byte per event on average, while a
+		 * single object per event would cost at least 16.
+		 */
+		assertEquals("allocated " + allocated + " bytes", true,
+				allocated < 200000);
+	}
+
+	protected static long consumeEvents(HPXMLParser parser, int count)
+			throws IOException {
+		long checksum = 0;
+
+		for (int i = 0; i < count; i++) {
+			switch (parser.nextState()) {
+			case START_TAG:
+				checksum += parser.getTagName().getLength();
+
+				if (parser.getAttributeCount() > 0)
+					checksum += parser.getAttributeValue(0).getLength();
+				break;
+			case END_TAG:
+				checksum += parser.getTagName().getLength();
+				break;
+			case TEXT:
+				checksum += parser.getText().getLength();
+				break;
+			}
+		}
+
+		return checksum;
+	}
+
+	@Test
+	public void testParserDecodeToAllocation() throws Exception {
+		// Only measurable on JVMs that expose per-thread allocation counts.
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+			return;
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		StringBuilder xml = new StringBuilder("<items>");
+
+		for (int i = 0; i < 100000; i++)
+			xml.append("<item>caf\u00E9 ").append(i).append("</item>");
+
+		xml.append("</items>");
+
+		HPXMLParser parser = new HPXMLParser();
+		parser.setReuseByteSources(true);
+		parser.setInput(new ByteArrayInputStream(xml.toString().getBytes(
+				"UTF-8")));
+
+		char[] chars = new char[64];
+		CharBuffer charBuffer = CharBuffer.allocate(64);
+		StringBuilder builder = new StringBuilder(64);
+
+		// Warm up, so the JIT and buffer refills reach a steady state.
+		long checksum = decodeEvents(parser, 200000, chars, charBuffer, builder);
+		assertEquals("caf\u00E9 66665", builder.toString());
+
+		long overhead = bean.getThreadAllocatedBytes(threadId);
+		overhead = bean.getThreadAllocatedBytes(threadId) - overhead;
+
+		long before = bean.getThreadAllocatedBytes(threadId);
+		checksum += decodeEvents(parser, 100000, chars, charBuffer, builder);
+		long allocated = bean.getThreadAllocatedBytes(threadId) - before
+				- overhead;
+
+		assertEquals(true, checksum > 0);
+
+		// Per event, for the same reason as in the test above.
+		assertEquals("allocated " + allocated + " bytes", true,
+				allocated < 100000);
+	}
+
+	protected static long decodeEvents(HPXMLParser parser, int count,
+			char[] chars, CharBuffer charBuffer, StringBuilder builder)
+			throws IOException {
+		long checksum = 0;
+
+		for (int i = 0; i < count; i++) {
+			if (parser.nextState() == State.TEXT) {
+				IByteSource text = parser.getText();
+
+				checksum += text.decodeTo(chars, 0);
+
+				charBuffer.clear();
+				checksum += text.decodeTo(charBuffer);
+
+				builder.setLength(0);
+				checksum += text.decodeTo(builder);
+			}
+		}
+
+		return checksum;
+	}
+
+	@Test
+	public void testParserTagIds() throws Exception {
+		HPXMLParser parser = new HPXMLParser();
+		int bookId = parser.registerTag("book");
+		int titleId = parser.registerTag("title");
+
+		assertEquals(bookId, parser.registerTag("book"));
+
+		StringBuilder xml = new StringBuilder("<book><title>t</title>");
+
+		// Enough distinct names to force the symbol table to grow.
+		for (int i = 0; i < 1000; i++)
+			xml.append("<n").append(i).append(" a=\"1\"/>");
+
+		xml.append("</book>");
+		parser.setInput(new ByteArrayInputStream(xml.toString().getBytes(
+				"UTF-8")));
+
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals(bookId, parser.getTagId());
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals(titleId, parser.getTagId());
+		assertEquals(State.TEXT, parser.nextState());
+		assertEquals(State.END_TAG, parser.nextState());
+		assertEquals(titleId, parser.getTagId());
+
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(State.START_TAG, parser.nextState());
+			int id = parser.getTagId();
+
+			assertEquals(State.END_TAG, parser.nextState());
+			assertEquals(id, parser.getTagId());
+			assertEquals(id, parser.registerTag("n" + i));
+		}
+
+		assertEquals(State.END_TAG, parser.nextState());
+		assertEquals(bookId, parser.getTagId());
+	}
+
+	@Test
+	public void testParserSkipElement() throws Exception {
+		HPXMLParser parser = new HPXMLParser();
+		parser.setInput(new ByteArrayInputStream(
+				("<root><skip a=\"1\"><skip><x/>text<!-- </skip> -->"
+						+ "<![CDATA[</skip>]]><?pi </skip> ?><!DOCTYPE x>"
+						+ "</skip></skip><keep/><skip/><last>v</last></root>")
+						.getBytes("UTF-8")));
+
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals(State.END_TAG, parser.skipElement());
+		assertEquals("skip", parser.getTagName().decodeToString());
+
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals("keep", parser.getTagName().decodeToString());
+		assertEquals(State.END_TAG, parser.nextState());
+
+		// Skipping an empty element just reports its END_TAG
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals(State.END_TAG, parser.skipElement());
+		assertEquals("skip", parser.getTagName().decodeToString());
+
+		assertEquals("START_TAG:last\nTEXT:v\nEND_TAG:last\nEND_TAG:root\n",
+				toEventString(parser));
+	}
+
+	@Test
+	public void testParserBufferGrowth() throws Exception {
+		StringBuilder big = new StringBuilder();
+
+		for (int i = 0; i < 1000; i++)
+			big.append("0123456789");
+
+		StringBuilder xml = new StringBuilder("<root><big value=\"")
+				.append(big).append("\"/><!-- ").append(big).append(" -->");
+
+		for (int i = 0; i < 200; i++)
+			xml.append("<small>").append(i).append("</small>");
+
+		xml.append("</root>");
+		byte[] data = xml.toString().getBytes("UTF-8");
+
+		HPXMLParser parser = new HPXMLParser(64);
+		parser.setBufferShrinkRefills(4);
+		parser.setInput(new ByteArrayInputStream(data));
+
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals(big.length(), parser.getAttributeValue(0).getLength());
+		assertEquals(State.END_TAG, parser.nextState());
+
+		int smallCount = 0;
+		State evt = null;
+
+		while ((evt = parser.nextState()) != State.END_DOCUMENT) {
+			if (evt == State.START_TAG)
+				smallCount++;
+		}
+
+		assertEquals(200, smallCount);
+		assertEquals(16384, parser.getBufferHighWaterMark());
+		assertEquals(64, parser.getBufferSize());
+
+		// Without room to grow, the oversized tag can't be parsed.
+		parser.setMaxBufferSize(1024);
+		parser.setInput(new ByteArrayInputStream(data));
+		parser.nextState();
+
+		try {
+			parser.nextState();
+			throw new AssertionError("tag larger than maxBufferSize parsed");
+		} catch (XMLParseException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testParserChannel() throws Exception {
+		byte[] data = Files.readAllBytes(getResourcePath("resources/typical.xml"));
+
+		HPXMLParser parser = new HPXMLParser(64);
+		parser.setInput(new ByteArrayInputStream(data));
+		String expected = toEventString(parser);
+
+		parser.setInput(Channels.newChannel(new ByteArrayInputStream(data)));
+		assertEquals(expected, toEventString(parser));
+
+		// Refills larger than the staging buffer take more than one read.
+		StringBuilder xml = new StringBuilder("<items>");
+
+		for (int i = 0; i < 20000; i++)
+			xml.append("<item id=\"").append(i).append("\">text</item>");
+
+		data = xml.append("</items>").toString().getBytes("UTF-8");
+		parser = new HPXMLParser();
+		parser.setInput(new ByteArrayInputStream(data));
+		expected = toEventString(parser);
+
+		parser.setInput(Channels.newChannel(new ByteArrayInputStream(data)));
+		assertEquals(expected, toEventString(parser));
+
+		// Short reads, like a socket with little data in flight.
+		final ByteBuffer remaining = ByteBuffer.wrap(data);
+
+		parser.setInput(new ReadableByteChannel() {
+			public int read(ByteBuffer dst) {
+				if (!remaining.hasRemaining())
+					return -1;
+
+				int count = Math.min(3, Math.min(dst.remaining(),
+						remaining.remaining()));
+
+				for (int i = 0; i < count; i++)
+					dst.put(remaining.get());
+
+				return count;
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() {
+				// no-op
+			}
+		});
+		assertEquals(expected, toEventString(parser));
+	}
+
+	@Test
+	public void testParserShortReads() throws Exception {
+		for (String name : new String[] { "typical.xml", "cdsect_more.xml",
+				"basic_cdata.xml" }) {
+			byte[] data = Files.readAllBytes(getResourcePath("resources/"
+					+ name));
+
+			HPXMLParser parser = new HPXMLParser();
+			parser.setInput(new ByteArrayInputStream(data));
+			String expected = toEventString(parser);
+
+			// Sources may hand out fewer bytes than asked for, like a socket.
+			for (final int maxRead : new int[] { 1, 2, 3 }) {
+				parser.setInput(new ByteArrayInputStream(data) {
+					@Override
+					public synchronized int read(byte[] b, int off, int len) {
+						return super.read(b, off, Math.min(len, maxRead));
+					}
+				});
+				assertEquals(name + " maxRead=" + maxRead, expected,
+						toEventString(parser));
+			}
+		}
+	}
+
+	@Test
+	public void testParserReadAhead() throws Exception {
+		byte[] data = Files.readAllBytes(getResourcePath("resources/typical.xml"));
+
+		HPXMLParser parser = new HPXMLParser(64);
+		parser.setInput(new ByteArrayInputStream(data));
+		String expected = toEventString(parser);
+
+		// Hands out at most 5 bytes per read, like a slow network stream.
+		parser.setReadAhead(true);
+		parser.setInput(new ByteArrayInputStream(data) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 5));
+			}
+		});
+
+		assertEquals(expected, toEventString(parser));
+		parser.close();
+	}
+
+	@Test
+	public void testParserAsciiTracking() throws Exception {
+		StringBuilder xml = new StringBuilder("<items>");
+
+		for (int i = 0; i < 100; i++)
+			xml.append("<item>").append(i).append("</item>");
+
+		xml.append("<item>caf\u00E9</item></items>");
+
+		HPXMLParser parser = new HPXMLParser(64);
+		parser.setInput(new ByteArrayInputStream(xml.toString().getBytes(
+				"UTF-8")));
+
+		StringBuilder text = new StringBuilder();
+		State evt = null;
+
+		while ((evt = parser.nextState()) != State.END_DOCUMENT) {
+			if (evt == State.TEXT) {
+				text.append(parser.getText().decodeToString()).append(' ');
+				parser.getText().decodeTo(text);
+				text.append(' ');
+			}
+		}
+
+		assertEquals("99 99 caf\u00E9 caf\u00E9 ",
+				text.substring(text.length() - 16));
+	}
+
+	@Test
+	public void testParserFeed() throws Exception {
+		byte[] data = Files.readAllBytes(getResourcePath("resources/typical.xml"));
+
+		HPXMLParser parser = new HPXMLParser(64);
+		parser.setInput(new ByteArrayInputStream(data));
+		String expected = toEventString(parser);
+
+		for (int chunk : new int[] { 1, 7, 64, 1000, data.length }) {
+			parser.setFeedInput();
+			StringBuilder builder = new StringBuilder();
+			int index = 0;
+			State evt = null;
+
+			while ((evt = parser.nextState()) != State.END_DOCUMENT) {
+				if (evt == State.NEED_MORE_INPUT) {
+					if (index == data.length)
+						parser.endOfInput();
+					else {
+						int length = Math.min(chunk, data.length - index);
+						parser.feed(ByteBuffer.wrap(data, index, length));
+						index += length;
+					}
+				} else
+					appendEvent(parser, evt, builder);
+			}
+
+			assertEquals("chunk=" + chunk, expected, builder.toString());
+		}
+
+		// A document cut short fails once the input is known to have ended.
+		parser.setFeedInput();
+		parser.feed(data, 0, 5);
+		assertEquals(State.NEED_MORE_INPUT, parser.nextState());
+		parser.endOfInput();
+
+		try {
+			parser.nextState();
+			throw new AssertionError("truncated tag parsed");
+		} catch (XMLParseException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testParserEncoding() throws Exception {
+		String body = "<doc a=\"caf\u00E9\">na\u00EFve &amp; \u00FC\u20AC<b>\uD83D\uDE00</b><c/>\u00E9</doc>";
+		String latin = "<doc a=\"caf\u00E9\">na\u00EFve &amp; \u00FC<b/></doc>";
+		byte[] bom = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+		byte[] bomBE = { (byte) 0xFE, (byte) 0xFF };
+		byte[] bomLE = { (byte) 0xFF, (byte) 0xFE };
+
+		assertEncoding(body, "UTF-8", body.getBytes("UTF-8"));
+		assertEncoding(body, "UTF-8", concat(bom, body.getBytes("UTF-8")));
+		assertEncoding(body, "UTF-16BE", concat(bomBE, body.getBytes("UTF-16BE")));
+		assertEncoding(body, "UTF-16LE", concat(bomLE, body.getBytes("UTF-16LE")));
+		assertEncoding(body, "UTF-16BE", body.getBytes("UTF-16BE"));
+		assertEncoding(body, "UTF-16LE",
+				("<?xml version=\"1.0\" encoding=\"UTF-16\"?>" + body)
+						.getBytes("UTF-16LE"));
+		assertEncoding(latin, "ISO-8859-1",
+				("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" + latin)
+						.getBytes("ISO-8859-1"));
+		assertEncoding(body.replace("\uD83D\uDE00", "x"), "windows-1252",
+				("<?xml version='1.0' encoding = 'windows-1252' ?>" + body
+						.replace("\uD83D\uDE00", "x")).getBytes("windows-1252"));
+
+		// A declaration read as ASCII can't mean UTF-16, the bytes win.
+		assertEncoding(body, "UTF-8",
+				("<?xml version=\"1.0\" encoding=\"UTF-16\"?>" + body)
+						.getBytes("UTF-8"));
+		assertEncoding(body, "UTF-8",
+				("<?xml version=\"1.0\" encoding=\"UTF-16BE\"?>" + body)
+						.getBytes("UTF-8"));
+
+		// Values decode in the document's encoding, references included.
+		HPXMLParser parser = new HPXMLParser(64);
+		parser.setInput(new ByteArrayInputStream(
+				("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" + latin)
+						.getBytes("ISO-8859-1")));
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals("caf\u00E9", parser.getAttributeValue(0).decodeToString());
+		assertEquals("caf\u00E9", new String(parser.getAttributeValue(0)
+				.decodeToChars()));
+		assertEquals(State.TEXT, parser.nextState());
+		assertEquals("na\u00EFve & \u00FC", parser.getText()
+				.decodeTextToString());
+
+		for (String name : new String[] { "Shift_JIS", "no-such-charset" }) {
+			try {
+				parser.setInput(new ByteArrayInputStream(
+						("<?xml version=\"1.0\" encoding=\"" + name + "\"?><a/>")
+								.getBytes("UTF-8")));
+				throw new AssertionError(name + " accepted");
+			} catch (XMLParseException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Used to check the given encoded document is detected as
+	 * <code>encoding</code> and produces the same events as the UTF-8
+	 * encoded <code>body</code>, both pulled and fed in small chunks.
+	 */
+	protected static void assertEncoding(String body, String encoding,
+			byte[] data) throws IOException {
+		HPXMLParser parser = new HPXMLParser(64);
+		parser.setInput(new ByteArrayInputStream(body.getBytes("UTF-8")));
+		String expected = toEventString(parser);
+
+		parser.setInput(new ByteArrayInputStream(data));
+		assertEquals(encoding, parser.getEncoding().name());
+		assertEquals(encoding, expected, toEventString(parser));
+
+		for (int chunk : new int[] { 1, 3, data.length }) {
+			parser.setFeedInput();
+			StringBuilder builder = new StringBuilder();
+			int index = 0;
+			State evt = null;
+
+			while ((evt = parser.nextState()) != State.END_DOCUMENT) {
+				if (evt == State.NEED_MORE_INPUT) {
+					if (index == data.length)
+						parser.endOfInput();
+					else {
+						int length = Math.min(chunk, data.length - index);
+						parser.feed(data, index, length);
+						index += length;
+					}
+				} else
+					appendEvent(parser, evt, builder);
+			}
+
+			assertEquals(encoding, parser.getEncoding().name());
+			assertEquals(encoding + " chunk=" + chunk, expected,
+					builder.toString());
+		}
+	}
+
+	protected static byte[] concat(byte[] first, byte[] second) {
+		byte[] result = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	@Test
+	public void testParserNamespaces() throws Exception {
+		byte[] data = ("<?xml version=\"1.0\"?>\n"
+				+ "<soap:Envelope xmlns:soap=\"urn:soap\" xmlns=\"urn:default\">"
+				+ "<soap:Header><a:Action xmlns:a='urn:a' soap:mustUnderstand=\"1\">x</a:Action></soap:Header>"
+				+ "<soap:Body>" + "<item id=\"1\" xml:lang=\"en\"/>"
+				+ "<inner xmlns=\"urn:inner\"><leaf/></inner>"
+				+ "<plain xmlns=\"\"><leaf/></plain>"
+				+ "<soap:Fault xmlns:soap=\"urn:shadow\"/>"
+				+ "<skipme xmlns:s=\"urn:skip\"><s:deep><s:deeper/></s:deep></skipme>"
+				+ "<after/><u:unbound/>" + "</soap:Body></soap:Envelope>")
+				.getBytes("UTF-8");
+
+		String xmlns = HPXMLParser.XMLNS_NAMESPACE;
+		String expected = "START_TAG:soap|Envelope|urn:soap xmlns:soap="
+				+ xmlns + " xmlns=" + xmlns + "\n"
+				+ "START_TAG:soap|Header|urn:soap\n"
+				+ "START_TAG:a|Action|urn:a xmlns:a=" + xmlns
+				+ " soap:mustUnderstand=urn:soap\n"
+				+ "END_TAG:a|Action|urn:a\n"
+				+ "END_TAG:soap|Header|urn:soap\n"
+				+ "START_TAG:soap|Body|urn:soap\n"
+				+ "START_TAG:|item|urn:default id=null xml:lang="
+				+ HPXMLParser.XML_NAMESPACE + "\n"
+				+ "END_TAG:|item|urn:default\n"
+				+ "START_TAG:|inner|urn:inner xmlns=" + xmlns + "\n"
+				+ "START_TAG:|leaf|urn:inner\n" + "END_TAG:|leaf|urn:inner\n"
+				+ "END_TAG:|inner|urn:inner\n"
+				+ "START_TAG:|plain|null xmlns=" + xmlns + "\n"
+				+ "START_TAG:|leaf|null\n" + "END_TAG:|leaf|null\n"
+				+ "END_TAG:|plain|null\n"
+				+ "START_TAG:soap|Fault|urn:shadow xmlns:soap=" + xmlns + "\n"
+				+ "END_TAG:soap|Fault|urn:shadow\n"
+				+ "START_TAG:|skipme|urn:default xmlns:s=" + xmlns + "\n"
+				+ "END_TAG:|skipme|urn:default\n"
+				+ "START_TAG:|after|urn:default\n"
+				+ "END_TAG:|after|urn:default\n"
+				+ "START_TAG:u|unbound|null\n" + "END_TAG:u|unbound|null\n"
+				+ "END_TAG:soap|Body|urn:soap\n"
+				+ "END_TAG:soap|Envelope|urn:soap\n";
+
+		HPXMLParser parser = new HPXMLParser(64);
+		parser.setNamespaceAware(true);
+
+		// IDs of the URIs, the two predefined ones come first.
+		String[] uris = { HPXMLParser.XML_NAMESPACE, xmlns, "urn:soap",
+				"urn:default", "urn:a", "urn:inner", "urn:shadow", "urn:skip" };
+
+		for (int i = 0; i < uris.length; i++)
+			assertEquals(i, parser.registerNamespace(uris[i]));
+
+		parser.setInput(new ByteArrayInputStream(data));
+		assertEquals(expected, toNamespaceString(parser, uris, data, 0));
+
+		// Byte by byte in push mode, with the same parser reused.
+		parser.setReuseByteSources(true);
+		parser.setFeedInput();
+		assertEquals(expected, toNamespaceString(parser, uris, data, 1));
+
+		// Prefixes still split without namespace awareness.
+		parser = new HPXMLParser();
+		parser.setInput(new ByteArrayInputStream(data));
+
+		while (parser.nextState() != State.START_TAG)
+			;
+
+		assertEquals("soap", parser.getPrefix().decodeToString());
+		assertEquals("Envelope", parser.getLocalName().decodeToString());
+
+		try {
+			parser.getNamespaceId();
+			throw new AssertionError("getNamespaceId() without namespaces");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testParserOffsets() throws Exception {
+		byte[] data = ("\uFEFF<?xml version=\"1.0\"?>\n<root>\n"
+				+ "  <a id=\"1\">one</a>\n  <!-- two\nlines -->\n"
+				+ "  <b/>\n  <c><![CDATA[x\ny]]></c>\n</root>\n")
+				.getBytes("UTF-8");
+
+		HPXMLParser parser = new HPXMLParser(64);
+		parser.setLineTracking(true);
+		parser.setInput(new ByteArrayInputStream(data));
+		String expected = toOffsetString(parser, data, 0);
+
+		// Positions don't depend on how the bytes arrived.
+		parser.setFeedInput();
+		assertEquals(expected, toOffsetString(parser, data, 7));
+
+		parser.setInput(new ByteArrayInputStream(data));
+
+		while (parser.nextState() != State.START_TAG)
+			;
+
+		assertEquals("root", parser.getTagName().decodeToString());
+		assertEquals(25, parser.getStartOffset());
+		assertEquals(31, parser.getEndOffset());
+		assertEquals(2, parser.getLineNumber());
+		assertEquals(1, parser.getColumnNumber());
+
+		while (parser.nextState() != State.START_TAG
+				|| !parser.getTagName().decodeToString().equals("b"))
+			;
+
+		assertEquals(6, parser.getLineNumber());
+		assertEquals(3, parser.getColumnNumber());
+		assertEquals(State.END_TAG, parser.nextState());
+		assertEquals(6, parser.getLineNumber());
+
+		// Offsets are 64-bit and can start part way into a document.
+		long base = 3L * Integer.MAX_VALUE;
+		parser.setInput(
+				new InputStreamSource(new ByteArrayInputStream(data, 25,
+						data.length - 25)), base);
+		assertEquals(State.START_TAG, parser.nextState());
+		assertEquals(base, parser.getStartOffset());
+		assertEquals(base + 6, parser.getEndOffset());
+		assertEquals(1, parser.getLineNumber());
+
+		parser.setInput(new ByteArrayInputStream("<a>\n  <b\n".getBytes("UTF-8")));
+		parser.nextState();
+		parser.nextState();
+
+		try {
+			parser.nextState();
+			throw new AssertionError("unclosed tag parsed");
+		} catch (XMLParseException e) {
+			assertEquals(true, e.getMessage().contains(
+					"position 6 (line 2, column 3)"));
+		}
+
+		// Nothing to report outside of an event or without line tracking.
+		parser.setLineTracking(false);
+		parser.setInput(new ByteArrayInputStream(data));
+
+		try {
+			parser.getStartOffset();
+			throw new AssertionError("getStartOffset() before any event");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		parser.nextState();
+
+		try {
+			parser.getLineNumber();
+			throw new AssertionError("getLineNumber() without line tracking");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testParserTape() throws Exception {
+		String[] resources = { "basic.xml", "basic2.xml", "basic_cdata.xml",
+				"cdsect.xml", "cdsect_eol.xml", "cdsect_mixed.xml",
+				"cdsect_more.xml", "simple.xml", "simple2.xml", "typical.xml" };
+		HPXMLParser parser = new HPXMLParser(64);
+
+		for (String resource : resources) {
+			byte[] data = Files.readAllBytes(getResourcePath("resources/"
+					+ resource));
+			parser.setInput(new ByteArrayInputStream(data));
+			String expected = toEventString(parser);
+
+			StructuralTape tape = new StructuralTape(data);
+			parser.setInput(tape);
+			assertEquals(resource, expected, toEventString(parser));
+
+			// The tape can be walked again.
+			parser.setInput(tape);
+			assertEquals(resource, expected, toEventString(parser));
+		}
+
+		// Markup inside comments and CDATA, stray '>'s and trailing text.
+		byte[] data = ("\uFEFF<?xml version=\"1.0\"?>\n<root a=\"1\">x > y"
+				+ "<!-- <not> a </tag> --><![CDATA[<b>]]>]]]><?pi <c> ?>"
+				+ "<skip><!-- </skip> --><in><deeper/></in></skip>"
+				+ "<e/><f></f>\n</root>\ntrailing").getBytes("UTF-8");
+		StructuralTape tape = new StructuralTape(data);
+
+		parser.setLineTracking(true);
+		parser.setInput(new ByteArrayInputStream(data));
+		String expected = toTapeCheckString(parser);
+
+		parser.setInput(tape);
+		assertEquals(expected, toTapeCheckString(parser));
+		assertEquals(CodingUtil.UTF8_CHARSET, parser.getEncoding());
+
+		// The parser reads into its own buffer again afterwards.
+		parser.setInput(new ByteArrayInputStream(data));
+		assertEquals(expected, toTapeCheckString(parser));
+
+		parser.setInput(new StructuralTape("<a><b></a".getBytes("UTF-8")));
+		parser.nextState();
+		parser.nextState();
+
+		try {
+			parser.nextState();
+			throw new AssertionError("unclosed tag parsed");
+		} catch (XMLParseException e) {
+			assertEquals(true, e.getMessage().contains("position 6"));
+		}
+
+		try {
+			parser.setInput(new StructuralTape(new byte[] { (byte) 0xFE,
+					(byte) 0xFF, 0, '<' }));
+			throw new AssertionError("UTF-16 document on a tape");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Used to render every event along with its offsets and line, skipping
+	 * the <code>skip</code> element.
+	 */
+	protected static String toTapeCheckString(HPXMLParser parser)
+			throws IOException {
+		StringBuilder builder = new StringBuilder();
+		State evt = null;
+
+		while ((evt = parser.nextState()) != State.END_DOCUMENT) {
+			if (evt == State.START_TAG
+					&& parser.getTagName().decodeToString().equals("skip"))
+				evt = parser.skipElement();
+
+			appendEvent(parser, evt, builder);
+			builder.append(parser.getStartOffset()).append('-')
+					.append(parser.getEndOffset()).append(' ')
+					.append(parser.getLineNumber()).append(':')
+					.append(parser.getColumnNumber()).append('\n');
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Used to render every event as "state start-end line:column", checking
+	 * that the offsets mark the bytes of the event in <code>data</code> and
+	 * the line and column match a count of the newlines before it. If
+	 * <code>chunk</code> is &gt; 0 the parser is in push mode and
+	 * <code>data</code> is fed in chunks of that size.
+	 */
+	protected static String toOffsetString(HPXMLParser parser, byte[] data,
+			int chunk) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		int[] index = { 0 };
+		State evt = null;
+
+		while ((evt = feedUntilEvent(parser, parser.nextState(), data, index,
+				chunk)) != State.END_DOCUMENT) {
+			int start = (int) parser.getStartOffset();
+			int end = (int) parser.getEndOffset();
+
+			if (evt == State.TEXT && data[start] != '<')
+				assertEquals(parser.getText().decodeToString(), new String(
+						data, start, end - start, "UTF-8"));
+			else {
+				assertEquals('<', data[start]);
+				assertEquals('>', data[end - 1]);
+			}
+
+			int line = 1;
+			int lineStart = 0;
+
+			for (int i = 0; i < start; i++) {
+				if (data[i] == '\n') {
+					line++;
+					lineStart = i + 1;
+				}
+			}
+
+			// The byte order mark doesn't take up a column.
+			if (lineStart == 0)
+				lineStart = 3;
+
+			assertEquals(line, parser.getLineNumber());
+			assertEquals(start - lineStart + 1, parser.getColumnNumber());
+			builder.append(evt).append(' ').append(start).append('-')
+					.append(end).append(' ').append(line).append(':')
+					.append(start - lineStart + 1).append('\n');
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Used to render the tag events of a namespace aware parser as
+	 * "prefix|localName|namespace", followed by the namespaces of any
+	 * attributes; <code>skipme</code> elements are skipped. If
+	 * <code>chunk</code> is &gt; 0 the parser is in push mode and
+	 * <code>data</code> is fed in chunks of that size.
+	 */
+	protected static String toNamespaceString(HPXMLParser parser,
+			String[] uris, byte[] data, int chunk) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		int[] index = { 0 };
+		State evt = null;
+
+		while ((evt = feedUntilEvent(parser, parser.nextState(), data,
+				index, chunk)) != State.END_DOCUMENT) {
+			if (evt == State.TEXT)
+				continue;
+
+			appendNamespaceEvent(parser, evt, uris, builder);
+
+			if (evt == State.START_TAG
+					&& parser.getLocalName().decodeToString().equals("skipme"))
+				appendNamespaceEvent(parser, feedUntilEvent(parser,
+						parser.skipElement(), data, index, chunk), uris,
+						builder);
+		}
+
+		return builder.toString();
+	}
+
+	protected static State feedUntilEvent(HPXMLParser parser, State evt,
+			byte[] data, int[] index, int chunk) throws IOException {
+		while (evt == State.NEED_MORE_INPUT) {
+			if (index[0] == data.length)
+				parser.endOfInput();
+			else {
+				int length = Math.min(chunk, data.length - index[0]);
+				parser.feed(data, index[0], length);
+				index[0] += length;
+			}
+
+			evt = parser.nextState();
+		}
+
+		return evt;
+	}
+
+	protected static void appendNamespaceEvent(HPXMLParser parser,
+			State evt, String[] uris, StringBuilder builder) {
+		IByteSource prefix = parser.getPrefix();
+		int id = parser.getNamespaceId();
+
+		builder.append(evt).append(':')
+				.append(prefix == null ? "" : prefix.decodeToString())
+				.append('|').append(parser.getLocalName().decodeToString())
+				.append('|').append(id == -1 ? null : uris[id]);
+
+		for (int i = 0; evt == State.START_TAG
+				&& i < parser.getAttributeCount(); i++) {
+			id = parser.getAttributeNamespaceId(i);
+			builder.append(' ')
+					.append(parser.getAttributeName(i).decodeToString())
+					.append('=').append(id == -1 ? null : uris[id]);
+		}
+
+		builder.append('\n');
+	}
+
+	protected Path getResourcePath(String name) throws Exception {
+		return Paths.get(this.getClass().getResource(name).toURI());
+	}
+
+	/**
+	 * Used to render every event the parser produces, along with its marked
+	 * value, into a single string so two parse runs can be compared.
+	 */
+	protected static String toEventString(HPXMLParser parser)
+			throws IOException {
+		State evt = null;
+		StringBuilder builder = new StringBuilder();
+
+		while ((evt = parser.nextState()) != State.END_DOCUMENT) {
+			appendEvent(parser, evt, builder);
+		}
+
+		return builder.toString();
+	}
+
+	protected static void appendEvent(HPXMLParser parser, State evt,
+			StringBuilder builder) {
+		builder.append(evt).append(':');
+
+		switch (evt) {
+		case START_TAG:
+		case END_TAG:
+			builder.append(parser.getTagName().decodeToString());
+			break;
+		case TEXT:
+			builder.append(parser.getText().decodeToString());
+			break;
+		}
+
+		builder.append('\n');
+	}
+}
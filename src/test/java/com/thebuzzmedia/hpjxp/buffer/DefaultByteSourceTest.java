@@ -0,0 +1,101 @@
+package com.thebuzzmedia.hpjxp.buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+import com.thebuzzmedia.hpjxp.util.CodingUtil;
+import com.thebuzzmedia.hpjxp.util.SymbolTable;
+
+public class DefaultByteSourceTest {
+	@Test
+	public void testContentEquals() {
+		IByteSource source = source("Record");
+
+		assertTrue(source.contentEquals(bytes("Record")));
+		assertFalse(source.contentEquals(bytes("Recor")));
+		assertFalse(source.contentEquals(bytes("Records")));
+		assertFalse(source.contentEquals(bytes("record")));
+		assertTrue(source("").contentEquals(new byte[0]));
+
+		assertTrue(source.contentEquals(source("Record")));
+		assertFalse(source.contentEquals(source("Recore")));
+	}
+
+	@Test
+	public void testEqualsIgnoreAsciiCase() {
+		IByteSource source = source("Content-Type");
+
+		assertTrue(source.equalsIgnoreAsciiCase(bytes("content-type")));
+		assertTrue(source.equalsIgnoreAsciiCase(bytes("CONTENT-TYPE")));
+		assertTrue(source.equalsIgnoreAsciiCase(bytes("Content-Type")));
+		assertFalse(source.equalsIgnoreAsciiCase(bytes("Content_Type")));
+		assertFalse(source.equalsIgnoreAsciiCase(bytes("Content-Typ")));
+
+		// Only ASCII letters fold: '@' and '`' sit right next to 'A' and 'a'.
+		assertFalse(source("@").equalsIgnoreAsciiCase(bytes("`")));
+		assertFalse(source("caf\u00E9").equalsIgnoreAsciiCase(bytes("CAF\u00C9")));
+		assertTrue(source("caf\u00E9").equalsIgnoreAsciiCase(bytes("CAF\u00E9")));
+	}
+
+	@Test
+	public void testStartsWith() {
+		IByteSource source = source("xmlns:ns");
+
+		assertTrue(source.startsWith(bytes("xmlns")));
+		assertTrue(source.startsWith(bytes("")));
+		assertTrue(source.startsWith(bytes("xmlns:ns")));
+		assertFalse(source.startsWith(bytes("xmlns:ns1")));
+		assertFalse(source.startsWith(bytes("XMLNS")));
+	}
+
+	@Test
+	public void testContentHashCode() {
+		byte[] bytes = bytes("Record");
+
+		assertEquals(SymbolTable.hash(bytes, 0, bytes.length),
+				source("Record").contentHashCode());
+
+		// Only the content counts, not where it is.
+		assertEquals(source("Record").contentHashCode(), new DefaultByteSource(
+				2, 6, bytes("..Record")).contentHashCode());
+	}
+
+	@Test
+	public void testWriteTo() throws Exception {
+		IByteSource source = source("caf\u00E9 <value>");
+		byte[] expected = bytes("caf\u00E9 <value>");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(expected.length, source.writeTo(out));
+		assertArrayEquals(expected, out.toByteArray());
+
+		out.reset();
+		assertEquals(expected.length, source.writeTo(Channels.newChannel(out)));
+		assertArrayEquals(expected, out.toByteArray());
+
+		ByteBuffer buffer = ByteBuffer.allocate(expected.length + 4);
+		buffer.put((byte) '!');
+		assertEquals(expected.length, source.writeTo(buffer));
+		assertEquals(expected.length + 1, buffer.position());
+		assertEquals(source.decodeToString(), new String(buffer.array(), 1,
+				expected.length, CodingUtil.UTF8_CHARSET));
+	}
+
+	protected static byte[] bytes(String value) {
+		return value.getBytes(CodingUtil.UTF8_CHARSET);
+	}
+
+	protected static IByteSource source(String value) {
+		// Surround the value so only the marked region may be compared.
+		byte[] bytes = bytes("<" + value + ">");
+		return new DefaultByteSource(1, bytes.length - 2, bytes);
+	}
+}
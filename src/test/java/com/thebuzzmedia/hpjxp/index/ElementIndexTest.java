@@ -0,0 +1,174 @@
+package com.thebuzzmedia.hpjxp.index;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.thebuzzmedia.hpjxp.HPXMLParser;
+import com.thebuzzmedia.hpjxp.HPXMLParser.State;
+import com.thebuzzmedia.hpjxp.util.CodingUtil;
+
+public class ElementIndexTest {
+	public static final int RECORDS = 1000;
+
+	private static Path file;
+	private static Path indexFile;
+
+	@BeforeClass
+	public static void createFile() throws IOException {
+		StringBuilder xml = new StringBuilder(
+				"<?xml version=\"1.0\"?>\n<root>\n");
+
+		// Keys go up by 2, every 10th record holds a nested <rec>.
+		for (int i = 0; i < RECORDS; i++) {
+			xml.append("\t<rec id=\"").append(i * 2).append("\">");
+
+			if (i % 10 == 0)
+				xml.append("<rec id=\"-1\">nested</rec>");
+			else if (i % 10 == 1)
+				xml.append("<!-- </rec> -->");
+
+			xml.append("<v>").append(i).append("</v></rec>\n");
+		}
+
+		xml.append("\t<other/>\n</root>\n");
+
+		file = Files.createTempFile("hpjxp-index", ".xml");
+		indexFile = Files.createTempFile("hpjxp-index", ".idx");
+		Files.write(file, xml.toString().getBytes(CodingUtil.UTF8_CHARSET));
+	}
+
+	@AfterClass
+	public static void deleteFile() throws IOException {
+		Files.deleteIfExists(file);
+		Files.deleteIfExists(indexFile);
+	}
+
+	@Test
+	public void testIndex() throws IOException {
+		ElementIndexer indexer = new ElementIndexer(new String[] { "rec" },
+				"id", 16);
+		assertEquals(RECORDS, indexer.index(file, indexFile));
+
+		byte[] data = Files.readAllBytes(file);
+		ElementIndex index = new ElementIndex(indexFile);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		HPXMLParser parser = new HPXMLParser(64);
+
+		try {
+			assertEquals(RECORDS, index.size());
+			assertEquals(CodingUtil.UTF8_CHARSET, index.getEncoding());
+			assertEquals(true, index.isKeysSorted());
+
+			// Backwards, so every lookup decodes a different block.
+			for (int i = RECORDS - 1; i >= 0; i--) {
+				String record = new String(data,
+						(int) index.getStartOffset(i),
+						(int) (index.getEndOffset(i) - index.getStartOffset(i)),
+						CodingUtil.UTF8_CHARSET);
+
+				assertEquals(true, record.startsWith("<rec id=\"" + (i * 2)
+						+ "\">"));
+				assertEquals(true, record.endsWith("<v>" + i + "</v></rec>"));
+				assertEquals(i * 2, index.getKey(i));
+			}
+
+			assertEquals(0, index.findKey(Long.MIN_VALUE));
+			assertEquals(0, index.findKey(0));
+			assertEquals(17, index.findKey(33));
+			assertEquals(17, index.findKey(34));
+			assertEquals(RECORDS - 1, index.findKey(RECORDS * 2 - 2));
+			assertEquals(RECORDS, index.findKey(RECORDS * 2));
+
+			// Straight to a single record.
+			index.setInput(parser, channel, 500);
+			assertEquals(State.START_TAG, parser.nextState());
+			assertEquals(index.getStartOffset(500), parser.getStartOffset());
+			assertEquals("1000", parser.getAttributeValue(0).decodeToString());
+			parser.skipElement();
+			assertEquals(index.getEndOffset(500), parser.getEndOffset());
+			assertEquals(State.END_DOCUMENT, parser.nextState());
+
+			// The records with keys in [100, 120).
+			StringBuilder values = new StringBuilder();
+			index.setInput(parser, channel, index.findKey(100),
+					index.findKey(120));
+
+			for (State state; (state = parser.nextState()) != State.END_DOCUMENT;) {
+				if (state == State.START_TAG
+						&& parser.getTagName().decodeToString().equals("v")
+						&& parser.nextState() == State.TEXT)
+					values.append(parser.getText().decodeToString())
+							.append(' ');
+			}
+
+			assertEquals("50 51 52 53 54 55 56 57 58 59 ", values.toString());
+
+			index.setInput(parser, channel, 7, 7);
+			assertEquals(State.END_DOCUMENT, parser.nextState());
+
+			try {
+				index.getStartOffset(RECORDS);
+				throw new AssertionError("ordinal past the last record");
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+		} finally {
+			index.close();
+			channel.close();
+		}
+	}
+
+	@Test
+	public void testIndexWithoutKeys() throws IOException {
+		Path latin1 = Files.createTempFile("hpjxp-index", ".xml");
+		Path latin1Index = Files.createTempFile("hpjxp-index", ".idx");
+		Charset charset = Charset.forName("ISO-8859-1");
+
+		try {
+			Files.write(latin1, ("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>"
+					+ "<root><a>caf\u00E9</a><b/><a id=\"3\">na\u00EFve</a></root>")
+					.getBytes(charset));
+
+			assertEquals(2, new ElementIndexer("a").index(latin1, latin1Index));
+
+			ElementIndex index = new ElementIndex(latin1Index);
+			FileChannel channel = FileChannel.open(latin1,
+					StandardOpenOption.READ);
+			HPXMLParser parser = new HPXMLParser();
+
+			try {
+				assertEquals(charset, index.getEncoding());
+				assertEquals(false, index.hasKeys());
+
+				// Past the declaration, the index knows the encoding.
+				index.setInput(parser, channel, 1);
+				assertEquals(State.START_TAG, parser.nextState());
+				assertEquals(State.TEXT, parser.nextState());
+				assertEquals("na\u00EFve", parser.getText().decodeToString());
+
+				try {
+					index.findKey(0);
+					throw new AssertionError("findKey(long) without keys");
+				} catch (IllegalStateException e) {
+					// expected
+				}
+			} finally {
+				index.close();
+				channel.close();
+			}
+		} finally {
+			Files.deleteIfExists(latin1);
+			Files.deleteIfExists(latin1Index);
+		}
+	}
+}
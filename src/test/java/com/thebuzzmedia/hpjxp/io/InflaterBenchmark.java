@@ -0,0 +1,105 @@
+package com.thebuzzmedia.hpjxp.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import com.thebuzzmedia.hpjxp.HPXMLParser;
+import com.thebuzzmedia.hpjxp.io.InflaterInputSource.Format;
+
+/**
+ * Times parsing a GZIP document through a {@link GZIPInputStream} against
+ * {@link InflaterInputSource}, fed from a stream and from a mapped file.
+ * <p/>
+ * This is a standalone harness, not part of the unit suite (it is not named
+ * <code>*Test</code>), because wall-clock comparisons are too noisy to assert
+ * on. Run it with the test classpath:
+ *
+ * <pre>
+ * java com.thebuzzmedia.hpjxp.io.InflaterBenchmark [records] [rounds]
+ * </pre>
+ *
+ * Every round runs all three paths in a rotating order so none of them always
+ * runs first, after as many warm-up rounds. The minimum and median times per
+ * path are printed; the event counts of every path must match.
+ */
+public class InflaterBenchmark {
+	public static final int RECORDS = 200000;
+	public static final int ROUNDS = 10;
+
+	private static final String[] NAMES = { "GZIPInputStream",
+			"InflaterInputSource (stream)", "InflaterInputSource (mapped)" };
+
+	public static void main(String[] args) throws IOException {
+		int records = (args.length > 0 ? Integer.parseInt(args[0]) : RECORDS);
+		int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : ROUNDS);
+
+		byte[] data = InflaterInputSourceTest.gzip(InflaterInputSourceTest
+				.createDocument(records));
+		Path file = Files.createTempFile("hpjxp-bench", ".xml.gz");
+
+		try {
+			Files.write(file, data);
+			HPXMLParser parser = new HPXMLParser();
+			long[][] times = new long[NAMES.length][rounds];
+			int events = -1;
+
+			// Warm-up rounds (negative) are run but not recorded.
+			for (int round = -rounds; round < rounds; round++) {
+				for (int i = 0; i < NAMES.length; i++) {
+					int path = Math.floorMod(round + i, NAMES.length);
+
+					long start = System.nanoTime();
+					int count = parse(parser, path, data, file);
+					long time = System.nanoTime() - start;
+
+					if (events == -1)
+						events = count;
+					else if (count != events)
+						throw new IllegalStateException(NAMES[path]
+								+ " parsed " + count + " events, expected "
+								+ events);
+
+					if (round >= 0)
+						times[path][round] = time;
+				}
+			}
+
+			parser.close();
+			System.out.println("Parsed " + events + " events ("
+					+ data.length + " compressed bytes), " + rounds
+					+ " rounds:");
+
+			for (int path = 0; path < NAMES.length; path++) {
+				Arrays.sort(times[path]);
+				System.out.println("  " + NAMES[path] + ": min "
+						+ (times[path][0] / 1000000) + "ms, median "
+						+ (times[path][rounds / 2] / 1000000) + "ms");
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	protected static int parse(HPXMLParser parser, int path, byte[] data,
+			Path file) throws IOException {
+		switch (path) {
+		case 0:
+			parser.setInput(new GZIPInputStream(new ByteArrayInputStream(data)));
+			break;
+
+		case 1:
+			parser.setInput(new ByteArrayInputStream(data), Format.GZIP);
+			break;
+
+		default:
+			parser.setInput(file, Format.GZIP);
+			break;
+		}
+
+		return InflaterInputSourceTest.countEvents(parser);
+	}
+}
@@ -0,0 +1,167 @@
+package com.thebuzzmedia.hpjxp.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.junit.Test;
+
+import com.thebuzzmedia.hpjxp.HPXMLParser;
+import com.thebuzzmedia.hpjxp.HPXMLParser.State;
+import com.thebuzzmedia.hpjxp.io.InflaterInputSource.Format;
+
+/**
+ * Checks {@link InflaterInputSource} against the JDK's own streams, reading
+ * the compressed bytes from both streams and mapped files.
+ */
+public class InflaterInputSourceTest {
+	@Test
+	public void testFormats() throws Exception {
+		byte[] data = createDocument(1000);
+
+		assertArrayEquals(data, inflate(gzip(data), Format.GZIP));
+		assertArrayEquals(data, inflate(deflate(data, false), Format.ZLIB));
+		assertArrayEquals(data, inflate(deflate(data, true), Format.DEFLATE));
+	}
+
+	@Test
+	public void testMultiMemberGzip() throws Exception {
+		byte[] first = createDocument(10);
+		byte[] second = createDocument(20);
+
+		ByteArrayOutputStream members = new ByteArrayOutputStream();
+		members.write(gzip(first));
+		members.write(gzip(second));
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(first);
+		expected.write(second);
+
+		assertArrayEquals(expected.toByteArray(),
+				inflate(members.toByteArray(), Format.GZIP));
+	}
+
+	@Test(expected = ZipException.class)
+	public void testCorruptTrailer() throws Exception {
+		byte[] data = gzip(createDocument(10));
+		data[data.length - 5] ^= 1;
+
+		inflate(data, Format.GZIP);
+	}
+
+	@Test
+	public void testMappedFile() throws Exception {
+		byte[] first = createDocument(1000);
+		byte[] second = createDocument(20);
+
+		ByteArrayOutputStream members = new ByteArrayOutputStream();
+		members.write(gzip(first));
+		members.write(gzip(second));
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(first);
+		expected.write(second);
+
+		Path file = Files.createTempFile("hpjxp-inflate", ".xml.gz");
+
+		try {
+			Files.write(file, members.toByteArray());
+			FileChannel channel = FileChannel.open(file,
+					StandardOpenOption.READ);
+
+			// Small windows put headers, data and trailers across them.
+			try {
+				for (int windowSize : new int[] { 1, 7, 4096 }) {
+					assertArrayEquals(expected.toByteArray(), inflate(
+							new MappedFileSource(channel, 0, channel.size(),
+									false, windowSize), Format.GZIP));
+				}
+			} finally {
+				channel.close();
+			}
+
+			HPXMLParser parser = new HPXMLParser();
+			parser.setInput(new GZIPInputStream(new ByteArrayInputStream(
+					members.toByteArray())));
+			int events = countEvents(parser);
+
+			parser.setInput(file, Format.GZIP);
+			assertEquals(events, countEvents(parser));
+			parser.close();
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	protected static int countEvents(HPXMLParser parser) throws IOException {
+		int count = 0;
+
+		while (parser.nextState() != State.END_DOCUMENT)
+			count++;
+
+		return count;
+	}
+
+	protected static byte[] inflate(byte[] data, Format format)
+			throws IOException {
+		return inflate(new InputStreamSource(new ByteArrayInputStream(data)),
+				format);
+	}
+
+	protected static byte[] inflate(IInputSource input, Format format)
+			throws IOException {
+		InflaterInputSource source = new InflaterInputSource(input, format);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		// Small, odd reads to cross every header/member boundary.
+		byte[] buffer = new byte[97];
+		int count;
+
+		while ((count = source.read(buffer, 0, buffer.length)) != -1)
+			out.write(buffer, 0, count);
+
+		source.close();
+		return out.toByteArray();
+	}
+
+	protected static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(data);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	protected static byte[] deflate(byte[] data, boolean raw)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DeflaterOutputStream deflate = new DeflaterOutputStream(out,
+				new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+		deflate.write(data);
+		deflate.close();
+		return out.toByteArray();
+	}
+
+	protected static byte[] createDocument(int records) throws IOException {
+		StringBuilder xml = new StringBuilder("<records>\n");
+
+		for (int i = 0; i < records; i++)
+			xml.append("  <record id=\"").append(i).append("\"><name>Record ")
+					.append(i).append("</name><value>").append(i * 31)
+					.append("</value></record>\n");
+
+		return xml.append("</records>\n").toString().getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,90 @@
+package com.thebuzzmedia.hpjxp.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ReadAheadInputSourceTest {
+	@Test(timeout = 10000)
+	public void testFullReads() throws IOException {
+		byte[] data = new byte[100];
+
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+
+		// At most 5 bytes per read from the wrapped source.
+		ReadAheadInputSource source = new ReadAheadInputSource(
+				new InputStreamSource(new ByteArrayInputStream(data) {
+					@Override
+					public synchronized int read(byte[] b, int off, int len) {
+						return super.read(b, off, Math.min(len, 5));
+					}
+				}), 16);
+
+		try {
+			byte[] buffer = new byte[data.length];
+
+			// Every read is filled completely until the end of the input.
+			assertEquals(40, source.read(buffer, 0, 40));
+			assertEquals(40, source.read(buffer, 40, 40));
+			assertEquals(20, source.read(buffer, 80, 40));
+			assertEquals(-1, source.read(buffer, 0, 40));
+			assertArrayEquals(data, buffer);
+		} finally {
+			source.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testReadError() throws IOException {
+		final IOException error = new IOException("disk on fire");
+
+		// Hands out 3 bytes, then fails.
+		ReadAheadInputSource source = new ReadAheadInputSource(
+				new IInputSource() {
+					private boolean isFirst = true;
+
+					public int read(byte[] buffer, int index, int length)
+							throws IOException {
+						if (!isFirst)
+							throw error;
+
+						isFirst = false;
+						buffer[index] = 'a';
+						buffer[index + 1] = 'b';
+						buffer[index + 2] = 'c';
+						return 3;
+					}
+
+					public void close() {
+						// no-op
+					}
+				}, 16);
+
+		try {
+			byte[] buffer = new byte[16];
+
+			// The bytes read before the error still come through.
+			assertEquals(3, source.read(buffer, 0, buffer.length));
+			assertArrayEquals(new byte[] { 'a', 'b', 'c' },
+					Arrays.copyOf(buffer, 3));
+
+			// Every read from then on fails, none of them waits forever.
+			for (int i = 0; i < 2; i++) {
+				try {
+					source.read(buffer, 0, buffer.length);
+					throw new AssertionError("read after a read-ahead error");
+				} catch (IOException e) {
+					assertEquals(error, e.getCause());
+				}
+			}
+		} finally {
+			source.close();
+		}
+	}
+}
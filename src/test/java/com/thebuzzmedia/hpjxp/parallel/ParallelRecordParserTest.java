@@ -0,0 +1,135 @@
+package com.thebuzzmedia.hpjxp.parallel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.thebuzzmedia.hpjxp.HPXMLParser;
+import com.thebuzzmedia.hpjxp.HPXMLParser.State;
+import com.thebuzzmedia.hpjxp.XMLParseException;
+import com.thebuzzmedia.hpjxp.util.CodingUtil;
+
+public class ParallelRecordParserTest {
+	public static final int RECORDS = 20000;
+
+	private static Path file;
+
+	// Returns the id of each record, leaving the parser on its END_TAG.
+	private static final IRecordHandler<Integer> ID_HANDLER = new IRecordHandler<Integer>() {
+		public Integer handleRecord(HPXMLParser parser) throws IOException {
+			int id = Integer.parseInt(parser.getAttributeValue(
+					"id".getBytes()).decodeToString());
+
+			// Consume the record, the <rec-note> must not be a record.
+			for (int depth = 1; depth > 0;) {
+				State state = parser.nextState();
+
+				if (state == State.START_TAG)
+					depth++;
+				else if (state == State.END_TAG)
+					depth--;
+			}
+
+			return id;
+		}
+	};
+
+	@BeforeClass
+	public static void createFile() throws IOException {
+		StringBuilder xml = new StringBuilder(
+				"<?xml version=\"1.0\"?>\n<root>\n");
+
+		for (int i = 0; i < RECORDS; i++)
+			xml.append("\t<rec id=\"").append(i).append("\"><rec-note>")
+					.append(i % 7 == 0 ? "<![CDATA[x]]>" : "note")
+					.append("</rec-note></rec>\n");
+
+		xml.append("</root>\n");
+
+		file = Files.createTempFile("hpjxp-parallel", ".xml");
+		Files.write(file, xml.toString().getBytes(CodingUtil.UTF8_CHARSET));
+	}
+
+	@AfterClass
+	public static void deleteFile() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void testOrdered() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(4);
+
+		try {
+			// More splits than cores, and more than one split per record.
+			for (int splits : new int[] { 1, 7, 64 }) {
+				List<Integer> ids = new ParallelRecordParser("rec", pool,
+						splits).parse(file, ID_HANDLER);
+
+				assertEquals(RECORDS, ids.size());
+
+				for (int i = 0; i < RECORDS; i++)
+					assertEquals(i, ids.get(i).intValue());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testUnordered() throws IOException {
+		final ConcurrentHashMap<Integer, Boolean> ids = new ConcurrentHashMap<Integer, Boolean>();
+
+		new ParallelRecordParser("rec").parse(file, ID_HANDLER,
+				new IRecordListener<Integer>() {
+					public void recordHandled(Integer result) {
+						ids.put(result, Boolean.TRUE);
+					}
+				});
+
+		assertEquals(RECORDS, ids.size());
+	}
+
+	@Test
+	public void testHandlerErrors() throws IOException {
+		final IOException error = new IOException("handler failed");
+		ParallelRecordParser parser = new ParallelRecordParser("rec");
+
+		// Checked exceptions come back unwrapped.
+		try {
+			parser.parse(file, new IRecordHandler<Integer>() {
+				public Integer handleRecord(HPXMLParser parser)
+						throws IOException {
+					throw error;
+				}
+			});
+			throw new AssertionError("handler error not rethrown");
+		} catch (IOException e) {
+			assertSame(error, e);
+		}
+
+		// Parse errors are rethrown as they are.
+		try {
+			parser.parse(file, new IRecordHandler<Integer>() {
+				public Integer handleRecord(HPXMLParser parser) {
+					throw new XMLParseException("bad record");
+				}
+			});
+			throw new AssertionError("handler error not rethrown");
+		} catch (XMLParseException e) {
+			assertEquals("bad record", e.getMessage());
+		}
+
+		// The failed parses left the instance usable.
+		assertEquals(RECORDS, parser.parse(file, ID_HANDLER).size());
+	}
+}
@@ -0,0 +1,124 @@
+package com.thebuzzmedia.hpjxp.select;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.thebuzzmedia.hpjxp.HPXMLParser;
+import com.thebuzzmedia.hpjxp.HPXMLParser.State;
+
+public class PathSelectorTest {
+	public static final String FEED = "<feed><title>Feed</title>"
+			+ "<item><id>1</id><price>9.99</price>"
+			+ "<offer type=\"sale\"><price>5</price></offer></item>"
+			+ "<item><id>2</id><!-- <price>0</price> --><price>3.50</price>"
+			+ "<offer><price>1</price></offer>"
+			+ "<deep><offer type=\"bulk\"/></deep></item>" + "</feed>";
+
+	@Test
+	public void testChildPath() throws Exception {
+		assertEquals("0<price>9.99</price>0<price>3.50</price>",
+				select(FEED, "/feed/item/price"));
+	}
+
+	@Test
+	public void testDescendantAndPredicate() throws Exception {
+		assertEquals(
+				"0<offer>-1<price>5</price></offer>0<offer></offer>",
+				select(FEED, "//offer[@type]"));
+		assertEquals("0<offer></offer>",
+				select(FEED, "//offer[@type='bulk']"));
+	}
+
+	@Test
+	public void testWildcardAndMultiplePaths() throws Exception {
+		assertEquals("1<id>1</id>0<price>5</price>1<id>2</id>0<price>1</price>",
+				select(FEED, "/feed/item/*/price", "/feed/*/id"));
+	}
+
+	@Test
+	public void testManyPaths() throws Exception {
+		String[] paths = new String[100];
+
+		for (int i = 0; i < paths.length - 1; i++)
+			paths[i] = "/feed/other" + i;
+
+		paths[paths.length - 1] = "/feed/*/id";
+
+		assertEquals("99<id>1</id>99<id>2</id>", select(FEED, paths));
+	}
+
+	@Test
+	public void testFeedInput() throws Exception {
+		assertEquals(select(FEED, "//offer[@type]", "/feed/item/price"),
+				select(FEED, 3, "//offer[@type]", "/feed/item/price"));
+		assertEquals(select(FEED, "/feed/*/id"), select(FEED, 1, "/feed/*/id"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformedPath() {
+		new PathSelector(new HPXMLParser(), "/feed/[@x]");
+	}
+
+	/**
+	 * Used to render the events reported by a selector; each START_TAG is
+	 * prefixed by the index of the path it matched.
+	 */
+	protected static String select(String xml, String... paths)
+			throws IOException {
+		return select(xml, 0, paths);
+	}
+
+	/**
+	 * Same as {@link #select(String, String...)}, but when
+	 * <code>chunk</code> is &gt; 0 the parser is put in push mode and fed the
+	 * document <code>chunk</code> bytes at a time.
+	 */
+	protected static String select(String xml, int chunk, String... paths)
+			throws IOException {
+		HPXMLParser parser = new HPXMLParser();
+		PathSelector selector = new PathSelector(parser, paths);
+		byte[] data = xml.getBytes("UTF-8");
+		int index = 0;
+
+		if (chunk > 0)
+			parser.setFeedInput();
+		else
+			parser.setInput(new ByteArrayInputStream(data));
+
+		State evt = null;
+		StringBuilder builder = new StringBuilder();
+
+		while ((evt = selector.nextState()) != State.END_DOCUMENT) {
+			switch (evt) {
+			case NEED_MORE_INPUT:
+				if (index == data.length)
+					parser.endOfInput();
+				else {
+					int length = Math.min(chunk, data.length - index);
+					parser.feed(data, index, length);
+					index += length;
+				}
+				break;
+			case START_TAG:
+				builder.append(selector.getMatch()).append('<')
+						.append(parser.getTagName().decodeToString())
+						.append('>');
+				break;
+			case END_TAG:
+				builder.append("</")
+						.append(parser.getTagName().decodeToString())
+						.append('>');
+				break;
+			case TEXT:
+				builder.append(parser.getText().decodeToString());
+				break;
+			}
+		}
+
+		return builder.toString();
+	}
+}
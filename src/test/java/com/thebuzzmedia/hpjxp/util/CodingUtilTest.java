@@ -0,0 +1,74 @@
+package com.thebuzzmedia.hpjxp.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.thebuzzmedia.hpjxp.buffer.DefaultByteSource;
+
+public class CodingUtilTest {
+	@Test
+	public void testDecodeTextReferences() {
+		assertEquals("a < b && c > d", decodeText("a &lt; b &amp;&amp; c &gt; d"));
+		assertEquals("\"it's\"", decodeText("&quot;it&apos;s&quot;"));
+		assertEquals("\u20AC \u20AC \uD83D\uDE00",
+				decodeText("&#8364; &#x20AC; &#x1F600;"));
+		assertEquals("caf\u00E9 &amp", decodeText("caf\u00E9 &amp"));
+
+		// Unknown and malformed references are left alone.
+		assertEquals("&nbsp; &#; &#x; &#xZZ; &#0; &#xD800; &#x110000; &;",
+				decodeText("&nbsp; &#; &#x; &#xZZ; &#0; &#xD800; &#x110000; &;"));
+	}
+
+	@Test
+	public void testDecodeTextMatchesStringDecode() throws Exception {
+		Random random = new Random(42);
+		String[] pieces = { "a", " ", "<", "\u00E9", "\u20AC", "\uD83D\uDE00",
+				"\n", "&amp;" };
+
+		for (int i = 0; i < 10000; i++) {
+			StringBuilder text = new StringBuilder();
+
+			for (int j = random.nextInt(40); j > 0; j--)
+				text.append(pieces[random.nextInt(pieces.length)]);
+
+			String expected = text.toString().replace("&amp;", "&");
+			byte[] bytes = text.toString().getBytes(CodingUtil.UTF8_CHARSET);
+			char[] chars = new char[bytes.length];
+
+			assertEquals(expected, decodeText(text.toString()));
+			assertEquals(expected, new String(chars, 0, CodingUtil.decodeText(
+					0, bytes.length, bytes, chars, 0)));
+		}
+
+		// Malformed UTF-8 is replaced byte by byte.
+		byte[] bytes = { 'a', (byte) 0xC3, 'b', (byte) 0xE2, (byte) 0x82 };
+		assertEquals("a\uFFFDb\uFFFD\uFFFD",
+				CodingUtil.decodeText(0, bytes.length, bytes));
+	}
+
+	@Test(timeout = 10000)
+	public void testDecodeMalformed() {
+		// Latin-1 "caf\u00E9" is malformed UTF-8, it must not stall the decode.
+		byte[] bytes = { 'c', 'a', 'f', (byte) 0xE9 };
+		assertEquals("caf\uFFFD", new String(CodingUtil.decode(bytes)));
+	}
+
+	@Test
+	public void testDecodeTextTo() throws Exception {
+		byte[] bytes = "x&lt;&#x1F600;y".getBytes("UTF-8");
+		DefaultByteSource source = new DefaultByteSource(1, bytes.length - 2,
+				bytes);
+		char[] chars = new char[source.getLength() + 2];
+
+		assertEquals(3, source.decodeTextTo(chars, 2));
+		assertEquals("<\uD83D\uDE00", new String(chars, 2, 3));
+	}
+
+	protected static String decodeText(String text) {
+		byte[] bytes = text.getBytes(CodingUtil.UTF8_CHARSET);
+		return new DefaultByteSource(bytes).decodeTextToString();
+	}
+}
@@ -0,0 +1,168 @@
+package com.thebuzzmedia.hpjxp.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.thebuzzmedia.hpjxp.buffer.DefaultByteSource;
+import com.thebuzzmedia.hpjxp.buffer.IByteSource;
+
+public class ParseUtilTest {
+	@Test
+	public void testParseInt() {
+		assertEquals(0, source("0").parseInt());
+		assertEquals(42, source(" \t42\r\n").parseInt());
+		assertEquals(-17, source("-17").parseInt());
+		assertEquals(5, source("+005").parseInt());
+		assertEquals(Integer.MAX_VALUE, source("2147483647").parseInt());
+		assertEquals(Integer.MIN_VALUE, source("-2147483648").parseInt());
+		assertEquals(Long.MAX_VALUE, source("9223372036854775807").parseLong());
+		assertEquals(Long.MIN_VALUE, source("-9223372036854775808").parseLong());
+
+		String[] invalid = { "", "  ", "-", "+", "1 2", "12a", "1.0",
+				"2147483648", "-2147483649", "99999999999999999999" };
+
+		for (String value : invalid) {
+			try {
+				source(value).parseInt();
+				fail("Expected NumberFormatException for \"" + value + "\"");
+			} catch (NumberFormatException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testParseDoubleMatchesJDK() {
+		String[] values = { "0", "-0", "0.0", "1", "-1.5", "3.14159", ".5",
+				"5.", "1e10", "1E-10", "-2.5e+3", "123456789012345",
+				"1234567890123456789", "0.1", "0.30000000000000004",
+				"4.9e-324", "1.7976931348623157E308", "1e400", "1e-400",
+				"0000000000000000000000123.25", "0.000000000000000000000001",
+				"179769313486231570000000000000000000000000000000000000" };
+
+		for (String value : values)
+			assertEquals(value, Double.parseDouble(value),
+					source(" " + value + " ").parseDouble(), 0);
+
+		Random random = new Random(42);
+
+		for (int i = 0; i < 100000; i++) {
+			double expected = (random.nextBoolean() ? random.nextDouble()
+					* Math.pow(10, random.nextInt(40) - 20) : random
+					.nextInt(10000000) / 100.0);
+			String value = Double.toString(expected);
+
+			assertEquals(value, expected, source(value).parseDouble(), 0);
+		}
+
+		assertEquals(Double.POSITIVE_INFINITY, source("INF").parseDouble(), 0);
+		assertEquals(Double.NEGATIVE_INFINITY, source("-INF").parseDouble(), 0);
+		assertEquals(Double.NaN, source("NaN").parseDouble(), 0);
+
+		String[] invalid = { "", "-", ".", "e5", "1e", "1e+", "1.2.3", "1x",
+				"-NaN", "Infinity", "1 0" };
+
+		for (String value : invalid) {
+			try {
+				source(value).parseDouble();
+				fail("Expected NumberFormatException for \"" + value + "\"");
+			} catch (NumberFormatException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testParseBigDecimal() {
+		String[] values = { "0", "-0.00", "12.50", "+7", ".25", "-3.",
+				"123456789012345678", "12345678901234567890.123456789",
+				"1.5E+3", "-2e-2" };
+
+		for (String value : values)
+			assertEquals(value, new BigDecimal(value),
+					source("\n" + value + " ").parseBigDecimal());
+
+		try {
+			source("1.2.3").parseBigDecimal();
+			fail("Expected NumberFormatException");
+		} catch (NumberFormatException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testParseBoolean() {
+		assertEquals(true, source("true").parseBoolean());
+		assertEquals(true, source(" 1 ").parseBoolean());
+		assertEquals(false, source("false\n").parseBoolean());
+		assertEquals(false, source("0").parseBoolean());
+
+		String[] invalid = { "", "TRUE", "yes", "10", "fals" };
+
+		for (String value : invalid) {
+			try {
+				source(value).parseBoolean();
+				fail("Expected IllegalArgumentException for \"" + value + "\"");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testParseTimestamp() {
+		String[] values = { "1970-01-01T00:00:00Z", "2024-02-29T23:59:59.999Z",
+				"1999-12-31T19:00:00-05:00", "2010-06-15T08:30:00.5+02:00",
+				"1900-03-01T00:00:00.123456Z", "0001-01-01T00:00:00Z",
+				"2038-01-19T03:14:07+0530", "1969-12-31T23:59:59.001Z" };
+
+		for (String value : values)
+			assertEquals(value, OffsetDateTime.parse(
+					value.replace("+0530", "+05:30")).toInstant().toEpochMilli(),
+					source(value).parseTimestamp());
+
+		assertEquals(86400000L, source("1970-01-02").parseTimestamp());
+		assertEquals(86400000L, source("1970-01-01T24:00:00").parseTimestamp());
+		assertEquals(3600000L, source(" 1970-01-01 01:00 ").parseTimestamp());
+		assertEquals(-3600000L, source("1970-01-01T00:00+01").parseTimestamp());
+
+		Random random = new Random(42);
+
+		for (int i = 0; i < 10000; i++) {
+			OffsetDateTime time = OffsetDateTime.parse("1600-01-01T00:00:00Z")
+					.plusSeconds((long) (random.nextDouble() * 20000000000L))
+					.plusNanos(random.nextInt(1000) * 1000000L);
+			String value = time.toString();
+
+			assertEquals(value, time.toInstant().toEpochMilli(),
+					source(value).parseTimestamp());
+		}
+
+		String[] invalid = { "", "1970", "1970-13-01", "1970-02-30",
+				"2023-02-29", "1970-01-01T25:00:00Z", "1970-01-01T24:00:01Z",
+				"1970-01-01T00:60", "1970-01-01T00:00:00.Z",
+				"1970-01-01T00:00:00X", "1970-01-01T00:00:00+1",
+				"1970/01/01" };
+
+		for (String value : invalid) {
+			try {
+				source(value).parseTimestamp();
+				fail("Expected IllegalArgumentException for \"" + value + "\"");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	protected static IByteSource source(String value) {
+		// Surround the value so parsing has to respect the marked region.
+		byte[] bytes = ("9" + value + "9").getBytes(CodingUtil.UTF8_CHARSET);
+		return new DefaultByteSource(1, bytes.length - 2, bytes);
+	}
+}
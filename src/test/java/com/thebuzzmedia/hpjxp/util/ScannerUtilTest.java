@@ -0,0 +1,145 @@
+package com.thebuzzmedia.hpjxp.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.thebuzzmedia.hpjxp.Constants;
+
+/**
+ * Cross-checks the word-at-a-time (or, when the vector module is present,
+ * vector) search paths in {@link ScannerUtil} against the scalar loops over
+ * randomized data, offsets and lengths.
+ */
+public class ScannerUtilTest {
+	public static final int ROUNDS = 20000;
+
+	// Small alphabet, so every value of interest shows up often.
+	public static final byte[] ALPHABET = { 'a', ' ', '<', '>', '/', '-', ']',
+			'?', '\t', '\n', '\r', (byte) 0xC3, (byte) 0x80 };
+
+	public static final byte[][] VALUES = { Constants.A_LT, Constants.A_GT,
+			Constants.PI_SFX, Constants.CMT_SFX, Constants.CDATA_SFX };
+
+	private Random random = new Random(42);
+
+	@Test
+	public void testIndexOf() {
+		for (int i = 0; i < ROUNDS; i++) {
+			byte[] data = randomData();
+			int index = random.nextInt(data.length + 1);
+			int length = random.nextInt(data.length - index + 1);
+			byte value = ALPHABET[random.nextInt(ALPHABET.length)];
+
+			assertEquals(ScannerUtil.indexOfScalar(value, index, length, data),
+					ScannerUtil.indexOf(value, index, length, data));
+		}
+	}
+
+	@Test
+	public void testIndexOfValues() {
+		for (int i = 0; i < ROUNDS; i++) {
+			byte[] data = randomData();
+			int index = random.nextInt(data.length + 1);
+			int length = random.nextInt(data.length - index + 1);
+			byte[] values = VALUES[random.nextInt(VALUES.length)];
+
+			assertEquals(naiveIndexOf(values, index, length, data),
+					ScannerUtil.indexOf(values, index, length, data));
+		}
+	}
+
+	@Test
+	public void testIndexOfAny() {
+		for (int i = 0; i < ROUNDS; i++) {
+			byte[] data = randomData();
+			int index = random.nextInt(data.length + 1);
+			int length = random.nextInt(data.length - index + 1);
+
+			assertEquals(ScannerUtil.indexOfAnyScalar(Constants.TAG_NAME_DELIM,
+					index, length, data), ScannerUtil.indexOfAny(
+					Constants.TAG_NAME_DELIM, index, length, data));
+		}
+	}
+
+	@Test
+	public void testVectorBackend() {
+		assumeTrue(ScannerUtil.VECTOR != null);
+
+		for (int i = 0; i < ROUNDS; i++) {
+			// Longer than a few vectors, so full steps and tails both occur.
+			byte[] data = randomData(400);
+			int index = random.nextInt(data.length + 1);
+			int length = random.nextInt(data.length - index + 1);
+			byte value = ALPHABET[random.nextInt(ALPHABET.length)];
+
+			assertEquals(ScannerUtil.indexOfScalar(value, index, length, data),
+					ScannerUtil.VECTOR.indexOf(value, index, length, data));
+			assertEquals(ScannerUtil.indexOfAnyScalar(Constants.TAG_NAME_DELIM,
+					index, length, data), ScannerUtil.VECTOR.indexOfAny(
+					Constants.TAG_NAME_DELIM, index, length, data));
+		}
+	}
+
+	@Test
+	public void testIsAscii() {
+		for (int i = 0; i < ROUNDS; i++) {
+			byte[] data = randomData();
+			int index = random.nextInt(data.length + 1);
+			int length = random.nextInt(data.length - index + 1);
+
+			assertEquals(ScannerUtil.isAsciiScalar(index, length, data),
+					ScannerUtil.isAscii(index, length, data));
+		}
+	}
+
+	@Test
+	public void testExactZeroBytes() {
+		for (int i = 0; i < ROUNDS; i++) {
+			byte[] data = randomData();
+
+			for (int j = 0; j + 8 <= data.length; j++) {
+				long word = ScannerUtil.getWord(j, data)
+						^ ScannerUtil.broadcast(Constants.LT);
+				long expected = 0;
+
+				for (int k = 0; k < 8; k++) {
+					if (data[j + k] == Constants.LT)
+						expected |= 0x80L << (k * 8);
+				}
+
+				assertEquals(expected, ScannerUtil.exactZeroBytes(word));
+			}
+		}
+	}
+
+	protected byte[] randomData() {
+		return randomData(100);
+	}
+
+	protected byte[] randomData(int maxLength) {
+		byte[] data = new byte[random.nextInt(maxLength)];
+
+		// Make long runs without delimiters likely, like real TEXT.
+		int density = 1 + random.nextInt(30);
+
+		for (int i = 0; i < data.length; i++)
+			data[i] = (random.nextInt(density) == 0 ? ALPHABET[random
+					.nextInt(ALPHABET.length)] : (byte) 'x');
+
+		return data;
+	}
+
+	protected static int naiveIndexOf(byte[] values, int index, int length,
+			byte[] data) {
+		for (int i = index, end = index + length - values.length; i <= end; i++) {
+			if (ArrayUtil.equals(values, i, data))
+				return i;
+		}
+
+		return Constants.INVALID;
+	}
+}